@@ -69,9 +69,12 @@ import {
     PARAM_DISCARD_DECK,
     WEBSOCKET_HEADER,
     DEBUG,
-    PACKET_PONG,
-    PING_INTERVAL, COMMAND_PING, SERVER_PING, PARAM_ICON, PARAM_DID_VETO_OCCUR
+    PACKET_PONG, PACKET_RATE_LIMITED, PACKET_ERROR, PARAM_ERROR_MESSAGE,
+    PING_INTERVAL, COMMAND_PING, SERVER_PING, PARAM_ICON, PARAM_DID_VETO_OCCUR,
+    PACKET_GAME_STATE_DELTA, PARAM_DELTA, PARAM_VERSION, PARAM_BASE_VERSION, PARAM_PATCH, COMMAND_GET_STATE,
+    PARAM_ROLE
 } from "./GlobalDefinitions";
+import {applyMergePatch} from "./util/MergePatch";
 
 import PlayerDisplay, {
     DISABLE_EXECUTED_PLAYERS,
@@ -161,6 +164,8 @@ class App extends Component {
     websocket = undefined;
     failedConnections = 0;
     pinginterval = undefined;
+    // The last full state packet, used as the base for state patches from the server.
+    lastStatePacket = undefined;
     reconnectOnConnectionClosed = true;
     snackbarMessages = 0;
     animationQueue = [];
@@ -275,13 +280,15 @@ class App extends Component {
             console.log("Opening connection with lobby: " + lobby);
             console.log("Failed connections: " + this.failedConnections);
         }
-        let url = WEBSOCKET_HEADER + SERVER_ADDRESS + WEBSOCKET + "?name=" + encodeURI(name) + "&lobby=" + encodeURI(lobby);
+        let url = WEBSOCKET_HEADER + SERVER_ADDRESS + WEBSOCKET + "?name=" + encodeURI(name) + "&lobby=" + encodeURI(lobby)
+                    + "&" + PARAM_DELTA + "=true";
         if (DEBUG) {
             console.log("TryOpenWebsocket URL: " + url);
         }
         let ws = new WebSocket(url);
         if (ws.OPEN) {
             this.websocket = ws;
+            this.lastStatePacket = undefined; // the server always sends the full state to new connections.
             this.reconnectOnConnectionClosed = true;
             // Only move the player to the lobby page if they were logging in.
             // This is to prevent the bug where players flash in/out of the lobby page
@@ -372,6 +379,25 @@ class App extends Component {
         if (DEBUG) {
             console.log(message);
         }
+        if (message[PARAM_PACKET_TYPE] === PACKET_GAME_STATE_DELTA) {
+            if (this.lastStatePacket === undefined
+                    || this.lastStatePacket[PARAM_VERSION] !== message[PARAM_BASE_VERSION]) {
+                // A version was missed, so the patch cannot be applied. Request the full state instead.
+                this.lastStatePacket = undefined;
+                this.sendWSCommand(COMMAND_GET_STATE);
+                return;
+            }
+            message = applyMergePatch(this.lastStatePacket, message[PARAM_PATCH]);
+        }
+        if (message.hasOwnProperty(PARAM_VERSION)) {
+            this.lastStatePacket = message;
+        }
+        // The server only includes the identities that this user may see. Liberal users are told their role separately.
+        let players = message[PARAM_PLAYERS];
+        if (message.hasOwnProperty(PARAM_ROLE) && players !== undefined && players.hasOwnProperty(this.state.name)) {
+            let self = {...players[this.state.name], [PLAYER_IDENTITY]: message[PARAM_ROLE]};
+            message = {...message, [PARAM_PLAYERS]: {...players, [this.state.name]: self}};
+        }
         switch (message[PARAM_PACKET_TYPE]) {
             case PACKET_LOBBY:
                 this.setState({
@@ -403,6 +429,14 @@ class App extends Component {
 
             case PACKET_INVESTIGATION:
 
+                break;
+            case PACKET_ERROR: // The command was not executed, so it will not be followed by an ok packet.
+                this.okMessageListeners = [];
+                this.showSnackBar(message[PARAM_ERROR_MESSAGE]);
+                break;
+            case PACKET_RATE_LIMITED: // The command was dropped, so it will not be followed by an ok packet.
+                this.okMessageListeners = [];
+                this.showSnackBar("Too many actions at once. Please wait a moment and try again.");
                 break;
             case PACKET_PONG:
             default:
@@ -41,9 +41,13 @@ export const PARAM_PACKET_TYPE = "type";
 export const PACKET_INVESTIGATION = "investigation";
 export const PACKET_PEEK = "peek";
 export const PACKET_GAME_STATE = "game";
+export const PACKET_GAME_STATE_DELTA = "delta"; // patch against the last received state
 export const PACKET_LOBBY = "lobby";
 export const PACKET_OK = "ok";
 export const PACKET_PONG = "pong";
+export const PACKET_RATE_LIMITED = "rate-limited"; // the command was dropped because too many were sent
+export const PACKET_ERROR = "error"; // the command broke a rule of the game and was not executed
+export const PARAM_ERROR_MESSAGE = "message";
 
 // Commands
 //<editor-fold desc="Commands">
@@ -54,6 +58,7 @@ export const PARAM_ICON = "icon"; // id of the selected portrait.
 export const PARAM_VOTE = "vote";
 export const PARAM_VETO = "veto"; // the veto decision (yes/no)
 export const PARAM_CHOICE = "choice"; // the index of the chosen policy.
+export const PARAM_DELTA = "delta"; // connection parameter to receive state updates as patches.
 
 export const COMMAND_PING = "ping";
 export const COMMAND_SELECT_ICON = "select-icon";
@@ -103,11 +108,15 @@ export const PARAM_PEEK = "peek";
 export const PARAM_INVESTIGATION = "investigation";
 
 // Incoming Data
+export const PARAM_VERSION = "version";
+export const PARAM_BASE_VERSION = "base-version";
+export const PARAM_PATCH = "patch";
 export const PARAM_STATE = "state";
 export const PARAM_LAST_STATE = "last-state";
 export const PARAM_PLAYER_ORDER = "player-order";
 export const PARAM_PLAYERS = "players";
 export const PLAYER_IDENTITY = "id";
+export const PARAM_ROLE = "role"; // the role of the user, when their own identity is not included in the players.
 export const PLAYER_IS_ALIVE = "alive";
 export const PLAYER_INVESTIGATED = "investigated";
 export const PARAM_PRESIDENT = "president";
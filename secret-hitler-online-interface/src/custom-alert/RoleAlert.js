@@ -86,7 +86,9 @@ class RoleAlert extends Component {
 
     /**
      * Determine the role ID of the player.
-     * @return the number of players with the same role that appear before the player. Otherwise, defaults to 0.
+     * @return the number of players with the same role that appear before the player. If the roles of the other
+     *         players are hidden from the player (liberals, and Hitler in games with 7 or more players), liberals use
+     *         their position in the player order instead and Hitler uses 0. Otherwise, defaults to 0.
      */
     getRoleID() {
         // Determine the role ID of the player by traversing the array of players.
@@ -102,9 +104,14 @@ class RoleAlert extends Component {
                 if (currName === name) {
                     roleID = roleCounts[game[PARAM_PLAYERS][name][PLAYER_IDENTITY]];
                     break;
-                } else {
-                    roleCounts[game[PARAM_PLAYERS][currName][PLAYER_IDENTITY]] += 1;
                 }
+                let identity = game[PARAM_PLAYERS][currName][PLAYER_IDENTITY];
+                if (identity === undefined) {
+                    // The server only sends the identities this player may see, so the roles cannot be counted.
+                    let position = game[PARAM_PLAYER_ORDER].indexOf(name);
+                    return (this.props.role === LIBERAL && position >= 0) ? position % LiberalImages.length : 0;
+                }
+                roleCounts[identity] += 1;
             }
         }
         return roleID;
@@ -0,0 +1,27 @@
+/*
+    Applies JSON Merge Patches (RFC 7386), which the server uses to send state updates as deltas.
+ */
+
+/**
+ * Applies a merge patch to an object without modifying the original.
+ * @param target the object to patch.
+ * @param patch the patch object. Keys replace the keys in {@code target}, nested objects are patched recursively,
+ *        and keys with a null value are removed.
+ * @return {Object} a new object with the patch applied.
+ */
+export function applyMergePatch(target, patch) {
+    if (patch === null || typeof patch !== "object" || Array.isArray(patch)) {
+        return patch;
+    }
+    let out = (target !== null && typeof target === "object" && !Array.isArray(target)) ? {...target} : {};
+    for (let key in patch) {
+        if (patch.hasOwnProperty(key)) {
+            if (patch[key] === null) {
+                delete out[key];
+            } else {
+                out[key] = applyMergePatch(out[key], patch[key]);
+            }
+        }
+    }
+    return out;
+}
@@ -0,0 +1,66 @@
+package game;
+
+/**
+ * A reason that an action is not allowed by the rules of the game.
+ *
+ * Player mistakes (such as voting twice) are expected, so the game can check an action and return the violation
+ * instead of throwing an exception. Each violation has a code that is sent to the client.
+ */
+public enum RuleViolation {
+    NO_GAME("no-game", "There is no game in progress."),
+    GAME_IN_PROGRESS("game-in-progress", "Cannot start a new game while a game is in progress."),
+    WRONG_PLAYER_COUNT("wrong-player-count", "There are too few or too many users to start a game."),
+    ICONS_NOT_SELECTED("icons-not-selected", "Not all players have selected icons."),
+    WRONG_STATE("wrong-state", "The action is not allowed in the current state of the game."),
+    NOT_PRESIDENT("not-president", "The player is not currently president."),
+    NOT_CHANCELLOR("not-chancellor", "The player is not currently chancellor."),
+    NOT_IN_GAME("not-in-game", "The player is not in the game."),
+    ALREADY_VOTED("already-voted", "The player has already voted."),
+    NO_SUCH_PLAYER("no-such-player", "The target player does not exist."),
+    TARGET_NOT_ALIVE("target-not-alive", "The target player is not alive."),
+    TARGET_NOT_ELIGIBLE("target-not-eligible", "The target player cannot be chosen for this action."),
+    INVALID_CHOICE("invalid-choice", "The chosen policy does not exist.");
+
+    private final String code;
+    private final String message;
+
+    RuleViolation(String code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    /**
+     * Returns the code of the violation, which is sent to the client.
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Returns a description of the violation.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Creates an exception for the violation, for callers that did not check the action first.
+     * @param detail a description of the action that was not allowed.
+     * @return an IllegalStateException if the action is not allowed in the current state, an IndexOutOfBoundsException
+     *         if the choice is out of range, and an IllegalArgumentException otherwise.
+     */
+    public RuntimeException toException(String detail) {
+        String text = detail + ": " + message;
+        switch (this) {
+            case WRONG_STATE:
+            case ALREADY_VOTED:
+            case NO_GAME:
+            case GAME_IN_PROGRESS:
+                return new IllegalStateException(text);
+            case INVALID_CHOICE:
+                return new IndexOutOfBoundsException(text);
+            default:
+                return new IllegalArgumentException(text);
+        }
+    }
+}
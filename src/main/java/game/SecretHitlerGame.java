@@ -4,11 +4,13 @@ import game.datastructures.Deck;
 import game.datastructures.Identity;
 import game.datastructures.Player;
 import game.datastructures.Policy;
+import game.datastructures.StateCodec;
 import game.datastructures.board.Board;
 import game.datastructures.board.FiveToSixPlayerBoard;
 import game.datastructures.board.NineToTenPlayerBoard;
 import game.datastructures.board.SevenToEightPlayerBoard;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 
@@ -23,6 +25,9 @@ import java.util.*;
  */
 public class SecretHitlerGame implements Serializable {
 
+    // Pinned to the UID of the class in old backups, so that they can still be read.
+    private static final long serialVersionUID = -5497629914331134028L;
+
     /////////////////// Static Fields
     //<editor-fold desc="Static Fields">
 
@@ -59,7 +64,10 @@ public class SecretHitlerGame implements Serializable {
     private GameState state;
     private GameState lastState = GameState.SETUP;
 
-    private Random random;
+    // The game is random only through its seed, so a game can be replayed from it. Each reshuffle of the discard
+    // pile uses a generator derived from the seed and the number of reshuffles so far, so no generator is stored.
+    private long seed;
+    private int reshuffleCount;
 
     // The last president and chancellor that were successfully voted into office.
     private String lastPresident;
@@ -85,6 +93,9 @@ public class SecretHitlerGame implements Serializable {
 
     private HashMap<String, Boolean> voteMap;
 
+    // The number of successful actions since the game was created or loaded, so callers can tell if the game changed.
+    private transient long changeCount;
+
     //</editor-fold>
 
     /////////////////// Public Observers
@@ -116,6 +127,17 @@ public class SecretHitlerGame implements Serializable {
 
     public boolean didVetoOccurThisTurn() { return didVetoOccurThisTurn; }
 
+    /**
+     * Returns a number that increases every time an action changes the game. Actions that are rejected do not change
+     * it. The count starts at 0 when the game is created or loaded.
+     */
+    public long getChangeCount() { return changeCount; }
+
+    /**
+     * Returns the seed that the game was created with.
+     */
+    public long getSeed() { return seed; }
+
     //</editor-fold>
 
     /////////////////// Constructor
@@ -130,6 +152,20 @@ public class SecretHitlerGame implements Serializable {
      * @effects this is a new game.SecretHitlerGame in setup mode with no players.
      */
     public SecretHitlerGame(Collection<String> players) {
+        this(players, new Random().nextLong());
+    }
+
+    /**
+     * Constructs a new game of Secret Hitler with the given players and random seed.
+     * @param players the names of the players to add to the game.
+     * @param seed the seed for the roles and the order of the policies. Games with the same players and seed that
+     *             are sent the same actions have the same states.
+     * @requires there can be no repeat names in {@code players}. The number of players must be between MIN_PLAYERS and
+     *           MAX_PLAYERS, inclusive.
+     * @modifies this
+     * @effects this is a new game.SecretHitlerGame in setup mode with no players.
+     */
+    public SecretHitlerGame(Collection<String> players, long seed) {
         if (players.size() < MIN_PLAYERS) {
             throw new IllegalArgumentException("There must be at least " + MIN_PLAYERS + " to start the game (only " + players.size() + " provided).");
         } else if (players.size() > MAX_PLAYERS) {
@@ -143,7 +179,7 @@ public class SecretHitlerGame implements Serializable {
         }
 
         state = GameState.SETUP;
-        random = new Random();
+        this.seed = seed;
         electionTracker = 0;
         voteMap = new HashMap<>();
         start();
@@ -207,18 +243,12 @@ public class SecretHitlerGame implements Serializable {
      *          player list is the first president, and the game begins the chancellor nomination process.
      */
     private void start() {
-        resetDeck();
-        assignRoles();
+        Random random = new Random(seed);
+        resetDeck(random);
+        assignRoles(random);
         electionTracker = 0;
 
-        // Assign a new board based on the number of players.
-        if (playerList.size() <= 6) {
-            board = new FiveToSixPlayerBoard();
-        } else if (playerList.size() <= 8) {
-            board = new SevenToEightPlayerBoard();
-        } else {
-            board = new NineToTenPlayerBoard();
-        }
+        board = createBoard(playerList.size());
 
         currentPresident = playerList.get(0).getUsername();
         currentChancellor = null;
@@ -228,11 +258,27 @@ public class SecretHitlerGame implements Serializable {
         state = GameState.CHANCELLOR_NOMINATION;
     }
 
+    /**
+     * Creates a new board based on the number of players.
+     * @param players the number of players.
+     * @return an empty board for {@code players} players.
+     */
+    private static Board createBoard(int players) {
+        if (players <= 6) {
+            return new FiveToSixPlayerBoard();
+        } else if (players <= 8) {
+            return new SevenToEightPlayerBoard();
+        } else {
+            return new NineToTenPlayerBoard();
+        }
+    }
+
     /**
      * Resets the Draw and Discard decks.
+     * @param random the source of randomness.
      * @effects empties the discard deck, fills the draw deck with a standard card count, and shuffles.
      */
-    private void resetDeck() {
+    private void resetDeck(Random random) {
         draw = new Deck();
         discard = new Deck();
 
@@ -243,11 +289,12 @@ public class SecretHitlerGame implements Serializable {
             draw.add(new Policy(Policy.Type.LIBERAL));
         }
 
-        draw.shuffle();
+        draw.shuffle(random);
     }
 
     /**
      * Randomly assigns the player roles.
+     * @param random the source of randomness.
      * @requires the number of players is between 5 and 10, inclusive.
      * @modifies this
      * @effects all Players in playerList are assigned either LIBERAL, FASCIST, or HITLER.
@@ -257,7 +304,7 @@ public class SecretHitlerGame implements Serializable {
      *          # fascists: 1   1   2   2   3   3
      *          # hitler:   1   1   1   1   1   1
      */
-    private void assignRoles() {
+    private void assignRoles(Random random) {
         int players = playerList.size();
         if (players < MIN_PLAYERS) {
             throw new IllegalStateException("Cannot assign roles with insufficient players.");
@@ -329,7 +376,9 @@ public class SecretHitlerGame implements Serializable {
         while(!discard.isEmpty()) {
             draw.add(discard.remove());
         }
-        draw.shuffle();
+        reshuffleCount++;
+        // Mixes the count into the seed, since generators with nearby seeds produce similar first values.
+        draw.shuffle(new Random(seed ^ (reshuffleCount * 0x9E3779B97F4A7C15L)));
     }
 
     //</editor-fold>
@@ -338,17 +387,12 @@ public class SecretHitlerGame implements Serializable {
     //<editor-fold desc="Nomination and Voting">
 
     /**
-     * Selects the chancellor for the current legislation.
-     * @param username username of the chancellor to elect.
-     * @throws IllegalStateException if the state is not {@code CHANCELLOR_SELECTION}.
-     * @throws IllegalArgumentException if the player named {@code username} was the last elected chancellor, if
-     *         there are >5 players and they are the last elected president, if the player is dead,
-     *         or if the player does not exist.
-     * @modifies this
-     * @effects the current chancellor is set to the player named {@code username}. The game state is set to be in
-     *          CHANCELLOR_VOTING.
+     * Checks whether a player can be nominated for chancellor, without changing the game.
+     * @param username username of the chancellor to nominate.
+     * @return the rule that nominating {@code username} would break (see {@code nominateChancellor}), or null if the
+     *         nomination is allowed.
      */
-    public void nominateChancellor(String username) {
+    public RuleViolation checkNominateChancellor(String username) {
         int numLivingPlayers = 0;
         for (Player player : playerList) {
             if (player.isAlive())
@@ -356,14 +400,34 @@ public class SecretHitlerGame implements Serializable {
         }
 
         if (getState() != GameState.CHANCELLOR_NOMINATION) {
-            throw new IllegalStateException("Cannot elect a chancellor now (invalid state).");
+            return RuleViolation.WRONG_STATE;
         } else if (username.equals(lastChancellor) || (username.equals(lastPresident) && numLivingPlayers > 5)) {
-            throw new IllegalArgumentException("Cannot elect chancellor that was previously in office.");
+            return RuleViolation.TARGET_NOT_ELIGIBLE;
         } else if (!hasPlayer(username)) {
-            throw new IllegalArgumentException("Player " + username + " does not exist.");
+            return RuleViolation.NO_SUCH_PLAYER;
         } else if (!getPlayer(username).isAlive()) {
-            throw new IllegalArgumentException("Player " + username + " is dead and cannot be elected for chancellor.");
+            return RuleViolation.TARGET_NOT_ALIVE;
         }
+        return null;
+    }
+
+    /**
+     * Selects the chancellor for the current legislation.
+     * @param username username of the chancellor to elect.
+     * @throws IllegalStateException if the state is not {@code CHANCELLOR_SELECTION}.
+     * @throws IllegalArgumentException if the player named {@code username} was the last elected chancellor, if
+     *         there are >5 players and they are the last elected president, if the player is dead,
+     *         or if the player does not exist.
+     * @modifies this
+     * @effects the current chancellor is set to the player named {@code username}. The game state is set to be in
+     *          CHANCELLOR_VOTING.
+     */
+    public void nominateChancellor(String username) {
+        RuleViolation violation = checkNominateChancellor(username);
+        if (violation != null) {
+            throw violation.toException("Cannot nominate " + username + " for chancellor");
+        }
+        changeCount++;
 
         didElectionTrackerAdvance = false; // reset the election tracker
         currentChancellor = username;
@@ -372,6 +436,22 @@ public class SecretHitlerGame implements Serializable {
         voteMap = new HashMap<>(); // initializes a new map for voting.
     }
 
+    /**
+     * Checks whether a player can vote, without changing the game.
+     * @param username the name of the player giving the vote.
+     * @return the rule that the vote would break (see {@code registerVote}), or null if the vote is allowed.
+     */
+    public RuleViolation checkRegisterVote(String username) {
+        if (!hasPlayer(username)) {
+            return RuleViolation.NOT_IN_GAME;
+        } else if (voteMap.containsKey(username)) {
+            return RuleViolation.ALREADY_VOTED;
+        } else if (state != GameState.CHANCELLOR_VOTING) {
+            return RuleViolation.WRONG_STATE;
+        }
+        return null;
+    }
+
     /**
      * Registers a vote for chancellor from a given player.
      * @param username the name of the player giving the vote.
@@ -387,13 +467,11 @@ public class SecretHitlerGame implements Serializable {
      *          immediately enacts the top policy on the pile and handles state progression.
      */
     public void registerVote(String username, boolean vote) {
-        if(!hasPlayer(username)) {
-            throw new IllegalArgumentException("Player " + username +" is not in the game and cannot vote.");
-        } else if (voteMap.containsKey(username)) {
-            throw new IllegalStateException("Player " + username + " cannot vote twice.");
-        } else if (state != GameState.CHANCELLOR_VOTING) {
-            throw new IllegalStateException("Player " + username + " cannot vote when a vote is not taking place.");
+        RuleViolation violation = checkRegisterVote(username);
+        if (violation != null) {
+            throw violation.toException("Player " + username + " cannot vote");
         }
+        changeCount++;
 
         voteMap.put(username, vote);
 
@@ -476,6 +554,14 @@ public class SecretHitlerGame implements Serializable {
         this.state = GameState.POST_LEGISLATIVE;
     }
 
+    /**
+     * Checks whether the current president's term can end, without changing the game.
+     * @return {@code RuleViolation.WRONG_STATE} if the state is not {@code POST_LEGISLATIVE}, otherwise null.
+     */
+    public RuleViolation checkEndPresidentialTerm() {
+        return state == GameState.POST_LEGISLATIVE ? null : RuleViolation.WRONG_STATE;
+    }
+
     /**
      * Called to end the current's president term.
      * @throws IllegalStateException if the state is not {@code POST_LEGISLATIVE}.
@@ -486,9 +572,11 @@ public class SecretHitlerGame implements Serializable {
      *          Otherwise, chooses the next eligible (alive) player in the ordering to become president.
      */
     public void endPresidentialTerm() {
-        if (this.state != GameState.POST_LEGISLATIVE) {
-            throw new IllegalStateException();
+        RuleViolation violation = checkEndPresidentialTerm();
+        if (violation != null) {
+            throw violation.toException("Cannot end the presidential term");
         }
+        changeCount++;
 
         if (electedPresident != null) { // If the PRESIDENTIAL_POWER_ELECTION was active, chooses the elected president.
             currentPresident = electedPresident;
@@ -562,6 +650,21 @@ public class SecretHitlerGame implements Serializable {
         return new ArrayList<>(legislativePolicies); // makes a copy of the legislative policies
     }
 
+    /**
+     * Checks whether the president can discard a policy, without changing the game.
+     * @param index the index of the policy in the list of legislative choices.
+     * @return the rule that discarding the policy would break (see {@code presidentDiscardPolicy}), or null if it is
+     *         allowed.
+     */
+    public RuleViolation checkPresidentDiscardPolicy(int index) {
+        if (state != GameState.LEGISLATIVE_PRESIDENT) {
+            return RuleViolation.WRONG_STATE;
+        } else if (index < 0 || index >= PRESIDENT_DRAW_SIZE) {
+            return RuleViolation.INVALID_CHOICE;
+        }
+        return null;
+    }
+
     /**
      * Discards the Policy in the list of presidential policy options.
      * @param index the index of the policy in the list of legislative choices to enact.
@@ -572,11 +675,11 @@ public class SecretHitlerGame implements Serializable {
      *          Advances state to the {@code LEGISLATIVE_CHANCELLOR} state.
      */
     public void presidentDiscardPolicy(int index) {
-        if (state != GameState.LEGISLATIVE_PRESIDENT) {
-            throw new IllegalStateException("Cannot discard a policy from the president's hand in this state.");
-        } else if (index < 0 || index >= PRESIDENT_DRAW_SIZE) {
-            throw new IndexOutOfBoundsException("Cannot discard policy at the index " + index + "");
+        RuleViolation violation = checkPresidentDiscardPolicy(index);
+        if (violation != null) {
+            throw violation.toException("Cannot discard the policy at the index " + index + " from the president's hand");
         }
+        changeCount++;
         discard.add(legislativePolicies.remove(index));
         this.lastState = this.state;
         state = GameState.LEGISLATIVE_CHANCELLOR;
@@ -597,6 +700,21 @@ public class SecretHitlerGame implements Serializable {
         return new ArrayList<>(legislativePolicies);
     }
 
+    /**
+     * Checks whether the chancellor can enact a policy, without changing the game.
+     * @param index the index of the policy in the list of legislative choices.
+     * @return the rule that enacting the policy would break (see {@code chancellorEnactPolicy}), or null if it is
+     *         allowed.
+     */
+    public RuleViolation checkChancellorEnactPolicy(int index) {
+        if (getState() != GameState.LEGISLATIVE_CHANCELLOR) {
+            return RuleViolation.WRONG_STATE;
+        } else if (index < 0 || index >= CHANCELLOR_DRAW_SIZE) {
+            return RuleViolation.INVALID_CHOICE;
+        }
+        return null;
+    }
+
     /**
      * Enacts the Policy in the list of chancellor policy options.
      * @param index the index of the policy in the list of legislative choices to enact.
@@ -607,11 +725,11 @@ public class SecretHitlerGame implements Serializable {
      *          Advances state to any relevant presidential powers, otherwise, advances to state {@code POST_LEGISLATIVE}.
      */
     public void chancellorEnactPolicy(int index) {
-        if (getState() != GameState.LEGISLATIVE_CHANCELLOR) {
-            throw new IllegalStateException("Cannot discard a policy from the chancellor's hand in this state.");
-        } else if (index < 0 || index >= CHANCELLOR_DRAW_SIZE) {
-            throw new IndexOutOfBoundsException("Cannot discard policy at the index " + index + "");
+        RuleViolation violation = checkChancellorEnactPolicy(index);
+        if (violation != null) {
+            throw violation.toException("Cannot enact the policy at the index " + index + " from the chancellor's hand");
         }
+        changeCount++;
 
         board.enactPolicy(legislativePolicies.remove(index));
         discard.add(legislativePolicies.remove(0)); //Discard last remaining Policy
@@ -619,6 +737,14 @@ public class SecretHitlerGame implements Serializable {
         onEnactPolicy();
     }
 
+    /**
+     * Checks whether the chancellor can veto, without changing the game.
+     * @return {@code RuleViolation.WRONG_STATE} if the state is not {@code LEGISLATIVE_CHANCELLOR}, otherwise null.
+     */
+    public RuleViolation checkChancellorVeto() {
+        return getState() == GameState.LEGISLATIVE_CHANCELLOR ? null : RuleViolation.WRONG_STATE;
+    }
+
     /**
      * Marks the chancellor as having vetoed the current policy agenda.
      * @throws IllegalStateException if called when the state is not {@code LEGISLATIVE_CHANCELLOR}
@@ -626,13 +752,23 @@ public class SecretHitlerGame implements Serializable {
      * @effects advances the state to {@code LEGISLATIVE_PRESIDENT_VETO} and awaits the president's approval.
      */
     public void chancellorVeto() {
-        if (getState() != GameState.LEGISLATIVE_CHANCELLOR) {
-            throw new IllegalStateException("Cannot veto in state " + getState().toString());
+        RuleViolation violation = checkChancellorVeto();
+        if (violation != null) {
+            throw violation.toException("Cannot veto in state " + getState());
         }
+        changeCount++;
         didVetoOccurThisTurn = true;
         state = GameState.LEGISLATIVE_PRESIDENT_VETO;
     }
 
+    /**
+     * Checks whether the president can respond to a veto, without changing the game.
+     * @return {@code RuleViolation.WRONG_STATE} if the state is not {@code LEGISLATIVE_PRESIDENT_VETO}, otherwise null.
+     */
+    public RuleViolation checkPresidentialVeto() {
+        return state == GameState.LEGISLATIVE_PRESIDENT_VETO ? null : RuleViolation.WRONG_STATE;
+    }
+
     /**
      * Handles the president's response to an initiated veto.
      * @param response is the president's vote (true = veto accepted, false = veto denied)
@@ -645,9 +781,11 @@ public class SecretHitlerGame implements Serializable {
      *          any consequences of the policy.
      */
     public void presidentialVeto(boolean response) {
-        if (state != GameState.LEGISLATIVE_PRESIDENT_VETO) {
-            throw new IllegalStateException("Cannot get president veto input during state " + getState().toString() + "");
+        RuleViolation violation = checkPresidentialVeto();
+        if (violation != null) {
+            throw violation.toException("Cannot get president veto input during state " + getState());
         }
+        changeCount++;
         if (response) { // veto was approved, advance election tracker
             advanceElectionTracker();
             didVetoOccurThisTurn = false;
@@ -724,15 +862,46 @@ public class SecretHitlerGame implements Serializable {
         return policies;
     }
 
+    /**
+     * Checks whether the peek can end, without changing the game.
+     * @return {@code RuleViolation.WRONG_STATE} if the state is not {@code PRESIDENTIAL_POWER_PEEK}, otherwise null.
+     */
+    public RuleViolation checkEndPeek() {
+        return state == GameState.PRESIDENTIAL_POWER_PEEK ? null : RuleViolation.WRONG_STATE;
+    }
+
     /**
      * Ends the {@code PRESIDENTIAL_POWER_PEEK} state.
      * @throws IllegalStateException if called when state is not {@code PRESIDENTIAL_POWER_PEEK}.
      * @effects Advances the state to {@code POST_LEGISLATIVE}.
      */
     public void endPeek() {
+        RuleViolation violation = checkEndPeek();
+        if (violation != null) {
+            throw violation.toException("Cannot end the peek");
+        }
+        changeCount++;
         concludePresidentialActions();
     }
 
+    /**
+     * Checks whether a player can be investigated, without changing the game.
+     * @param username the username of the player to investigate.
+     * @return the rule that the investigation would break (see {@code investigatePlayer}), or null if it is allowed.
+     */
+    public RuleViolation checkInvestigatePlayer(String username) {
+        if (state != GameState.PRESIDENTIAL_POWER_INVESTIGATE) {
+            return RuleViolation.WRONG_STATE;
+        } else if (!hasPlayer(username)) {
+            return RuleViolation.NO_SUCH_PLAYER;
+        } else if (!getPlayer(username).isAlive()) {
+            return RuleViolation.TARGET_NOT_ALIVE;
+        } else if (getPlayer(username).hasBeenInvestigated()) {
+            return RuleViolation.TARGET_NOT_ELIGIBLE;
+        }
+        return null;
+    }
+
     /**
      * Investigates the party identity of a given player.
      * @param username the username of the player to investigate.
@@ -743,15 +912,11 @@ public class SecretHitlerGame implements Serializable {
      *         Once called, advances the state of the game to POST_LEGISLATIVE.
      */
     public Identity investigatePlayer(String username) {
-        if (state != GameState.PRESIDENTIAL_POWER_INVESTIGATE) {
-            throw new IllegalStateException("Cannot investigate a player when the power is not active.");
-        } else if (!hasPlayer(username)) {
-            throw new IllegalArgumentException("Player " + username + " does not exist.");
-        } else if (!getPlayer(username).isAlive()) {
-            throw new IllegalArgumentException("Cannot investigate a dead player (" + username + ").");
-        } else if (getPlayer(username).hasBeenInvestigated()) {
-            throw new IllegalArgumentException("Cannot investigate a player twice (" + username + ").");
+        RuleViolation violation = checkInvestigatePlayer(username);
+        if (violation != null) {
+            throw violation.toException("Cannot investigate " + username);
         }
+        changeCount++;
 
         target = username;
         getPlayer(username).investigate(); // sets a flag that this player has been investigated.
@@ -764,6 +929,22 @@ public class SecretHitlerGame implements Serializable {
         }
     }
 
+    /**
+     * Checks whether a player can be executed, without changing the game.
+     * @param username the username of the player to execute.
+     * @return the rule that the execution would break (see {@code executePlayer}), or null if it is allowed.
+     */
+    public RuleViolation checkExecutePlayer(String username) {
+        if (state != GameState.PRESIDENTIAL_POWER_EXECUTION) {
+            return RuleViolation.WRONG_STATE;
+        } else if (!hasPlayer(username)) {
+            return RuleViolation.NO_SUCH_PLAYER;
+        } else if (!getPlayer(username).isAlive()) {
+            return RuleViolation.TARGET_NOT_ALIVE;
+        }
+        return null;
+    }
+
     /**
      * Executes a given player.
      * @param username the username of the player to execute.
@@ -775,17 +956,14 @@ public class SecretHitlerGame implements Serializable {
      *          Otherwise, once called, advances the state of the game to POST_LEGISLATIVE.
      */
     public void executePlayer(String username) {
-        if (state != GameState.PRESIDENTIAL_POWER_EXECUTION) {
-            throw new IllegalStateException("Cannot execute a player when the power is not active.");
-        } else if (!hasPlayer(username)) {
-            throw new IllegalArgumentException("Player " + username + " does not exist.");
+        RuleViolation violation = checkExecutePlayer(username);
+        if (violation != null) {
+            throw violation.toException("Cannot execute " + username);
         }
+        changeCount++;
 
         Player playerToKill = getPlayer(username);
         target = username;
-        if (!playerToKill.isAlive()) {
-            throw new IllegalArgumentException("Cannot execute " + username + " because they are not alive.");
-        }
 
         playerToKill.kill();
         if(playerToKill.isHitler()) { // game ends and liberals win.
@@ -796,11 +974,29 @@ public class SecretHitlerGame implements Serializable {
         }
     }
 
+    /**
+     * Checks whether a player can be elected as the next president, without changing the game.
+     * @param username the username of the player to become president next.
+     * @return the rule that the election would break (see {@code electNextPresident}), or null if it is allowed.
+     */
+    public RuleViolation checkElectNextPresident(String username) {
+        if (state != GameState.PRESIDENTIAL_POWER_ELECTION) {
+            return RuleViolation.WRONG_STATE;
+        } else if (!hasPlayer(username)) {
+            return RuleViolation.NO_SUCH_PLAYER;
+        } else if (!getPlayer(username).isAlive()) {
+            return RuleViolation.TARGET_NOT_ALIVE;
+        } else if (currentPresident.equals(username)) {
+            return RuleViolation.TARGET_NOT_ELIGIBLE; // the president cannot elect themselves.
+        }
+        return null;
+    }
+
     /**
      * Sets the next president through the Election power.
      * @param username the username of the player to become president next.
      * @throws IllegalStateException if called when state is not {@code PRESIDENTIAL_POWER_ELECTION}.
-     * @throws IllegalArgumentException if the player is dead or is not in the game.
+     * @throws IllegalArgumentException if the player is dead, is not in the game, or is the current president.
      * @modifies this
      * @effects The specified player becomes the next president.
      *          After the completion of their term, the presidency returns to the next president
@@ -808,25 +1004,135 @@ public class SecretHitlerGame implements Serializable {
      *          Once called, advances the state to POST_LEGISLATIVE.
      */
     public void electNextPresident(String username) {
-        if (state != GameState.PRESIDENTIAL_POWER_ELECTION) {
-            throw new IllegalStateException("Cannot elect a player president when the power is not active.");
-        } else if (!hasPlayer(username)) {
-            throw new IllegalArgumentException("Player " + username + " does not exist.");
-        } else if (!getPlayer(username).isAlive()) {
-            throw new IllegalArgumentException("Cannot elect " + username + " because they are not alive.");
+        RuleViolation violation = checkElectNextPresident(username);
+        if (violation != null) {
+            throw violation.toException("Cannot elect " + username + " as the next president");
         }
+        changeCount++;
 
         target = username;
         nextPresident = getNextActivePlayer(currentPresident);
 
-        if (this.currentPresident.equals(target)) {
-            throw new IllegalArgumentException("President cannot elect themselves during a special election.");
-        }
-
         electedPresident = username;
         concludePresidentialActions();
     }
 
     //</editor-fold>
 
+    /////////////////// Persistence
+    //<editor-fold desc="Persistence">
+
+    /**
+     * Constructs an empty game, whose fields are set by {@code decode}.
+     */
+    private SecretHitlerGame() {
+    }
+
+    /**
+     * Called when a game is read from an old backup written by Java serialization. Those games were shuffled with a
+     * stored generator instead of a seed, so they are given a new seed for their later reshuffles.
+     */
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (seed == 0) {
+            seed = new Random().nextLong();
+        }
+    }
+
+    /**
+     * Writes the game as a section.
+     * @param out the writer.
+     * @effects writes every field of the game, so that {@code decode} returns an equal game.
+     */
+    public void encode(StateCodec.Writer out) {
+        int section = out.beginSection();
+        out.writeVarInt(playerList.size());
+        for (Player player : playerList) {
+            player.encode(out);
+        }
+        board.encode(out);
+        discard.encode(out);
+        draw.encode(out);
+        out.writeVarInt(electionTracker);
+        out.writeEnum(state);
+        out.writeEnum(lastState);
+        out.writeLong(seed);
+        out.writeVarInt(reshuffleCount);
+        out.writeString(lastPresident);
+        out.writeString(lastChancellor);
+        out.writeString(currentPresident);
+        out.writeString(currentChancellor);
+        out.writeString(nextPresident);
+        out.writeString(electedPresident);
+        out.writeString(target);
+        out.writeBoolean(legislativePolicies != null);
+        if (legislativePolicies != null) {
+            out.writeVarInt(legislativePolicies.size());
+            for (Policy policy : legislativePolicies) {
+                policy.encode(out);
+            }
+        }
+        out.writeBoolean(didElectionTrackerAdvance);
+        out.writeBoolean(didVetoOccurThisTurn);
+        out.writeVarInt(voteMap.size());
+        for (Map.Entry<String, Boolean> vote : voteMap.entrySet()) {
+            out.writeString(vote.getKey());
+            out.writeBoolean(vote.getValue());
+        }
+        out.endSection(section);
+    }
+
+    /**
+     * Reads a game written by {@code encode}.
+     * @param in the reader.
+     * @throws IOException if the data is invalid.
+     * @return a game equal to the game that was written, with a change count of 0.
+     */
+    public static SecretHitlerGame decode(StateCodec.Reader in) throws IOException {
+        int end = in.beginSection();
+        SecretHitlerGame game = new SecretHitlerGame();
+        int players = in.readVarInt();
+        if (players < MIN_PLAYERS || players > MAX_PLAYERS) {
+            throw new IOException("The game has an invalid number of players (" + players + ").");
+        }
+        game.playerList = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            game.playerList.add(Player.decode(in));
+        }
+        game.board = createBoard(players);
+        game.board.decode(in);
+        game.discard = Deck.decode(in);
+        game.draw = Deck.decode(in);
+        game.electionTracker = in.readVarInt();
+        game.state = in.readEnum(GameState.class);
+        game.lastState = in.readEnum(GameState.class);
+        game.seed = in.readLong();
+        game.reshuffleCount = in.readVarInt();
+        game.lastPresident = in.readString();
+        game.lastChancellor = in.readString();
+        game.currentPresident = in.readString();
+        game.currentChancellor = in.readString();
+        game.nextPresident = in.readString();
+        game.electedPresident = in.readString();
+        game.target = in.readString();
+        if (in.readBoolean()) {
+            int size = in.readVarInt();
+            game.legislativePolicies = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                game.legislativePolicies.add(Policy.decode(in));
+            }
+        }
+        game.didElectionTrackerAdvance = in.readBoolean();
+        game.didVetoOccurThisTurn = in.readBoolean();
+        int votes = in.readVarInt();
+        game.voteMap = new HashMap<>();
+        for (int i = 0; i < votes; i++) {
+            game.voteMap.put(in.readString(), in.readBoolean());
+        }
+        in.endSection(end);
+        return game;
+    }
+
+    //</editor-fold>
+
 }
@@ -1,9 +1,11 @@
 package game.datastructures;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 /**
  * A deck holds an ordered list of Policies and can be shuffled, added to, or removed from.
@@ -11,6 +13,8 @@ import java.util.List;
  */
 public class Deck implements Serializable {
 
+    private static final long serialVersionUID = -4156990191895087587L;
+
     // The front of the list is the "top" of the deck.
     final private List<Policy> deck;
 
@@ -76,4 +80,39 @@ public class Deck implements Serializable {
     public void shuffle() {
         Collections.shuffle(deck);
     }
+
+    /**
+     * Shuffles the deck with a source of randomness, so the same order can be reproduced.
+     * @param random the source of randomness.
+     * @modifies random
+     * @effects Randomizes the ordering of the policy cards in this Deck using {@code random}.
+     */
+    public void shuffle(Random random) {
+        Collections.shuffle(deck, random);
+    }
+
+    /**
+     * Writes the policies of the deck, from the top.
+     * @param out the writer.
+     */
+    public void encode(StateCodec.Writer out) {
+        out.writeVarInt(deck.size());
+        for (Policy policy : deck) {
+            policy.encode(out);
+        }
+    }
+
+    /**
+     * Reads a deck written by {@code encode}.
+     * @param in the reader.
+     * @return a deck with the same policies in the same order.
+     */
+    public static Deck decode(StateCodec.Reader in) throws IOException {
+        Deck result = new Deck();
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            result.deck.add(Policy.decode(in));
+        }
+        return result;
+    }
 }
@@ -2,6 +2,7 @@ package game.datastructures;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -10,6 +11,8 @@ import java.io.Serializable;
  */
 public class Player implements Serializable {
 
+    private static final long serialVersionUID = 8779753037336272372L;
+
     final private String username;
     private Identity id;
     private boolean isAlive;
@@ -64,4 +67,32 @@ public class Player implements Serializable {
     public boolean isFascist() {
         return this.id.equals(Identity.HITLER) || this.id.equals(Identity.FASCIST);
     }
+
+    /**
+     * Writes the player as a section.
+     * @param out the writer.
+     */
+    public void encode(StateCodec.Writer out) {
+        int section = out.beginSection();
+        out.writeString(username);
+        out.writeEnum(id);
+        out.writeBoolean(isAlive);
+        out.writeBoolean(investigated);
+        out.endSection(section);
+    }
+
+    /**
+     * Reads a player written by {@code encode}.
+     * @param in the reader.
+     * @return a player with the same username, identity and status.
+     */
+    public static Player decode(StateCodec.Reader in) throws IOException {
+        int end = in.beginSection();
+        Player player = new Player(in.readString());
+        player.id = in.readEnum(Identity.class);
+        player.isAlive = in.readBoolean();
+        player.investigated = in.readBoolean();
+        in.endSection(end);
+        return player;
+    }
 }
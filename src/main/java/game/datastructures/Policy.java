@@ -1,11 +1,14 @@
 package game.datastructures;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
  * An immutable object that represents either a Fascist or Liberal Policy.
  */
 public class Policy implements Serializable {
+
+    private static final long serialVersionUID = -7252464382007903455L;
     public enum Type {
         FASCIST,
         LIBERAL
@@ -19,4 +22,21 @@ public class Policy implements Serializable {
     public Type getType() {
         return this.type;
     }
+
+    /**
+     * Writes the policy in a single byte.
+     * @param out the writer.
+     */
+    public void encode(StateCodec.Writer out) {
+        out.writeBoolean(type == Type.FASCIST);
+    }
+
+    /**
+     * Reads a policy written by {@code encode}.
+     * @param in the reader.
+     * @return the policy.
+     */
+    public static Policy decode(StateCodec.Reader in) throws IOException {
+        return new Policy(in.readBoolean() ? Type.FASCIST : Type.LIBERAL);
+    }
 }
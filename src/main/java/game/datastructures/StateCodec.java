@@ -0,0 +1,277 @@
+package game.datastructures;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact, versioned binary format for saved game and lobby state.
+ *
+ * The data starts with a header: the bytes of {@code MAGIC}, the version it was written with, and the oldest version
+ * that can read it. Each object is written as a section (its length followed by its fields), so that:
+ *  - Backward compatibility: readers are given the version of the data, and read the fields that version had. A field
+ *    that was added is read only {@code if (in.getVersion() >= N)}, and is otherwise given a default value.
+ *  - Forward compatibility: new fields are only added to the end of a section, and readers skip the rest of a section
+ *    once they have read the fields they know. Data written by a newer server can therefore be read by an older one,
+ *    unless the newer server raised {@code MIN_READER_VERSION} because it changed existing fields.
+ *
+ * Strings are written as UTF-8 with a length prefix, and whole numbers as variable-length integers.
+ */
+public final class StateCodec {
+
+    // The version that data is written with. Raise it whenever fields are added.
+    public static final int VERSION = 1;
+    // The oldest version that can read data written with VERSION. Raise it (to VERSION) whenever existing fields are
+    // changed or removed, so that older servers reject the data instead of misreading it.
+    public static final int MIN_READER_VERSION = 1;
+
+    private static final byte[] MAGIC = {'S', 'H', 'S', 'T'};
+    // The size of the length at the start of each section.
+    private static final int SECTION_LENGTH_SIZE = 4;
+
+    private StateCodec() {}
+
+    /**
+     * Checks whether data was written with this format.
+     * @param data the data.
+     * @return true iff {@code data} starts with the header of this format.
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * Writes data in the format. Not thread-safe.
+     */
+    public static final class Writer {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        /**
+         * Constructs a new Writer and writes the header for {@code VERSION}.
+         */
+        public Writer() {
+            for (byte b : MAGIC) {
+                writeByte(b);
+            }
+            writeVarInt(VERSION);
+            writeVarInt(MIN_READER_VERSION);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        public void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        public void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        /**
+         * Writes a non-negative int in 1 to 5 bytes, 7 bits per byte.
+         * @requires value {@literal >=} 0
+         */
+        public void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        public void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        /**
+         * Writes a String, which may be null.
+         */
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        /**
+         * Writes an enum constant by name, so that constants can be reordered or added. May be null.
+         */
+        public void writeEnum(Enum<?> value) {
+            writeString(value == null ? null : value.name());
+        }
+
+        /**
+         * Starts a section.
+         * @return the position of the section, to be passed to {@code endSection}.
+         */
+        public int beginSection() {
+            ensureCapacity(SECTION_LENGTH_SIZE);
+            int position = size;
+            size += SECTION_LENGTH_SIZE;
+            return position;
+        }
+
+        /**
+         * Ends a section.
+         * @param position the result of the matching {@code beginSection}.
+         * @effects writes the length of the fields written since {@code beginSection} at the start of the section.
+         */
+        public void endSection(int position) {
+            int length = size - position - SECTION_LENGTH_SIZE;
+            buffer[position] = (byte) (length >>> 24);
+            buffer[position + 1] = (byte) (length >>> 16);
+            buffer[position + 2] = (byte) (length >>> 8);
+            buffer[position + 3] = (byte) length;
+        }
+
+        /**
+         * Returns the bytes written so far.
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    /**
+     * Reads data written by a {@code Writer}. Not thread-safe.
+     */
+    public static final class Reader {
+        private final ByteBuffer buffer;
+        private final int version;
+
+        /**
+         * Constructs a new Reader and reads the header.
+         * @param data the data, starting with the header.
+         * @throws IOException if {@code data} is not in this format, or was written by a newer version that this
+         *         version cannot read.
+         */
+        public Reader(byte[] data) throws IOException {
+            if (!isEncoded(data)) {
+                throw new StreamCorruptedException("The data is not in the state format.");
+            }
+            buffer = ByteBuffer.wrap(data, MAGIC.length, data.length - MAGIC.length);
+            version = readVarInt();
+            int minReaderVersion = readVarInt();
+            if (minReaderVersion > VERSION) {
+                throw new IOException("The data was written with version " + version + ", which requires version "
+                        + minReaderVersion + " to read (this is version " + VERSION + ").");
+            }
+        }
+
+        /**
+         * Returns the version the data was written with.
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public int readByte() throws IOException {
+            try {
+                return buffer.get();
+            } catch (BufferUnderflowException e) {
+                throw new StreamCorruptedException("The data ended unexpectedly.");
+            }
+        }
+
+        public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        public int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("The data has an invalid number.");
+        }
+
+        public long readLong() throws IOException {
+            try {
+                return buffer.getLong();
+            } catch (BufferUnderflowException e) {
+                throw new StreamCorruptedException("The data ended unexpectedly.");
+            }
+        }
+
+        /**
+         * Reads a String written by {@code writeString}, which may be null.
+         */
+        public String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > buffer.remaining()) {
+                throw new StreamCorruptedException("The data ended unexpectedly.");
+            }
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        /**
+         * Reads an enum constant written by {@code writeEnum}, which may be null.
+         * @throws IOException if the constant does not exist in {@code type}.
+         */
+        public <E extends Enum<E>> E readEnum(Class<E> type) throws IOException {
+            String name = readString();
+            if (name == null) {
+                return null;
+            }
+            try {
+                return Enum.valueOf(type, name);
+            } catch (IllegalArgumentException e) {
+                throw new StreamCorruptedException("Unknown " + type.getSimpleName() + " " + name + ".");
+            }
+        }
+
+        /**
+         * Starts reading a section.
+         * @return the position of the end of the section, to be passed to {@code endSection}.
+         */
+        public int beginSection() throws IOException {
+            int length = 0;
+            for (int i = 0; i < SECTION_LENGTH_SIZE; i++) {
+                length = (length << 8) | (readByte() & 0xFF);
+            }
+            if (length < 0 || length > buffer.remaining()) {
+                throw new StreamCorruptedException("The data has an invalid section.");
+            }
+            return buffer.position() + length;
+        }
+
+        /**
+         * Finishes reading a section.
+         * @param end the result of the matching {@code beginSection}.
+         * @throws IOException if more than the section was read.
+         * @effects skips the fields of the section that were not read, which were added by a newer version.
+         */
+        public void endSection(int end) throws IOException {
+            if (buffer.position() > end) {
+                throw new StreamCorruptedException("A section was read past its end.");
+            }
+            buffer.position(end);
+        }
+    }
+}
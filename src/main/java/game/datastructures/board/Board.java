@@ -1,11 +1,15 @@
 package game.datastructures.board;
 
 import game.datastructures.Policy;
+import game.datastructures.StateCodec;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 public abstract class Board implements Serializable {
 
+    private static final long serialVersionUID = 2554057836610654274L;
+
     final int FASCIST_POLICIES_TO_WIN = 6;
     final int LIBERAL_POLICIES_TO_WIN = 5;
 
@@ -121,4 +125,33 @@ public abstract class Board implements Serializable {
         return (getNumFascistPolicies() >= MIN_POLICIES_FOR_CHANCELLOR_VICTORY);
     }
 
+    /**
+     * Writes the policies enacted on the board as a section. The kind of board is not written.
+     * @param out the writer.
+     */
+    public void encode(StateCodec.Writer out) {
+        int section = out.beginSection();
+        out.writeVarInt(numFascistPolicies);
+        out.writeVarInt(numLiberalPolicies);
+        out.writeBoolean(lastEnacted != null);
+        if (lastEnacted != null) {
+            lastEnacted.encode(out);
+        }
+        out.endSection(section);
+    }
+
+    /**
+     * Reads the policies enacted on a board written by {@code encode}.
+     * @param in the reader.
+     * @modifies this
+     * @effects sets the enacted policies of this to those of the board that was written.
+     */
+    public void decode(StateCodec.Reader in) throws IOException {
+        int end = in.beginSection();
+        numFascistPolicies = in.readVarInt();
+        numLiberalPolicies = in.readVarInt();
+        lastEnacted = in.readBoolean() ? Policy.decode(in) : null;
+        in.endSection(end);
+    }
+
 }
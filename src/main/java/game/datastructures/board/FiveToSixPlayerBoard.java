@@ -7,6 +7,8 @@ import game.datastructures.Policy;
  */
 public class FiveToSixPlayerBoard extends Board {
 
+    private static final long serialVersionUID = 1643315847863488860L;
+
 
     @Override
     public PresidentialPower getActivatedPower() {
@@ -4,6 +4,8 @@ import game.datastructures.Policy;
 
 public class NineToTenPlayerBoard extends Board{
 
+    private static final long serialVersionUID = 667521459806082960L;
+
     @Override
     public PresidentialPower getActivatedPower() {
         if (getLastEnactedType() == Policy.Type.FASCIST) {
@@ -4,6 +4,8 @@ import game.datastructures.Policy;
 
 public class SevenToEightPlayerBoard extends Board{
 
+    private static final long serialVersionUID = 6159747636827780657L;
+
     @Override
     public PresidentialPower getActivatedPower() {
         if (getLastEnactedType() == Policy.Type.FASCIST) {
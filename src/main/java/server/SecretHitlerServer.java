@@ -1,22 +1,43 @@
 package server;
 
+import game.RuleViolation;
+import game.SecretHitlerGame;
 import game.datastructures.Identity;
+import game.datastructures.Player;
+import game.datastructures.StateCodec;
 import io.javalin.Javalin;
 import io.javalin.http.Context;
+import io.javalin.websocket.WsBinaryMessageContext;
 import io.javalin.websocket.WsCloseContext;
 import io.javalin.websocket.WsConnectContext;
 import io.javalin.websocket.WsContext;
 import io.javalin.websocket.WsMessageContext;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import server.util.BinaryProtocol;
+import server.util.Command;
+import server.util.CommandParser;
+import server.util.DatabaseGateway;
+import server.util.EventLoopGroup;
+import server.util.ExpiryIndex;
+import server.util.Journal;
 import server.util.Lobby;
+import server.util.Log;
+import server.util.SnapshotPipeline;
+import server.util.OutboundQueue;
+import server.util.TimerWheel;
+import server.util.UserSession;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.sql.*;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class SecretHitlerServer {
 
@@ -27,6 +48,14 @@ public class SecretHitlerServer {
 
     // Environmental Variable Names
     private static final String ENV_DATABASE_URL = "DATABASE_URL";
+    private static final String ENV_OUTBOUND_MAX_LAG_MS = "OUTBOUND_MAX_LAG_MS";
+    private static final String ENV_OUTBOUND_MAX_PENDING = "OUTBOUND_MAX_PENDING";
+    private static final String ENV_BROADCAST_WINDOW_MS = "BROADCAST_WINDOW_MS";
+    private static final String ENV_LOG_SAMPLE_RATES = "LOG_SAMPLE_RATES"; // e.g. "PING=100,COMMAND=1"
+    private static final String ENV_LOBBY_SHARDS = "LOBBY_SHARDS"; // defaults to the number of processors
+    private static final String ENV_USER_COMMAND_LIMIT = "USER_COMMAND_LIMIT"; // e.g. "10,20" (per second, burst)
+    private static final String ENV_LOBBY_COMMAND_LIMIT = "LOBBY_COMMAND_LIMIT"; // e.g. "30,60" (per second, burst)
+    private static final String ENV_DATABASE_POOL_SIZE = "DATABASE_POOL_SIZE";
 
     // Passed to server
     public static final String PARAM_LOBBY = "lobby";
@@ -37,17 +66,27 @@ public class SecretHitlerServer {
     public static final String PARAM_VETO = "veto";
     public static final String PARAM_CHOICE = "choice"; // the index of the chosen policy.
     public static final String PARAM_ICON = "icon";
+    public static final String PARAM_DELTA = "delta"; // connection parameter, set to "true" to receive state patches.
+    public static final String PARAM_PROTOCOL = "protocol"; // connection parameter, set to "binary" for BinaryProtocol.
 
     // Passed to client
     // The type of the packet tells the client how to parse the contents.
     public static final String PARAM_PACKET_TYPE = "type";
     public static final String PACKET_INVESTIGATION = "investigation";
     public static final String PACKET_GAME_STATE = "game";
+    public static final String PACKET_GAME_STATE_DELTA = "delta"; // patch against a previously sent state.
     public static final String PACKET_LOBBY = "lobby";
     public static final String PACKET_OK = "ok"; // general response packet sent after any successful command.
     public static final String PACKET_PONG = "pong";  // response to pings.
+    public static final String PACKET_RATE_LIMITED = "rate-limited"; // sent instead of running a command over the limit.
+    public static final String PACKET_ERROR = "error"; // sent instead of running a command that breaks a rule.
 
     public static final String PARAM_INVESTIGATION = "investigation";
+    public static final String PARAM_ERROR_CODE = "code";
+    public static final String PARAM_ERROR_MESSAGE = "message";
+    public static final String PARAM_VERSION = "version";
+    public static final String PARAM_BASE_VERSION = "base-version";
+    public static final String PARAM_PATCH = "patch";
     public static final String FASCIST = "FASCIST";
     public static final String LIBERAL = "LIBERAL";
 
@@ -74,15 +113,56 @@ public class SecretHitlerServer {
     private static final int CODE_LENGTH = 4;
 
     private static final float UPDATE_FREQUENCY_MIN = 1;
+
+    // Packets without content are encoded once.
+    private static final String OK_PACKET = new JSONObject().put(PARAM_PACKET_TYPE, PACKET_OK).toString();
+    private static final String PONG_PACKET = new JSONObject().put(PARAM_PACKET_TYPE, PACKET_PONG).toString();
+    private static final String RATE_LIMITED_PACKET =
+            new JSONObject().put(PARAM_PACKET_TYPE, PACKET_RATE_LIMITED).toString();
+    // The error packet for each RuleViolation, indexed by its ordinal.
+    private static final String[] ERROR_PACKETS = new String[RuleViolation.values().length];
+    static {
+        for (RuleViolation violation : RuleViolation.values()) {
+            ERROR_PACKETS[violation.ordinal()] = new JSONObject()
+                    .put(PARAM_PACKET_TYPE, PACKET_ERROR)
+                    .put(PARAM_ERROR_CODE, violation.getCode())
+                    .put(PARAM_ERROR_MESSAGE, violation.getMessage())
+                    .toString();
+        }
+    }
+    // JSON.stringify() does not add whitespace, and quotes inside of strings are escaped, so this only matches pings.
+    private static final String PING_COMMAND_PATTERN = "\"" + PARAM_COMMAND + "\":\"" + COMMAND_PING + "\"";
+    private static final byte BINARY_PING_CODE = (byte) BinaryProtocol.COMMANDS.indexOf(COMMAND_PING);
+    // Extra properties of start-game journal entries.
+    private static final String JOURNAL_PLAYERS = "players";
+    private static final String JOURNAL_SEED = "seed";
+    // Journal entries that record when a lobby was created or removed, rather than a command.
+    private static final String JOURNAL_EVENT = "event";
+    private static final String JOURNAL_LOBBY_CREATED = "lobby-created";
+    private static final String JOURNAL_LOBBY_REMOVED = "lobby-removed";
     //</editor-fold>
 
     ///// Private Fields
     // <editor-fold desc="Private Fields">
 
-    transient private static ConcurrentHashMap<WsContext, Lobby> userToLobby = new ConcurrentHashMap<>();
+    // The session of each open websocket connection, created when it connects.
+    transient private static ConcurrentHashMap<WsContext, UserSession> userToSession = new ConcurrentHashMap<>();
     private static ConcurrentHashMap<String, Lobby> codeToLobby = new ConcurrentHashMap<>();
-
-    transient private static boolean hasLobbyChanged;
+    // The codes of the lobbies in codeToLobby, indexed by when they time out.
+    private static final ExpiryIndex<String> lobbyExpiry = new ExpiryIndex<>(TimerWheel.SHARED);
+
+    // The codes of lobbies that were removed since the last backup. Changes to a lobby are tracked by the lobby.
+    transient private static final Set<String> removedLobbyCodes = ConcurrentHashMap.newKeySet();
+    // Whether the lobbies were loaded from the old single-row backup, which is deleted once they are stored again.
+    transient private static boolean hasLegacyBackup;
+    // The commands accepted since the last backup of each lobby. Null if there is no database.
+    transient private static Journal journal;
+    // Null if there is no database.
+    transient private static DatabaseGateway database;
+    // Compresses and writes the lobby snapshots captured by backups. Null if there is no database.
+    transient private static SnapshotPipeline snapshots;
+    // The longest time a backup waits for its snapshots to be written.
+    private static final long BACKUP_TIMEOUT_MS = 60_000;
 
     // </editor-fold>
 
@@ -99,10 +179,69 @@ public class SecretHitlerServer {
         return DEFAULT_PORT_NUMBER;
     }
 
+    /**
+     * Applies the settings in the environment, if any.
+     * @effects sets {@code OutboundQueue.MAX_LAG_MS} and {@code OutboundQueue.MAX_PENDING_MESSAGES} from the
+     *          {@code OUTBOUND_MAX_LAG_MS} and {@code OUTBOUND_MAX_PENDING} environment variables, and
+     *          {@code Lobby.BROADCAST_WINDOW_MS} from {@code BROADCAST_WINDOW_MS}, and the log sample rates from
+     *          {@code LOG_SAMPLE_RATES} (a comma-separated list of {@code CATEGORY=rate}), and the command rate limits
+     *          of connections and lobbies from {@code USER_COMMAND_LIMIT} and {@code LOBBY_COMMAND_LIMIT} (each
+     *          {@code perSecond,burst}).
+     */
+    private static void loadConfiguration() {
+        String maxLag = System.getenv(ENV_OUTBOUND_MAX_LAG_MS);
+        if (maxLag != null) {
+            OutboundQueue.MAX_LAG_MS = Long.parseLong(maxLag);
+        }
+        String maxPending = System.getenv(ENV_OUTBOUND_MAX_PENDING);
+        if (maxPending != null) {
+            OutboundQueue.MAX_PENDING_MESSAGES = Integer.parseInt(maxPending);
+        }
+        String broadcastWindow = System.getenv(ENV_BROADCAST_WINDOW_MS);
+        if (broadcastWindow != null) {
+            Lobby.BROADCAST_WINDOW_MS = Long.parseLong(broadcastWindow);
+        }
+        String shards = System.getenv(ENV_LOBBY_SHARDS);
+        if (shards != null) {
+            EventLoopGroup.SHARD_COUNT = Integer.parseInt(shards);
+        }
+        String userLimit = System.getenv(ENV_USER_COMMAND_LIMIT);
+        if (userLimit != null) {
+            String[] rateAndBurst = userLimit.split(",");
+            UserSession.COMMANDS_PER_SECOND = Double.parseDouble(rateAndBurst[0].trim());
+            UserSession.COMMAND_BURST = Double.parseDouble(rateAndBurst[1].trim());
+        }
+        String poolSize = System.getenv(ENV_DATABASE_POOL_SIZE);
+        if (poolSize != null) {
+            DatabaseGateway.POOL_SIZE = Integer.parseInt(poolSize);
+        }
+        String lobbyLimit = System.getenv(ENV_LOBBY_COMMAND_LIMIT);
+        if (lobbyLimit != null) {
+            String[] rateAndBurst = lobbyLimit.split(",");
+            Lobby.COMMANDS_PER_SECOND = Double.parseDouble(rateAndBurst[0].trim());
+            Lobby.COMMAND_BURST = Double.parseDouble(rateAndBurst[1].trim());
+        }
+        String sampleRates = System.getenv(ENV_LOG_SAMPLE_RATES);
+        if (sampleRates != null) {
+            for (String entry : sampleRates.split(",")) {
+                String[] categoryAndRate = entry.trim().split("=");
+                Log.Category.valueOf(categoryAndRate[0]).setSampleRate(Integer.parseInt(categoryAndRate[1]));
+            }
+        }
+    }
+
     public static void main(String[] args) {
+        loadConfiguration();
+        if (!DEBUG && System.getenv(ENV_DATABASE_URL) != null) {
+            database = new DatabaseGateway(System.getenv(ENV_DATABASE_URL));
+        }
         // On load, check the connected database to see if there's a stored state from the server.
         loadDatabaseBackup();
         removeInactiveLobbies(); // immediately clean in case of redundant lobbies.
+        if (database != null) {
+            journal = new Journal(new DatabaseJournalSink());
+            snapshots = new SnapshotPipeline(new DatabaseSnapshotSink());
+        }
 
         // Only initialize Javalin communication after the database has been queried.
         Javalin serverApp = Javalin.create(config -> {
@@ -116,10 +255,12 @@ public class SecretHitlerServer {
         serverApp.get("/check-login", SecretHitlerServer::checkLogin); // Checks if a login is valid.
         serverApp.get("/new-lobby", SecretHitlerServer::createNewLobby); // Creates and returns the code for a new lobby
         serverApp.get("/ping", SecretHitlerServer::ping);
+        serverApp.get("/metrics", SecretHitlerServer::getMetrics); // Returns server performance counters.
 
         serverApp.ws("/game", wsHandler -> {
             wsHandler.onConnect(SecretHitlerServer::onWebsocketConnect);
             wsHandler.onMessage(SecretHitlerServer::onWebSocketMessage);
+            wsHandler.onBinaryMessage(SecretHitlerServer::onWebSocketBinaryMessage);
             wsHandler.onClose(SecretHitlerServer::onWebSocketClose);
         });
 
@@ -127,7 +268,18 @@ public class SecretHitlerServer {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 System.out.println("Attempting to back up lobby data.");
+                if (journal != null) {
+                    try {
+                        journal.flush(2000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
                 storeDatabaseBackup();
+                if (database != null) {
+                    database.closeIdle();
+                }
+                Log.flush();
             }
         });
 
@@ -139,43 +291,49 @@ public class SecretHitlerServer {
             @Override
             public void run() {
                 removeInactiveLobbies();
-                // If there are active lobbies, store a backup of the game.
-                if (!codeToLobby.isEmpty() && hasLobbyChanged) {
-                    storeDatabaseBackup();
-                    hasLobbyChanged = false;
-                }
+                // Store the lobbies that changed and delete the ones that were removed.
+                storeDatabaseBackup();
             }
         }, delay, period);
     }
 
     /**
      * Checks for and removes any lobbies that have timed out.
-     * @effects For each lobby in the {@code codeToLobby} map, checks if the lobby has timed out.
-     *          If so, closes all websockets associated with the lobby and removes them from the
-     *          {@code userToLobby} map, then removes the lobby from the {@code codeToLobby} map.
+     * @effects For each lobby in the {@code codeToLobby} map whose deadline has passed according to
+     *          {@code lobbyExpiry}, checks if the lobby has timed out. If so, closes all websockets associated with the
+     *          lobby and removes them from the {@code userToSession} map, then removes the lobby from the
+     *          {@code codeToLobby} map and journals its removal. Lobbies that have not timed out are not visited.
      */
     private static void removeInactiveLobbies() {
-        Set<String> removedLobbyCodes = new HashSet<>();
-        int removedCount = 0;
-        Iterator<Map.Entry<String, Lobby>> itr = codeToLobby.entrySet().iterator();
-        while (itr.hasNext()) {
-            Map.Entry<String, Lobby> entry = itr.next();
-            Lobby lobby = entry.getValue();
-            if (lobby.hasTimedOut()) {
-                // Remove the websocket connections.
-                for (WsContext ctx : lobby.getConnections()) {
-                    ctx.session.close(504, "The lobby has timed out.");
-                    userToLobby.remove(ctx);
+        Set<String> expiredCodes = new HashSet<>();
+        lobbyExpiry.pollExpired(code -> {
+            Lobby lobby = codeToLobby.get(code);
+            if (lobby == null) {
+                return;
+            }
+            if (!lobby.hasTimedOut()) { // the timeout was reset after the lobby expired.
+                lobbyExpiry.add(code, lobby::getTimeout);
+                return;
+            }
+            // Remove the websocket connections.
+            for (WsContext ctx : lobby.getConnections()) {
+                UserSession session = userToSession.remove(ctx);
+                if (session != null) {
+                    session.disconnect(504, "The lobby has timed out.");
                 }
-                removedLobbyCodes.add(entry.getKey());
-                removedCount++;
-                itr.remove();
             }
-        }
+            expiredCodes.add(code);
+            codeToLobby.remove(code);
+            // The removal is journaled before the backup can delete the journal of the lobby.
+            lobby.execute(() -> {
+                journalLobbyEvent(lobby, JOURNAL_LOBBY_REMOVED);
+                removedLobbyCodes.add(code);
+            });
+        });
+        int removedCount = expiredCodes.size();
         if (removedCount > 0) {
-            System.out.println(String.format("Removed %d inactive lobbies: %s", removedCount, removedLobbyCodes));
-            System.out.println("Available lobbies: " + codeToLobby.keySet());
-            hasLobbyChanged = true;
+            Log.event(Log.Category.LOBBY, "lobbies-removed", "count", removedCount, "codes", expiredCodes,
+                    "lobbies", codeToLobby.size());
         }
     }
 
@@ -184,134 +342,365 @@ public class SecretHitlerServer {
     //<editor-fold desc="Database Handling">
 
     /**
-     * Attempts to get a connection to the PostGres database.
-     * @return null if no connection could be made.
-     *         otherwise, returns a {@code java.sql.Connection} object.
+     * The lobbies read by one attempt of {@code loadDatabaseBackup}, which are only published if the attempt succeeds.
      */
-    private static Connection getDatabaseConnection() {
-        // Get credentials from database or (if debug flag is set) via manual input.
-        Connection c = null;
-        try {
-            URI databaseUri;
-            if (DEBUG) {
-                databaseUri = new URI("");
-            } else {
-                databaseUri = new URI(System.getenv(ENV_DATABASE_URL));
-            }
-            String username = databaseUri.getUserInfo().split(":")[0];
-            String password = databaseUri.getUserInfo().split(":")[1];
-            String dbUrl = "jdbc:postgresql://" + databaseUri.getHost() + ':' + databaseUri.getPort()
-                    + databaseUri.getPath() + "?ssl=true&sslmode=require";
-
-            Class.forName("org.postgresql.Driver");
-            c = DriverManager.getConnection(dbUrl, username, password);
-            System.out.println("Successfully connected to database.");
-            return c;
-        } catch (Exception e) {
-            System.out.println("Failed to connect to database.");
-            System.err.println(e);
-            return null;
+    private static final class LoadedBackup {
+        final ConcurrentHashMap<String, Lobby> lobbies;
+        // The codes of the lobbies whose removal was journaled.
+        final Set<String> removedCodes = new HashSet<>();
+        // Whether the lobbies were loaded from the old single-row backup.
+        boolean isLegacy;
+
+        LoadedBackup(ConcurrentHashMap<String, Lobby> lobbies) {
+            this.lobbies = lobbies;
         }
     }
 
     /**
      * Loads lobby data stored in the database (intended to be run on server wake).
-     * @effects {@code codeToLobby} is set to the stored database
+     * @effects {@code codeToLobby} is set to the lobbies stored in the {@code lobby_backup} table. If that table is
+     *          empty, the lobbies are loaded from the old single-row {@code backup} table instead, and are stored in
+     *          the new table by the next backup. The lobbies, {@code removedLobbyCodes} and {@code hasLegacyBackup}
+     *          are only changed once the load has succeeded, so a retried or failed load leaves them unchanged.
      */
     private static void loadDatabaseBackup() {
-        // Get connection to the Postgres Database and select the backup data.
-        Connection c = getDatabaseConnection();
-        if (c == null) { return; }
-        Statement stmt = null;
+        if (database == null) { return; }
 
         try {
-            // Initialize table, just in case
-            initializeDatabase(c);
-
-            stmt = c.createStatement();
-            ResultSet rs = stmt.executeQuery("select * from backup;");
-            rs.next(); // Will fail if there are no entries in the table, which is fine.
+            LoadedBackup backup = database.execute("load-backup", session -> {
+                // Initialize tables, just in case
+                initializeDatabase(session);
+
+                ResultSet rs = session.prepare("select code, lobby_bytes from lobby_backup;").executeQuery();
+                ConcurrentHashMap<String, Lobby> loadedLobbies = new ConcurrentHashMap<>();
+                Set<String> failedCodes = new HashSet<>();
+                while (rs.next()) {
+                    String code = rs.getString("code");
+                    try {
+                        loadedLobbies.put(code, decodeLobby(code, rs.getBytes("lobby_bytes")));
+                    } catch (Exception e) {
+                        failedCodes.add(code);
+                        System.out.println("Failed to parse the stored data of lobby " + code + ".");
+                        System.err.println( e.getClass().getName()+": "+ e.getMessage() );
+                    }
+                }
+                rs.close();
 
-            String timestamp = rs.getString("timestamp");
-            int numAttempts = rs.getInt("attempts");
-            byte[] lobbyBytes = rs.getBytes("lobby_bytes");
-            System.out.println("Loaded backup from " + timestamp + ".");
-            rs.close();
-            stmt.close();
+                LoadedBackup loaded = new LoadedBackup(loadedLobbies);
+                if (loadedLobbies.isEmpty()) {
+                    loaded = new LoadedBackup(loadLegacyBackup(session));
+                    // The old backup is deleted once its lobbies are stored in their own rows, so only if it has any.
+                    loaded.isLegacy = !loaded.lobbies.isEmpty();
+                }
+                replayJournal(session, loaded.lobbies, failedCodes, loaded.removedCodes);
+                return loaded;
+            });
+            codeToLobby = backup.lobbies;
+            removedLobbyCodes.addAll(backup.removedCodes);
+            hasLegacyBackup = backup.isLegacy;
+            for (Map.Entry<String, Lobby> entry : codeToLobby.entrySet()) {
+                lobbyExpiry.add(entry.getKey(), entry.getValue()::getTimeout);
+            }
+            System.out.println("Successfully loaded " + codeToLobby.size() + " lobbies from the database.");
 
-            // Update the number of attempts that have been made, for debugging.
-            stmt = c.createStatement();
-            stmt.executeUpdate("UPDATE backup SET attempts = '" + (numAttempts + 1) + "';");
-            stmt.close();
-            c.close();
+        } catch (Exception e) {
+            System.out.println("Failed to retrieve lobby backups from the database.");
+            System.err.println( e.getClass().getName()+": "+ e.getMessage() );
+        }
+    }
 
-            // Deserialize the data and convert to lobbies.
-            ByteArrayInputStream lobbyByteStream = new ByteArrayInputStream(lobbyBytes);
+    /**
+     * Replays the journal entries that were written after the lobbies were last backed up.
+     * @param session the connection to the database.
+     * @param lobbies the lobbies loaded from the backup.
+     * @param failedCodes the codes of the lobbies whose backup could not be loaded.
+     * @param removedCodes the codes of the lobbies whose removal was journaled.
+     * @modifies lobbies, failedCodes, removedCodes
+     * @effects applies each entry of the {@code lobby_journal} table whose sequence number is greater than the
+     *          journal sequence of its lobby, in order. A lobby that is not in {@code lobbies} is only created if its
+     *          entries start with its creation, and a lobby whose removal was journaled is removed and added to
+     *          {@code removedCodes}. The entries of lobbies in {@code failedCodes} are skipped.
+     *          If an entry is missing (it was dropped before it was written) or cannot be applied, the lobby is kept
+     *          at its state before that entry and marked as unsaved, its code is added to {@code failedCodes} so that
+     *          its later entries are skipped, and its entries after that state are deleted so that new entries can
+     *          reuse their sequence numbers.
+     */
+    private static void replayJournal(DatabaseGateway.Session session, Map<String, Lobby> lobbies,
+                                      Set<String> failedCodes, Set<String> removedCodes) throws SQLException {
+        ResultSet rs = session.prepare("select code, seq, entry from lobby_journal order by code, seq;").executeQuery();
+        int replayedCount = 0;
+        int skippedCount = 0;
+        // The lobbies whose replay stopped at a missing or failed entry, with the last entry they applied.
+        Map<String, Long> stoppedLobbies = new HashMap<>();
+        while (rs.next()) {
+            String code = rs.getString("code");
+            long sequence = rs.getLong("seq");
+            String data = rs.getString("entry");
+            if (failedCodes.contains(code)) {
+                skippedCount++; // the entries cannot be applied without the backup of the lobby.
+                continue;
+            }
+            String event = new JSONObject(data).optString(JOURNAL_EVENT, null);
+            Lobby lobby = lobbies.get(code);
+            if (lobby == null) {
+                if (!JOURNAL_LOBBY_CREATED.equals(event)) {
+                    skippedCount++; // the lobby was removed, or its creation was compacted into a lost backup.
+                    continue;
+                }
+                lobby = new Lobby(code);
+                lobbies.put(code, lobby);
+            }
+            if (sequence <= lobby.getJournalSequence()) {
+                continue; // already included in the backup of the lobby.
+            }
+            // A failed entry may have partly changed the lobby, so it is restored from its state before the entry.
+            byte[] lastGoodState = lobby.encode();
             try {
-                ObjectInputStream objectStream = new ObjectInputStream(lobbyByteStream);
-                codeToLobby = (ConcurrentHashMap<String, Lobby>) objectStream.readObject();
-                System.out.println("Successfully parsed lobby data from the database.");
-            } catch (Exception e) {
-                System.out.println("Failed to parse lobby data from stored backup. ");
+                if (sequence != lobby.getJournalSequence() + 1) {
+                    throw new IllegalStateException("Journal entry " + (lobby.getJournalSequence() + 1)
+                            + " is missing.");
+                }
+                if (JOURNAL_LOBBY_REMOVED.equals(event)) {
+                    lobbies.remove(code);
+                    removedCodes.add(code); // its rows are deleted by the next backup.
+                } else if (event != null) {
+                    lobby.replayJournalEntry(sequence, () -> { });
+                } else {
+                    replayJournalEntry(lobby, sequence, data);
+                }
+                replayedCount++;
+            } catch (RuntimeException e) {
+                System.out.println("Failed to replay journal entry " + sequence + " of lobby " + code
+                        + "; keeping the lobby at entry " + lobby.getJournalSequence() + ".");
                 System.err.println( e.getClass().getName()+": "+ e.getMessage() );
+                try {
+                    lobby = Lobby.decode(lastGoodState);
+                } catch (IOException decodeError) {
+                    throw new IllegalStateException("The lobby could not be restored.", decodeError);
+                }
+                lobby.markUnsaved(); // stored again by the next backup.
+                lobbies.put(code, lobby);
+                failedCodes.add(code);
+                stoppedLobbies.put(code, lobby.getJournalSequence());
             }
+        }
+        rs.close();
+
+        if (!stoppedLobbies.isEmpty()) {
+            PreparedStatement delete = session.prepare("DELETE FROM lobby_journal WHERE code = ? AND seq > ?;");
+            for (Map.Entry<String, Long> stopped : stoppedLobbies.entrySet()) {
+                delete.setString(1, stopped.getKey());
+                delete.setLong(2, stopped.getValue());
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+        System.out.println("Replayed " + replayedCount + " journal entries and skipped " + skippedCount + ".");
+    }
+
+    /**
+     * Loads the lobbies from the old {@code backup} table, which stored every lobby in a single row.
+     * @param session the connection to the database.
+     * @effects if the table has a backup that was parsed, marks every loaded lobby as unsaved. A backup that could not
+     *          be parsed is kept.
+     * @return the stored lobbies, or an empty map if there is no backup or it could not be parsed.
+     */
+    private static ConcurrentHashMap<String, Lobby> loadLegacyBackup(DatabaseGateway.Session session)
+            throws SQLException {
+        ResultSet rs = session.prepare("select * from backup;").executeQuery();
+        if (!rs.next()) {
+            rs.close();
+            return new ConcurrentHashMap<>();
+        }
+        String timestamp = rs.getString("timestamp");
+        byte[] lobbyBytes = rs.getBytes("lobby_bytes");
+        rs.close();
+        System.out.println("Loaded legacy backup from " + timestamp + ".");
 
+        try {
+            return Lobby.decodeSerializedBackup(lobbyBytes);
         } catch (Exception e) {
-            System.out.println("Failed to retrieve lobby backups from the database.");
+            System.out.println("Failed to parse lobby data from stored backup. ");
             System.err.println( e.getClass().getName()+": "+ e.getMessage() );
+            return new ConcurrentHashMap<>();
         }
     }
 
-    private static void storeDatabaseBackup() {
-        ByteArrayOutputStream byteBuilder = new ByteArrayOutputStream();
-        try {
-            // Serialize the Lobby data.
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteBuilder);
-            objectOutputStream.writeObject(codeToLobby);
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            byteBuilder.flush();
-        } catch (Exception e) {
-            System.out.println("Failed to serialize the Lobby data.");
-            System.err.println(e);
+    /**
+     * Stores the lobbies that changed since the last backup, and deletes the lobbies that were removed.
+     * @modifies this
+     * @effects every lobby with unsaved changes captures a snapshot in its mailbox, which {@code snapshots} compresses
+     *          and upserts into the row for its code in the {@code lobby_backup} table, deleting the journal entries
+     *          the snapshot includes. Lobbies that did not change are not captured. Once the snapshots are written,
+     *          the rows and journal entries of the lobbies in {@code removedLobbyCodes} are deleted in one transaction.
+     *          If a lobby or removal cannot be stored, it is kept as unsaved or removed, so the next backup retries it.
+     *          Waits for at most {@code BACKUP_TIMEOUT_MS}.
+     */
+    private static synchronized void storeDatabaseBackup() {
+        if (database == null) {
             return;
         }
-        byte[] lobbyData = byteBuilder.toByteArray();
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String timestamp =  formatter.format(new Timestamp(System.currentTimeMillis()));
-        int attempts = 0;
-
-        Connection c = getDatabaseConnection();
+        long failedCount = snapshots.getFailedCount();
+        long writtenCount = snapshots.getWrittenCount();
         try {
-            String queryStr = "INSERT INTO BACKUP (id, timestamp, attempts, lobby_bytes)" +
-                    "VALUES (0, ?, ?, ?) " +
-                    "ON CONFLICT (id) DO UPDATE " +
-                    "SET timestamp = excluded.timestamp, " +
-                    "attempts = excluded.attempts, " +
-                    "lobby_bytes = excluded.lobby_bytes; ";
-            PreparedStatement pstmt = c.prepareStatement(queryStr);
-            int i = 1;
-            pstmt.setString(i++, timestamp);
-            pstmt.setInt(i++, attempts);
-            pstmt.setBytes(i++, lobbyData);
-            pstmt.executeUpdate();
-            c.close();
-        } catch (Exception e) {
-            System.out.println("Failed to store the Lobby data in the database.");
-            System.err.println(e);
+            // The lobbies are marked as saved before they are captured, so changes made meanwhile are saved next time.
+            for (Lobby lobby : codeToLobby.values()) {
+                if (lobby.markSaved()) {
+                    snapshots.capture(lobby);
+                }
+            }
+            if (!snapshots.flush(BACKUP_TIMEOUT_MS)) {
+                System.out.println("Timed out waiting for lobby snapshots to be written.");
+            }
+            // Includes the removal entries of the removed lobbies, which must not be written after their deletion.
+            if (journal != null && !journal.flush(BACKUP_TIMEOUT_MS)) {
+                System.out.println("Timed out waiting for the journal to be written.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return;
         }
-        System.out.println("Successfully saved Lobby state to the database.");
+        // The lobbies from the old backup are only deleted once every lobby has been stored in its own row.
+        boolean deleteLegacyBackup = hasLegacyBackup && snapshots.getWrittenCount() > writtenCount
+                && snapshots.getFailedCount() == failedCount && snapshots.getPendingCount() == 0;
+
+        // Removals are written after the snapshots, so that a snapshot of a lobby cannot be stored after its removal.
+        List<String> removedCodes = new ArrayList<>();
+        for (Iterator<String> iterator = removedLobbyCodes.iterator(); iterator.hasNext(); ) {
+            removedCodes.add(iterator.next());
+            iterator.remove();
+        }
+        if (!removedCodes.isEmpty() || deleteLegacyBackup) {
+            try {
+                database.execute("delete-lobbies", session -> {
+                    PreparedStatement delete = session.prepare("DELETE FROM lobby_backup WHERE code = ?;");
+                    PreparedStatement deleteJournal = session.prepare("DELETE FROM lobby_journal WHERE code = ?;");
+                    for (String code : removedCodes) {
+                        delete.setString(1, code);
+                        delete.addBatch();
+                        deleteJournal.setString(1, code);
+                        deleteJournal.addBatch();
+                    }
+                    delete.executeBatch();
+                    deleteJournal.executeBatch();
+                    if (deleteLegacyBackup) {
+                        session.prepare("DELETE FROM backup;").executeUpdate();
+                    }
+                    return null;
+                });
+                if (deleteLegacyBackup) {
+                    hasLegacyBackup = false;
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to delete the removed lobbies from the database.");
+                System.err.println(e);
+                removedLobbyCodes.addAll(removedCodes);
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+        }
+        long storedCount = snapshots.getWrittenCount() - writtenCount;
+        if (storedCount > 0 || !removedCodes.isEmpty()) {
+            System.out.println("Successfully saved " + storedCount + " lobbies and deleted "
+                    + removedCodes.size() + " lobbies in the database.");
+        }
     }
 
+    /**
+     * Writes lobby snapshots to the {@code lobby_backup} table, one transaction per batch.
+     */
+    private static class DatabaseSnapshotSink implements SnapshotPipeline.Sink {
+        @Override
+        public void write(List<SnapshotPipeline.Snapshot> batch) throws SQLException, InterruptedException {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            String timestamp =  formatter.format(new Timestamp(System.currentTimeMillis()));
+            database.execute("store-backup", session -> {
+                String queryStr = "INSERT INTO lobby_backup (code, timestamp, lobby_bytes) " +
+                        "VALUES (?, ?, ?) " +
+                        "ON CONFLICT (code) DO UPDATE " +
+                        "SET timestamp = excluded.timestamp, " +
+                        "lobby_bytes = excluded.lobby_bytes; ";
+                PreparedStatement upsert = session.prepare(queryStr);
+                // The journal of a lobby is compacted up to the entries that are included in its snapshot.
+                PreparedStatement compact = session.prepare(
+                        "DELETE FROM lobby_journal WHERE code = ? AND seq <= ?;");
+                for (SnapshotPipeline.Snapshot snapshot : batch) {
+                    Lobby lobby = snapshot.getLobby();
+                    if (codeToLobby.get(lobby.getCode()) != lobby) {
+                        continue; // the lobby was removed, so its row is deleted instead.
+                    }
+                    int i = 1;
+                    upsert.setString(i++, lobby.getCode());
+                    upsert.setString(i++, timestamp);
+                    upsert.setBytes(i++, snapshot.getData());
+                    upsert.addBatch();
+                    compact.setString(1, lobby.getCode());
+                    compact.setLong(2, snapshot.getJournalSequence());
+                    compact.addBatch();
+                }
+                upsert.executeBatch();
+                compact.executeBatch();
+                return null;
+            });
+        }
+    }
 
-        /**
-         * Initializes the database by adding the BACKUP table.
-         * @param c the connection to the database.
-         * @effects the Postgres SQL datbase has a new
-         */
-    private static void initializeDatabase(Connection c) throws SQLException {
-        Statement stmt = c.createStatement();
+    /**
+     * Writes journal entries to the {@code lobby_journal} table, one transaction per batch. Inserting an entry that
+     * was already written does nothing, so a batch can be retried.
+     */
+    private static class DatabaseJournalSink implements Journal.Sink {
+        @Override
+        public void write(List<Journal.Entry> entries) throws SQLException, InterruptedException {
+            database.execute("journal-write", session -> {
+                PreparedStatement insert = session.prepare(
+                        "INSERT INTO lobby_journal (code, seq, entry) VALUES (?, ?, ?) ON CONFLICT DO NOTHING;");
+                for (Journal.Entry entry : entries) {
+                    insert.setString(1, entry.getLobbyCode());
+                    insert.setLong(2, entry.getSequence());
+                    insert.setString(3, entry.getData());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Decodes a lobby stored in the {@code lobby_backup} table.
+     * @param code the code of the row.
+     * @param bytes the stored data, either in the format of {@code StateCodec} (compressed by
+     *              {@code SnapshotPipeline} or not) or (for lobbies stored by older servers) written by Java
+     *              serialization.
+     * @throws IOException if the data is invalid or was written by a newer server that this one cannot read.
+     * @throws ClassNotFoundException if the data was written by Java serialization with classes that no longer exist.
+     * @return the lobby. Lobbies that were not stored in the current format are marked as unsaved, so that the next
+     *         backup stores them in it.
+     */
+    private static Lobby decodeLobby(String code, byte[] bytes) throws IOException, ClassNotFoundException {
+        if (SnapshotPipeline.isCompressed(bytes)) {
+            return Lobby.decode(SnapshotPipeline.decompress(bytes));
+        }
+        if (StateCodec.isEncoded(bytes)) {
+            return Lobby.decode(bytes);
+        }
+        return Lobby.decodeSerialized(code, bytes);
+    }
+
+    /**
+     * Initializes the database by adding the LOBBY_BACKUP, LOBBY_JOURNAL and (old) BACKUP tables.
+     * @param session the connection to the database.
+     * @effects the Postgres SQL database has the tables, if they did not exist.
+     */
+    private static void initializeDatabase(DatabaseGateway.Session session) throws SQLException {
+        Statement stmt = session.createStatement();
+        stmt.executeUpdate("create table if not exists lobby_backup " +
+                "(code TEXT PRIMARY KEY, timestamp TEXT, lobby_bytes BYTEA);");
+        stmt.executeUpdate("create table if not exists lobby_journal " +
+                "(code TEXT, seq BIGINT, entry TEXT, PRIMARY KEY (code, seq));");
         stmt.executeUpdate("create table if not exists backup " +
                 "(id INT UNIQUE, timestamp TEXT, attempts INT, lobby_bytes BYTEA);");
         stmt.close();
@@ -333,6 +722,92 @@ public class SecretHitlerServer {
         ctx.result("OK");
     }
 
+    /**
+     * Returns performance counters for the server.
+     * @param ctx the HTTP get request context.
+     * @effects Returns a JSON object with status code 200, containing the following properties:
+     *          {@code lobbies}: the number of open lobbies.
+     *          {@code encodes-avoided}: the number of state packets that were reused instead of re-encoded.
+     */
+    public static void getMetrics(Context ctx) {
+        JSONObject metrics = new JSONObject();
+        metrics.put("lobbies", codeToLobby.size());
+        metrics.put("connections", userToSession.size());
+        metrics.put("platform-threads", ManagementFactory.getThreadMXBean().getThreadCount());
+        metrics.put("encodes-avoided", Lobby.getTotalEncodesAvoided());
+        metrics.put("stale-states-dropped", OutboundQueue.getTotalStatesDropped());
+        metrics.put("slow-disconnects", OutboundQueue.getTotalSlowDisconnects());
+        metrics.put("broadcasts-coalesced", Lobby.getTotalBroadcastsCoalesced());
+        metrics.put("broadcasts-skipped", Lobby.getTotalBroadcastsSkipped());
+        if (journal != null) {
+            JSONObject journalMetrics = new JSONObject();
+            journalMetrics.put("written", journal.getWrittenCount());
+            journalMetrics.put("batches", journal.getBatchCount());
+            journalMetrics.put("pending", journal.getPendingCount());
+            journalMetrics.put("dropped", journal.getDroppedCount());
+            metrics.put("journal", journalMetrics);
+        }
+        if (database != null) {
+            JSONObject databaseMetrics = new JSONObject();
+            databaseMetrics.put("connections-opened", database.getConnectionsOpened());
+            databaseMetrics.put("idle-connections", database.getIdleCount());
+            JSONObject operations = new JSONObject();
+            for (Map.Entry<String, DatabaseGateway.OperationMetrics> entry
+                    : database.getOperationMetrics().entrySet()) {
+                DatabaseGateway.OperationMetrics operation = entry.getValue();
+                JSONObject operationMetrics = new JSONObject();
+                operationMetrics.put("count", operation.getCount());
+                operationMetrics.put("failures", operation.getFailures());
+                operationMetrics.put("retries", operation.getRetries());
+                operationMetrics.put("average-latency-ms", operation.getAverageLatencyMs());
+                operationMetrics.put("max-latency-ms", operation.getMaxLatencyMs());
+                operations.put(entry.getKey(), operationMetrics);
+            }
+            databaseMetrics.put("operations", operations);
+            metrics.put("database", databaseMetrics);
+        }
+        if (snapshots != null) {
+            JSONObject snapshotMetrics = new JSONObject();
+            snapshotMetrics.put("written", snapshots.getWrittenCount());
+            snapshotMetrics.put("failed", snapshots.getFailedCount());
+            snapshotMetrics.put("pending", snapshots.getPendingCount());
+            snapshotMetrics.put("encoded-bytes", snapshots.getEncodedBytes());
+            snapshotMetrics.put("compressed-bytes", snapshots.getCompressedBytes());
+            metrics.put("snapshots", snapshotMetrics);
+        }
+        metrics.put("log-events-dropped", Log.getDroppedEvents());
+        JSONObject commandsRejected = new JSONObject();
+        commandsRejected.put("connection", UserSession.getTotalCommandsRejected());
+        commandsRejected.put("lobby", Lobby.getTotalCommandsRejected());
+        metrics.put("commands-rejected", commandsRejected);
+        JSONObject timers = new JSONObject();
+        timers.put("pending", TimerWheel.SHARED.getPendingCount());
+        timers.put("scheduled", TimerWheel.SHARED.getScheduledCount());
+        timers.put("expired", TimerWheel.SHARED.getExpiredCount());
+        timers.put("cancelled", TimerWheel.SHARED.getCancelledCount());
+        timers.put("average-lateness-ms", TimerWheel.SHARED.getAverageLatenessMs());
+        timers.put("tick-ms", TimerWheel.SHARED.getTickMs());
+        metrics.put("timers", timers);
+        metrics.put("lobbies-awaiting-expiry", lobbyExpiry.size());
+        JSONArray shards = new JSONArray();
+        for (EventLoopGroup.EventLoop loop : EventLoopGroup.shared().getLoops()) {
+            JSONObject shard = new JSONObject();
+            shard.put("queue-depth", loop.getQueueDepth());
+            shard.put("completed-tasks", loop.getCompletedTasks());
+            shard.put("utilization", loop.getUtilization());
+            shards.put(shard);
+        }
+        metrics.put("shards", shards);
+        JSONObject mailboxDepths = new JSONObject();
+        for (Map.Entry<String, Lobby> entry : codeToLobby.entrySet()) {
+            mailboxDepths.put(entry.getKey(), entry.getValue().getMailboxDepth());
+        }
+        metrics.put("mailbox-depth", mailboxDepths);
+        ctx.status(200);
+        ctx.contentType("application/json");
+        ctx.result(metrics.toString());
+    }
+
     /**
      * Determines whether a login is valid.
      * @param ctx the context of the login request.
@@ -363,24 +838,27 @@ public class SecretHitlerServer {
         } else { // the lobby exists
             Lobby lobby = codeToLobby.get(lobbyCode);
 
-            if(lobby.isFull()) {
-                ctx.status(489);
-                ctx.result("The lobby is currently full.");
-            } else if (lobby.isInGame()) {
-                if (lobby.canAddUserDuringGame(name)) {
+            // The lobby state is read in its mailbox, and the request completes asynchronously.
+            ctx.result(lobby.submit(() -> {
+                if(lobby.isFull()) {
+                    ctx.status(489);
+                    return "The lobby is currently full.";
+                } else if (lobby.isInGame()) {
+                    if (lobby.canAddUserDuringGame(name)) {
+                        ctx.status(200);
+                        return "Login request valid (re-joining an existing game).";
+                    } else {
+                        ctx.status(488);
+                        return "The lobby is currently in a game.";
+                    }
+                } else if (lobby.hasUserWithName(name)) { // repeat username.
+                    ctx.status(403);
+                    return "There is already a user with the name '" + name + "' in the lobby.";
+                } else { // unique username found. Return OK.
                     ctx.status(200);
-                    ctx.result("Login request valid (re-joining an existing game).");
-                } else {
-                    ctx.status(488);
-                    ctx.result("The lobby is currently in a game.");
+                    return "Login request valid.";
                 }
-            } else if (lobby.hasUserWithName(name)) { // repeat username.
-                ctx.status(403);
-                ctx.result("There is already a user with the name '" + name + "' in the lobby.");
-            } else { // unique username found. Return OK.
-                ctx.status(200);
-                ctx.result("Login request valid.");
-            }
+            }));
         }
     }
 
@@ -390,20 +868,21 @@ public class SecretHitlerServer {
      */
     public static void createNewLobby(Context ctx) {
         removeInactiveLobbies();
-        hasLobbyChanged = true;
 
         String newCode = generateCode();
-        while(codeToLobby.containsKey(newCode)) {
+        // The rows of removed lobbies are only deleted by the next backup, so their codes are not reused until then.
+        while(codeToLobby.containsKey(newCode) || removedLobbyCodes.contains(newCode)) {
             newCode = generateCode();
         }
 
-        Lobby lobby = new Lobby();
+        Lobby lobby = new Lobby(newCode);
+        journalLobbyEvent(lobby, JOURNAL_LOBBY_CREATED); // no user can reach the lobby yet.
         codeToLobby.put(newCode, lobby); // add a new lobby with the given code.
+        lobbyExpiry.add(newCode, lobby::getTimeout);
 
         ctx.status(200);
         ctx.result(newCode);
-        System.out.println("New lobby created: " + newCode);
-        System.out.println("Available lobbies: " + codeToLobby.keySet());
+        Log.event(Log.Category.LOBBY, "lobby-created", "lobby", newCode, "lobbies", codeToLobby.size());
     }
 
     /**
@@ -431,17 +910,20 @@ public class SecretHitlerServer {
      * @requires the context must have the following parameters:
      *          {@code lobby}: a String representing the lobby code.
      *          {@code name}: a String username. Cannot already exist in the given lobby.
+     *          Optionally, {@code delta=true} to receive state patches, or {@code protocol=binary} to use the
+     *          binary protocol ({@code BinaryProtocol}).
      * @effects Closes the websocket session if:
      *              400 if the {@code lobby} or {@code name} parameters are missing.
      *              404 if there is no lobby with the given code
      *              403 the username is invalid (there is already another user with that name in the lobby).
      *              488 if the lobby is currently in a game and the user is not a rejoining player.
      *              489 if the lobby is full.
-     *          Otherwise, connects the user to the lobby.
+     *          Otherwise, connects the user to the lobby. The checks that depend on the state of the lobby and the
+     *          connection itself run in the mailbox of the lobby.
      */
     private static void onWebsocketConnect(WsConnectContext ctx) {
         if (ctx.queryParam(PARAM_LOBBY) == null || ctx.queryParam(PARAM_NAME) == null) {
-            System.out.println("A websocket request was missing a parameter and was disconnected.");
+            Log.event(Log.Category.CONNECTION, "connect", "result", "FAILED", "reason", "missing parameter");
             ctx.session.close(400, "Must have the '" + PARAM_LOBBY + "' and '" + PARAM_NAME + "' parameters.");
             return;
         }
@@ -451,36 +933,66 @@ public class SecretHitlerServer {
         String name = ctx.queryParam(PARAM_NAME);
 
         if (code == null || name == null || name.isEmpty() || name.isBlank()) {
-            System.out.println("FAILED (Lobby or name is empty/null)");
+            Log.event(Log.Category.CONNECTION, "connect", "lobby", code, "user", name,
+                    "result", "FAILED", "reason", "lobby or name is empty");
             ctx.session.close(400, "Lobby and name must be specified.");
+            return;
         }
 
-        System.out.print("Attempting to connect user '" + name + "' to lobby '" + code + "': ");
         if (!codeToLobby.containsKey(code)) { // the lobby does not exist.
-            System.out.println("FAILED (The lobby does not exist)");
+            logConnectFailure(code, name, "lobby does not exist");
             ctx.session.close(404, "The lobby '" + code + "' does not exist.");
             return;
         }
 
         Lobby lobby = codeToLobby.get(code);
+        // The session is registered immediately, so that it is found if the connection closes before the user is
+        // added to the lobby.
+        UserSession session = new UserSession(ctx, code, lobby, name);
+        if (BinaryProtocol.PROTOCOL_BINARY.equals(ctx.queryParam(PARAM_PROTOCOL))) {
+            session.enableBinaryUpdates();
+        } else if (Boolean.parseBoolean(ctx.queryParam(PARAM_DELTA))) {
+            session.enableDeltaUpdates();
+        }
+        userToSession.put(ctx, session);
+        lobby.execute(() -> connectUser(session));
+    }
+
+    /**
+     * Adds a newly connected user to a lobby. Runs in the mailbox of the lobby.
+     * @see #onWebsocketConnect(WsConnectContext)
+     */
+    private static void connectUser(UserSession session) {
+        WsContext ctx = session.getContext();
+        Lobby lobby = session.getLobby();
+        String code = session.getLobbyCode();
+        String name = session.getUsername();
+        if (userToSession.get(ctx) != session) { // the connection closed before it was added.
+            return;
+        }
         if (lobby.hasUserWithName(name)) { // duplicate names not allowed
-            System.out.println("FAILED (Repeat username)");
-            ctx.session.close(403, "A user with the name " + name + " is already in the lobby.");
+            userToSession.remove(ctx);
+            logConnectFailure(code, name, "repeat username");
+            session.disconnect(403, "A user with the name " + name + " is already in the lobby.");
             return;
         } else if (lobby.isFull()) {
-            System.out.println("FAILED (Lobby is full)");
-            ctx.session.close(489, "The lobby " + code + " is currently full.");
+            userToSession.remove(ctx);
+            logConnectFailure(code, name, "lobby is full");
+            session.disconnect(489, "The lobby " + code + " is currently full.");
             return;
         } else if (lobby.isInGame() && !lobby.canAddUserDuringGame(name)) {
-            System.out.println("FAILED (Lobby in game)");
-            ctx.session.close(488, "The lobby " + code + " is currently in a game..");
+            userToSession.remove(ctx);
+            logConnectFailure(code, name, "lobby in game");
+            session.disconnect(488, "The lobby " + code + " is currently in a game..");
             return;
         }
-        System.out.println("SUCCESS");
-        lobby.addUser(ctx, name);
-        userToLobby.put(ctx, lobby); // keep track of which lobby this connection is in.
+        Log.event(Log.Category.CONNECTION, "connect", "lobby", code, "user", name, "result", "SUCCESS");
+        lobby.addUser(session);
         lobby.updateAllUsers();
-        hasLobbyChanged = true;
+    }
+
+    private static void logConnectFailure(String code, String name, String reason) {
+        Log.event(Log.Category.CONNECTION, "connect", "lobby", code, "user", name, "result", "FAILED", "reason", reason);
     }
 
 
@@ -492,192 +1004,500 @@ public class SecretHitlerServer {
      *          {@code name}: a String username. Cannot already exist in the given lobby.
      *          {@code command}: a String command.
      * @modifies this
-     * @effects Ends the websocket command with code 400 if the specified lobby does not exist, the user is not allowed
-     *          to make this action (usually because they are not a president/chancellor), if a required parameter is
-     *          missing, or the command cannot be executed in this state.
+     * @effects Ends the websocket command with code 400 if the specified lobby does not exist or if a required
+     *          parameter is missing. If the user is not allowed to make this action (usually because they are not a
+     *          president/chancellor) or the command cannot be executed in this state, sends a {@code PACKET_ERROR}
+     *          packet with the code of the RuleViolation and keeps the connection open.
      *          <p>
      *          Updates the game state according to the specified command and updates every other connected user
      *          with the new state.
      */
     private static void onWebSocketMessage(WsMessageContext ctx) {
-        // Parse message to JSON object.
-        JSONObject message = new JSONObject(ctx.message());
-
-        if (message.getString(PARAM_LOBBY) == null
-                || message.getString(PARAM_NAME) == null
-                || message.getString(PARAM_COMMAND) == null) {
-            System.out.println("Message request failed: missing a parameter.");
-            ctx.session.close(400, "A required parameter is missing.");
+        UserSession session = userToSession.get(ctx);
+        if (session == null) {
+            Log.event(Log.Category.COMMAND, "command", "result", "FAILED", "reason", "no session");
+            ctx.session.close(403, "The user is not in a lobby.");
+            return;
+        }
+        if (ctx.message().contains(PING_COMMAND_PATTERN)) {
+            answerPing(session);
+            return;
+        }
+        if (!tryAcquireCommand(session)) {
             return;
         }
 
-        String name = message.getString(PARAM_NAME);
-        String lobbyCode = message.getString(PARAM_LOBBY);
+        CommandParser.Envelope message;
+        try {
+            message = CommandParser.parse(ctx.message());
+        } catch (IllegalArgumentException e) {
+            Log.event(Log.Category.COMMAND, "command", "result", "FAILED", "reason", e.getMessage());
+            ctx.session.close(400, e.getMessage());
+            return;
+        }
 
-        String log_message = "Received a message from user '" + name + "' in lobby '" + lobbyCode + "' (" + ctx.message() + "): ";
-        int log_length = log_message.length();
-        System.out.print(log_message);
+        Command command = message.getCommand();
+        if (!session.getLobbyCode().equals(message.getLobby()) || !session.getUsername().equals(message.getName())) {
+            // The parameters must match the ones the user connected with.
+            logCommand(command, message.getLobby(), message.getName(), "FAILED (Does not match the connection)");
+            ctx.session.close(403, "The user is not in the lobby " + message.getLobby() + ".");
+            return;
+        }
+        session.getLobby().execute(() -> runCommand(session, command));
+    }
 
-        if (!codeToLobby.containsKey(lobbyCode)) {
-            System.out.println("FAILED (Lobby requested does not exist)");
-            ctx.session.close(404, "The lobby does not exist.");
+    /**
+     * Parses a binary websocket message sent from the user.
+     * @param ctx the WsBinaryMessageContext of the websocket.
+     * @requires the user connected with {@code protocol=binary}. The frame must be a command frame as described in
+     *           {@code BinaryProtocol}. The lobby and name are taken from the connection parameters.
+     * @modifies this
+     * @effects Ends the websocket connection with code 400 if the frame cannot be decoded, or 403 if the user is not in
+     *          a lobby. Otherwise, handles the command in the same way as {@code onWebSocketMessage}.
+     */
+    private static void onWebSocketBinaryMessage(WsBinaryMessageContext ctx) {
+        UserSession session = userToSession.get(ctx);
+        if (session == null) {
+            ctx.session.close(403, "The user is not in a lobby.");
             return;
         }
 
-        Lobby lobby = codeToLobby.get(lobbyCode);
+        if (ctx.length() == 1 && ctx.data()[ctx.offset()] == BINARY_PING_CODE) {
+            answerPing(session);
+            return;
+        }
+        if (!tryAcquireCommand(session)) {
+            return;
+        }
+        Lobby lobby = session.getLobby();
 
-        synchronized (lobby) {
+        // Seats are resolved against the current game, so the frame is decoded in the mailbox of the lobby.
+        ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(ctx.data(), ctx.offset(), ctx.offset() + ctx.length()));
+        lobby.execute(() -> {
+            Command command;
+            try {
+                command = BinaryProtocol.decodeCommand(frame, lobby.isInGame() ? lobby.game() : null);
+            } catch (IllegalArgumentException e) {
+                Log.event(Log.Category.COMMAND, "binary-command", "result", "FAILED", "reason", e.getMessage());
+                session.disconnect(400, e.getMessage());
+                return;
+            }
+            runCommand(session, command);
+        });
+    }
 
-            if (!lobby.hasUser(ctx, name)) {
-                System.out.println("FAILED (Lobby does not have the user)");
-                ctx.session.close(403, "The user is not in the lobby " + lobbyCode + ".");
+    /**
+     * Answers a ping without parsing it or locking the lobby.
+     * @param session the session of the user that sent a ping.
+     * @modifies this
+     * @effects if the command limit of the connection allows it, resets the timeout of the lobby of the user and
+     *          queues a pong packet. Otherwise, the ping is ignored, so that a flood of pings does not queue a packet
+     *          for each of them. Pings do not count towards the limit of the lobby.
+     */
+    private static void answerPing(UserSession session) {
+        if (!session.tryAcquireCommand()) {
+            return;
+        }
+        session.getLobby().resetTimeout();
+        sendPacket(session, PACKET_PONG);
+    }
+
+    /**
+     * Checks the command rate limits of a user and their lobby, before the command is parsed or queued.
+     * @param session the session of the user that sent a command.
+     * @modifies this
+     * @effects if either limit is exceeded, queues a {@code PACKET_RATE_LIMITED} packet for the user.
+     * @return true iff the command is allowed to run.
+     */
+    private static boolean tryAcquireCommand(UserSession session) {
+        // The lobby limit is only checked once the connection limit passes, so one flooding user does not use up
+        // the limit of the rest of the lobby.
+        if (session.tryAcquireCommand() && session.getLobby().tryAcquireCommand()) {
+            return true;
+        }
+        sendPacket(session, PACKET_RATE_LIMITED);
+        return false;
+    }
+
+    /**
+     * Tells a user that their command broke a rule and was not executed.
+     * @param session the session of the user.
+     * @param violation the rule that the command broke.
+     * @effects queues a {@code PACKET_ERROR} packet in the protocol used by the connection.
+     */
+    private static void sendError(UserSession session, RuleViolation violation) {
+        if (session.isBinary()) {
+            session.send(BinaryProtocol.encodeError(violation));
+        } else {
+            session.send(ERROR_PACKETS[violation.ordinal()]);
+        }
+    }
+
+    /**
+     * Sends a packet without any content to a user.
+     * @param session the session of the user.
+     * @param packetType the packet type ({@code PACKET_OK}, {@code PACKET_PONG} or {@code PACKET_RATE_LIMITED}).
+     * @effects queues the packet in the protocol used by the connection.
+     */
+    private static void sendPacket(UserSession session, String packetType) {
+        if (session.isBinary()) {
+            session.send(BinaryProtocol.encodeEmptyPacket(packetType));
+            return;
+        }
+        switch (packetType) {
+            case PACKET_PONG:
+                session.send(PONG_PACKET);
+                break;
+            case PACKET_RATE_LIMITED:
+                session.send(RATE_LIMITED_PACKET);
+                break;
+            default:
+                session.send(OK_PACKET);
+        }
+    }
+
+    /**
+     * Runs a command from a user. Runs in the mailbox of the lobby.
+     * @effects see {@code onWebSocketMessage}. The result is logged in the {@code COMMAND} category ({@code PING}
+     *          for pings).
+     */
+    private static void runCommand(UserSession session, Command command) {
+        Lobby lobby = session.getLobby();
+        String lobbyCode = session.getLobbyCode();
+        String name = session.getUsername();
+        if (!session.isInLobby()) {
+            logCommand(command, lobbyCode, name, "FAILED (Lobby does not have the user)");
+            session.disconnect(403, "The user is not in the lobby " + lobbyCode + ".");
+            return;
+        }
+
+        lobby.resetTimeout();
+
+        int typeIndex = command.getType().ordinal();
+        try {
+            RuleViolation violation = COMMAND_CHECKS[typeIndex].check(session, lobby, name, command);
+            if (violation != null) {
+                // An expected player mistake: nothing changed, so the connection stays open and no update is sent.
+                logCommand(command, lobbyCode, name, "REJECTED (" + violation.getCode() + ")");
+                sendError(session, violation);
                 return;
             }
+            COMMAND_HANDLERS[typeIndex].handle(session, lobby, name, command);
+            journalCommand(session, command);
 
-            lobby.resetTimeout();
+            if (command.getType() != Command.Type.PING) {
+                sendPacket(session, PACKET_OK);
+            }
+            logCommand(command, lobbyCode, name, "SUCCESS");
 
-            boolean updateUsers = true; // this flag can be disabled by certain commands.
-            boolean sendOKMessage = true;
-            try {
-                switch (message.getString(PARAM_COMMAND)) {
-                    case COMMAND_PING:
-                        sendOKMessage = false;
-                        updateUsers = false;
-                        // Erase the previous line with spaces and \r
-                        System.out.print("\r" + (' ' * log_length));
-                        System.out.print("\r");
-                        JSONObject msg = new JSONObject();
-                        msg.put(PARAM_PACKET_TYPE, PACKET_PONG);
-                        ctx.send(msg.toString());
-                        break;
-
-                    case COMMAND_START_GAME: // Starts the game.
-                        lobby.startNewGame();
-                        break;
-
-                    case COMMAND_GET_STATE: // Requests the updated state of the game.
-                        lobby.updateUser(ctx);
-                        break;
-
-                    case COMMAND_NOMINATE_CHANCELLOR: // params: PARAM_TARGET (String)
-                        verifyIsPresident(name, lobby);
-                        lobby.game().nominateChancellor(message.getString(PARAM_TARGET));
-                        break;
-
-                    case COMMAND_REGISTER_VOTE: // params: PARAM_VOTE (boolean)
-                        boolean vote = message.getBoolean(PARAM_VOTE);
-                        lobby.game().registerVote(name, vote);
-                        break;
-
-                    case COMMAND_REGISTER_PRESIDENT_CHOICE: // params: PARAM_CHOICE (int)
-                        verifyIsPresident(name, lobby);
-                        int discard = message.getInt(PARAM_CHOICE);
-                        lobby.game().presidentDiscardPolicy(discard);
-                        break;
-
-                    case COMMAND_REGISTER_CHANCELLOR_CHOICE: // params: PARAM_CHOICE (int)
-                        verifyIsChancellor(name, lobby);
-                        int enact = message.getInt(PARAM_CHOICE);
-                        lobby.game().chancellorEnactPolicy(enact);
-                        break;
-
-                    case COMMAND_REGISTER_CHANCELLOR_VETO:
-                        verifyIsChancellor(name, lobby);
-                        lobby.game().chancellorVeto();
-                        break;
-
-                    case COMMAND_REGISTER_PRESIDENT_VETO: // params: PARAM_VETO (boolean)
-                        verifyIsPresident(name, lobby);
-                        boolean veto = message.getBoolean(PARAM_VETO);
-                        lobby.game().presidentialVeto(veto);
-                        break;
-
-                    case COMMAND_REGISTER_EXECUTION: // params: PARAM_TARGET (String)
-                        verifyIsPresident(name, lobby);
-                        lobby.game().executePlayer(message.getString(PARAM_TARGET));
-                        break;
-
-                    case COMMAND_REGISTER_SPECIAL_ELECTION: // params: PARAM_TARGET (String)
-                        verifyIsPresident(name, lobby);
-                        lobby.game().electNextPresident(message.getString(PARAM_TARGET));
-                        break;
-
-                    case COMMAND_GET_INVESTIGATION: // params: PARAM_TARGET (String)
-                        verifyIsPresident(name, lobby);
-                        Identity id = lobby.game().investigatePlayer(message.getString(PARAM_TARGET));
-                        // Construct and send a JSONObject.
-                        JSONObject obj = new JSONObject();
-                        obj.put(PARAM_PACKET_TYPE, PACKET_INVESTIGATION);
-                        if (id == Identity.FASCIST) {
-                            obj.put(PARAM_INVESTIGATION, FASCIST);
-                        } else {
-                            obj.put(PARAM_INVESTIGATION, LIBERAL);
-                        }
-                        ctx.send(obj.toString());
-                        break;
-
-                    case COMMAND_REGISTER_PEEK:
-                        verifyIsPresident(name, lobby);
-                        lobby.game().endPeek();
-                        break;
-
-                    case COMMAND_END_TERM:
-                        verifyIsPresident(name, lobby);
-                        lobby.game().endPresidentialTerm();
-                        break;
-
-                    case COMMAND_SELECT_ICON:
-                        String iconId = message.getString(PARAM_ICON);
-                        lobby.trySetUserIcon(iconId, ctx);
-                        break;
-
-                    default: //This is an invalid command.
-                        throw new RuntimeException("FAILED (unrecognized command " + message.get(PARAM_COMMAND) + ")");
-                }  // End switch
-
-                if (sendOKMessage) {
-                    System.out.println("SUCCESS");
-                    JSONObject msg = new JSONObject();
-                    msg.put(PARAM_PACKET_TYPE, PACKET_OK);
-                    ctx.send(msg.toString());
+        } catch (RuntimeException e) {
+            logCommand(command, lobbyCode, name, "FAILED (" + e.toString() + ")");
+            session.disconnect(400, "RuntimeException:" + e.toString());
+        }
+        // Only sent if the command changed the lobby or the game.
+        lobby.updateAllUsers();
+    }
+
+    /**
+     * Records a command that changed a lobby in the journal, so that it can be replayed after a crash.
+     * @param session the session of the user that sent the command.
+     * @param command the command, which was executed successfully. Runs in the mailbox of the lobby.
+     * @effects if the server has a journal and the command changed the lobby, queues an entry for it. The entry is
+     *          the command message, and for {@code start-game} also the order of the players and the seed of the game.
+     */
+    private static void journalCommand(UserSession session, Command command) {
+        if (journal == null) {
+            return;
+        }
+        Lobby lobby = session.getLobby();
+        String name = session.getUsername();
+        String data = CommandParser.format(session.getLobbyCode(), name, command);
+        switch (command.getType()) {
+            case PING:
+            case GET_STATE:
+                return; // does not change the lobby.
+            case SELECT_ICON:
+                if (!((Command.SelectIcon) command).getIcon().equals(lobby.getIcon(name))) {
+                    return; // the icon was already taken.
+                }
+                break;
+            case START_GAME:
+                // The order of the players and the roles are random, so the result is recorded instead.
+                JSONArray players = new JSONArray();
+                for (Player player : lobby.game().getPlayerList()) {
+                    players.put(player.getUsername());
                 }
+                data = new JSONObject(data)
+                        .put(JOURNAL_PLAYERS, players)
+                        .put(JOURNAL_SEED, lobby.game().getSeed())
+                        .toString();
+                break;
+            default:
+        }
+        journal.append(session.getLobbyCode(), lobby.nextJournalSequence(), data);
+    }
 
-            } catch (NullPointerException e) {
-                System.out.println("FAILED (" + e.toString() + ")");
-                ctx.session.close(400, "NullPointerException:" + e.toString());
-            } catch (RuntimeException e) {
-                System.out.println("FAILED (" + e.toString() + ")");
-                ctx.session.close(400, "RuntimeException:" + e.toString());
+    /**
+     * Records that a lobby was created or removed in the journal, so that replaying the journal after a crash only
+     * creates lobbies that still existed.
+     * @param lobby the lobby. Runs in the mailbox of the lobby, or before any user can reach it.
+     * @param event {@code JOURNAL_LOBBY_CREATED} or {@code JOURNAL_LOBBY_REMOVED}.
+     * @effects if the server has a journal, queues an entry for the event.
+     */
+    private static void journalLobbyEvent(Lobby lobby, String event) {
+        if (journal == null) {
+            return;
+        }
+        String data = new JSONObject()
+                .put(PARAM_LOBBY, lobby.getCode())
+                .put(JOURNAL_EVENT, event)
+                .toString();
+        journal.append(lobby.getCode(), lobby.nextJournalSequence(), data);
+    }
+
+    /**
+     * Applies a journal entry to a lobby that was loaded from a backup.
+     * @param lobby the lobby.
+     * @param sequence the sequence number of the entry.
+     * @param data the entry, as written by {@code journalCommand}.
+     * @throws RuntimeException if the entry could not be parsed or applied.
+     * @modifies lobby
+     * @effects changes the lobby in the same way as the command of the entry did.
+     */
+    private static void replayJournalEntry(Lobby lobby, long sequence, String data) {
+        CommandParser.Envelope message = CommandParser.parse(data);
+        String name = message.getName();
+        Command command = message.getCommand();
+        lobby.replayJournalEntry(sequence, () -> {
+            switch (command.getType()) {
+                case START_GAME:
+                    JSONObject entry = new JSONObject(data);
+                    List<String> players = new ArrayList<>();
+                    for (Object player : entry.getJSONArray(JOURNAL_PLAYERS)) {
+                        players.add((String) player);
+                    }
+                    lobby.restoreGame(players, entry.getLong(JOURNAL_SEED));
+                    break;
+                case SELECT_ICON:
+                    lobby.restoreIcon(name, ((Command.SelectIcon) command).getIcon());
+                    break;
+                case NOMINATE_CHANCELLOR:
+                    lobby.game().nominateChancellor(((Command.NominateChancellor) command).getTarget());
+                    break;
+                case REGISTER_VOTE:
+                    lobby.game().registerVote(name, ((Command.RegisterVote) command).getVote());
+                    break;
+                case REGISTER_PRESIDENT_CHOICE:
+                    lobby.game().presidentDiscardPolicy(((Command.RegisterPresidentChoice) command).getChoice());
+                    break;
+                case REGISTER_CHANCELLOR_CHOICE:
+                    lobby.game().chancellorEnactPolicy(((Command.RegisterChancellorChoice) command).getChoice());
+                    break;
+                case CHANCELLOR_VETO:
+                    lobby.game().chancellorVeto();
+                    break;
+                case PRESIDENT_VETO:
+                    lobby.game().presidentialVeto(((Command.PresidentVeto) command).getVeto());
+                    break;
+                case REGISTER_EXECUTION:
+                    lobby.game().executePlayer(((Command.RegisterExecution) command).getTarget());
+                    break;
+                case REGISTER_SPECIAL_ELECTION:
+                    lobby.game().electNextPresident(((Command.RegisterSpecialElection) command).getTarget());
+                    break;
+                case GET_INVESTIGATION:
+                    lobby.game().investigatePlayer(((Command.GetInvestigation) command).getTarget());
+                    break;
+                case REGISTER_PEEK:
+                    lobby.game().endPeek();
+                    break;
+                case END_TERM:
+                    lobby.game().endPresidentialTerm();
+                    break;
+                default:
+                    throw new IllegalArgumentException("The command " + command + " is not journaled.");
             }
-            if (updateUsers) {
-                lobby.updateAllUsers();
+        });
+    }
+
+    private static void logCommand(Command command, String lobbyCode, String name, String result) {
+        Log.Category category = command.getType() == Command.Type.PING ? Log.Category.PING : Log.Category.COMMAND;
+        Log.event(category, "command", "lobby", lobbyCode, "user", name, "command", command, "result", result);
+    }
+
+    /**
+     * Executes one type of command for a user.
+     */
+    private interface CommandHandler {
+        /**
+         * @param session the session of the user.
+         * @param lobby the lobby of the user. The handler runs in the mailbox of the lobby.
+         * @param name the username of the user.
+         * @param command the command, which has the type the handler is registered for.
+         * @requires the check registered for the command returned null.
+         * @throws RuntimeException if the command cannot be executed.
+         */
+        void handle(UserSession session, Lobby lobby, String name, Command command);
+    }
+
+    /**
+     * Checks whether a command is allowed by the rules, before it is executed. Must not change the lobby.
+     */
+    private interface CommandCheck {
+        /**
+         * @param session the session of the user.
+         * @param lobby the lobby of the user. The check runs in the mailbox of the lobby.
+         * @param name the username of the user.
+         * @param command the command, which has the type the check is registered for.
+         * @return the rule that the command breaks, or null if it can be executed.
+         */
+        RuleViolation check(UserSession session, Lobby lobby, String name, Command command);
+    }
+
+    private static final CommandCheck ALWAYS_ALLOWED = (session, lobby, name, command) -> null;
+
+    // The check and handler for each command, indexed by the ordinal of its Command.Type.
+    private static final CommandCheck[] COMMAND_CHECKS = new CommandCheck[Command.Type.values().length];
+    private static final CommandHandler[] COMMAND_HANDLERS = new CommandHandler[Command.Type.values().length];
+    static {
+        registerHandler(Command.Type.PING, ALWAYS_ALLOWED,
+                (session, lobby, name, command) -> sendPacket(session, PACKET_PONG));
+
+        registerHandler(Command.Type.START_GAME,
+                (session, lobby, name, command) -> lobby.checkStartNewGame(),
+                (session, lobby, name, command) -> lobby.startNewGame());
+
+        // Requests the updated state of the game.
+        registerHandler(Command.Type.GET_STATE, ALWAYS_ALLOWED,
+                (session, lobby, name, command) -> lobby.updateUser(session));
+
+        registerHandler(Command.Type.NOMINATE_CHANCELLOR,
+                (session, lobby, name, command) -> checkPresident(name, lobby,
+                        game -> game.checkNominateChancellor(((Command.NominateChancellor) command).getTarget())),
+                (session, lobby, name, command) ->
+                        lobby.game().nominateChancellor(((Command.NominateChancellor) command).getTarget()));
+
+        registerHandler(Command.Type.REGISTER_VOTE,
+                (session, lobby, name, command) -> checkInGame(lobby, game -> game.checkRegisterVote(name)),
+                (session, lobby, name, command) ->
+                        lobby.game().registerVote(name, ((Command.RegisterVote) command).getVote()));
+
+        registerHandler(Command.Type.REGISTER_PRESIDENT_CHOICE,
+                (session, lobby, name, command) -> checkPresident(name, lobby, game ->
+                        game.checkPresidentDiscardPolicy(((Command.RegisterPresidentChoice) command).getChoice())),
+                (session, lobby, name, command) ->
+                        lobby.game().presidentDiscardPolicy(((Command.RegisterPresidentChoice) command).getChoice()));
+
+        registerHandler(Command.Type.REGISTER_CHANCELLOR_CHOICE,
+                (session, lobby, name, command) -> checkChancellor(name, lobby, game ->
+                        game.checkChancellorEnactPolicy(((Command.RegisterChancellorChoice) command).getChoice())),
+                (session, lobby, name, command) ->
+                        lobby.game().chancellorEnactPolicy(((Command.RegisterChancellorChoice) command).getChoice()));
+
+        registerHandler(Command.Type.CHANCELLOR_VETO,
+                (session, lobby, name, command) -> checkChancellor(name, lobby, SecretHitlerGame::checkChancellorVeto),
+                (session, lobby, name, command) -> lobby.game().chancellorVeto());
+
+        registerHandler(Command.Type.PRESIDENT_VETO,
+                (session, lobby, name, command) -> checkPresident(name, lobby, SecretHitlerGame::checkPresidentialVeto),
+                (session, lobby, name, command) ->
+                        lobby.game().presidentialVeto(((Command.PresidentVeto) command).getVeto()));
+
+        registerHandler(Command.Type.REGISTER_EXECUTION,
+                (session, lobby, name, command) -> checkPresident(name, lobby,
+                        game -> game.checkExecutePlayer(((Command.RegisterExecution) command).getTarget())),
+                (session, lobby, name, command) ->
+                        lobby.game().executePlayer(((Command.RegisterExecution) command).getTarget()));
+
+        registerHandler(Command.Type.REGISTER_SPECIAL_ELECTION,
+                (session, lobby, name, command) -> checkPresident(name, lobby,
+                        game -> game.checkElectNextPresident(((Command.RegisterSpecialElection) command).getTarget())),
+                (session, lobby, name, command) ->
+                        lobby.game().electNextPresident(((Command.RegisterSpecialElection) command).getTarget()));
+
+        registerHandler(Command.Type.GET_INVESTIGATION,
+                (session, lobby, name, command) -> checkPresident(name, lobby,
+                        game -> game.checkInvestigatePlayer(((Command.GetInvestigation) command).getTarget())),
+                (session, lobby, name, command) -> {
+            Identity id = lobby.game().investigatePlayer(((Command.GetInvestigation) command).getTarget());
+            if (session.isBinary()) {
+                session.send(BinaryProtocol.encodeInvestigation(id == Identity.FASCIST));
+                return;
+            }
+            // Construct and send a JSONObject.
+            JSONObject obj = new JSONObject();
+            obj.put(PARAM_PACKET_TYPE, PACKET_INVESTIGATION);
+            if (id == Identity.FASCIST) {
+                obj.put(PARAM_INVESTIGATION, FASCIST);
+            } else {
+                obj.put(PARAM_INVESTIGATION, LIBERAL);
+            }
+            session.send(obj.toString());
+        });
+
+        registerHandler(Command.Type.REGISTER_PEEK,
+                (session, lobby, name, command) -> checkPresident(name, lobby, SecretHitlerGame::checkEndPeek),
+                (session, lobby, name, command) -> lobby.game().endPeek());
+
+        registerHandler(Command.Type.END_TERM,
+                (session, lobby, name, command) ->
+                        checkPresident(name, lobby, SecretHitlerGame::checkEndPresidentialTerm),
+                (session, lobby, name, command) -> lobby.game().endPresidentialTerm());
+
+        registerHandler(Command.Type.SELECT_ICON, ALWAYS_ALLOWED, (session, lobby, name, command) ->
+                lobby.trySetUserIcon(((Command.SelectIcon) command).getIcon(), session));
+
+        for (Command.Type type : Command.Type.values()) {
+            if (COMMAND_HANDLERS[type.ordinal()] == null) {
+                throw new IllegalStateException("No handler is registered for the command " + type + ".");
             }
         }
-        hasLobbyChanged = true;
+    }
+
+    private static void registerHandler(Command.Type type, CommandCheck check, CommandHandler handler) {
+        COMMAND_CHECKS[type.ordinal()] = check;
+        COMMAND_HANDLERS[type.ordinal()] = handler;
     }
 
     /**
-     * Verifies that the user is the president.
-     * @param name String name of the user.
+     * Checks that the lobby is in a game, then checks the action in the game.
      * @param lobby the Lobby that the game is in.
-     * @throws RuntimeException if the user is not the president.
+     * @param gameCheck checks the action in the current game of the lobby.
+     * @return {@code RuleViolation.NO_GAME} if the lobby is not in a game, otherwise the result of {@code gameCheck}.
      */
-    private static void verifyIsPresident(String name, Lobby lobby) {
-        if (!lobby.game().getCurrentPresident().equals(name)) {
-            throw new RuntimeException("The player '" + name + "' is not currently president.");
+    private static RuleViolation checkInGame(Lobby lobby, Function<SecretHitlerGame, RuleViolation> gameCheck) {
+        if (!lobby.isInGame()) {
+            return RuleViolation.NO_GAME;
         }
+        return gameCheck.apply(lobby.game());
     }
 
     /**
-     * Verifies that the user is the chancellor.
+     * Checks that the user is the president, then checks the action in the game.
      * @param name String name of the user.
      * @param lobby the Lobby that the game is in.
-     * @throws RuntimeException if the user is not the chancellor.
+     * @param gameCheck checks the action in the current game of the lobby.
+     * @return {@code RuleViolation.NO_GAME} if the lobby is not in a game, {@code RuleViolation.NOT_PRESIDENT} if the
+     *         user is not the president, otherwise the result of {@code gameCheck}.
      */
-    private static void verifyIsChancellor(String name, Lobby lobby) {
-        if (!lobby.game().getCurrentChancellor().equals(name)) {
-            throw new RuntimeException("The player '" + name + "' is not currently chancellor.");
-        }
+    private static RuleViolation checkPresident(String name, Lobby lobby,
+                                                Function<SecretHitlerGame, RuleViolation> gameCheck) {
+        return checkInGame(lobby, game -> name.equals(game.getCurrentPresident())
+                ? gameCheck.apply(game) : RuleViolation.NOT_PRESIDENT);
+    }
+
+    /**
+     * Checks that the user is the chancellor, then checks the action in the game.
+     * @param name String name of the user.
+     * @param lobby the Lobby that the game is in.
+     * @param gameCheck checks the action in the current game of the lobby.
+     * @return {@code RuleViolation.NO_GAME} if the lobby is not in a game, {@code RuleViolation.NOT_CHANCELLOR} if the
+     *         user is not the chancellor, otherwise the result of {@code gameCheck}.
+     */
+    private static RuleViolation checkChancellor(String name, Lobby lobby,
+                                                 Function<SecretHitlerGame, RuleViolation> gameCheck) {
+        return checkInGame(lobby, game -> name.equals(game.getCurrentChancellor())
+                ? gameCheck.apply(game) : RuleViolation.NOT_CHANCELLOR);
     }
 
     /**
@@ -687,16 +1507,17 @@ public class SecretHitlerServer {
      * @effects Removes the user from any connected lobbies.
      */
     private static void onWebSocketClose(WsCloseContext ctx) {
-        if (userToLobby.containsKey(ctx)) {
-            Lobby lobby = userToLobby.get(ctx);
-            synchronized (lobby) {
-                if (lobby.hasUser(ctx)) {
-                    lobby.removeUser(ctx);
-                    lobby.updateAllUsers();
-                }
-            }
-            userToLobby.remove(ctx);
+        UserSession session = userToSession.remove(ctx);
+        if (session == null) {
+            return;
         }
+        Lobby lobby = session.getLobby();
+        lobby.execute(() -> {
+            if (session.isInLobby()) {
+                lobby.removeUser(session);
+                lobby.updateAllUsers();
+            }
+        });
     }
 
     //</editor-fold>
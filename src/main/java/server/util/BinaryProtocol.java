@@ -0,0 +1,405 @@
+package server.util;
+
+import game.GameState;
+import game.RuleViolation;
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+import game.datastructures.Policy;
+import server.SecretHitlerServer;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes packets and decodes commands for the compact binary websocket protocol.
+ *
+ * Clients select the protocol by connecting with the {@code protocol=binary} parameter. Players are referred to by
+ * their seat (their index in the player order) instead of their username, enums are sent as ordinals, and boolean
+ * player flags are packed into bit masks where bit i belongs to seat i.
+ *
+ * Primitive types: u8 and u16 are unsigned big-endian integers. varint is an unsigned LEB128 integer.
+ * string is a varint byte length followed by UTF-8 bytes. A seat of {@code NO_SEAT} means no player.
+ *
+ * <p>Server to client, the first byte of every frame is the packet type:
+ * <p>- {@code TYPE_LOBBY}: varint version, u8 user count, then (string username, string icon) for each user.
+ * <p>- {@code TYPE_GAME}: varint version, u8 player count n, n strings for the player order,
+ *      u8 state, u8 last-state (GameState ordinals), u8 seats for president, chancellor, last-president,
+ *      last-chancellor and target-user, u8 election-tracker, u8 flags ({@code FLAG_*}), u8 draw-size,
+ *      u8 discard-size, u8 fascist-policies, u8 liberal-policies, u16 alive mask, u16 investigated mask,
+ *      u16 voted mask, u16 voted-yes mask, ceil(n / 4) bytes of identities (2 bits per seat, lowest bits first,
+ *      see {@code ID_*}), u8 role ({@code ID_*}), u8 choices kind ({@code CHOICES_*}), then if the kind is not
+ *      {@code CHOICES_NONE}: u8 count and u8 policies (bit i is the Policy.Type ordinal of policy i),
+ *      and finally n strings for the icon of each seat.
+ * <p>- {@code TYPE_OK}, {@code TYPE_PONG}, {@code TYPE_RATE_LIMITED}: no content.
+ * <p>- {@code TYPE_INVESTIGATION}: u8 party ({@code ID_*}).
+ * <p>- {@code TYPE_ERROR}: u8 violation (RuleViolation ordinal).
+ *
+ * <p>Client to server, the first byte of every frame is the index of the command in {@code COMMANDS}, followed by
+ * its parameters: u8 seat for {@code target-user}, u8 0/1 for {@code vote} and {@code veto}, u8 for {@code choice},
+ * and string for {@code icon}. The lobby and name are taken from the connection.
+ */
+public class BinaryProtocol {
+
+    public static final String PROTOCOL_BINARY = "binary";
+
+    public static final byte TYPE_LOBBY = 0;
+    public static final byte TYPE_GAME = 1;
+    public static final byte TYPE_OK = 2;
+    public static final byte TYPE_PONG = 3;
+    public static final byte TYPE_INVESTIGATION = 4;
+    public static final byte TYPE_RATE_LIMITED = 5;
+    public static final byte TYPE_ERROR = 6;
+
+    public static final int NO_SEAT = 0xFF;
+
+    public static final int FLAG_ELECTION_TRACKER_ADVANCED = 1;
+    public static final int FLAG_VETO_OCCURRED = 1 << 1;
+
+    public static final int ID_HIDDEN = 0;
+    public static final int ID_LIBERAL = 1;
+    public static final int ID_FASCIST = 2;
+    public static final int ID_HITLER = 3;
+
+    public static final int CHOICES_NONE = 0;
+    public static final int CHOICES_PRESIDENT = 1;
+    public static final int CHOICES_CHANCELLOR = 2;
+    public static final int CHOICES_PEEK = 3;
+
+    // The commands in order of their binary code.
+    public static final List<String> COMMANDS = Arrays.asList(
+            SecretHitlerServer.COMMAND_PING,
+            SecretHitlerServer.COMMAND_START_GAME,
+            SecretHitlerServer.COMMAND_GET_STATE,
+            SecretHitlerServer.COMMAND_SELECT_ICON,
+            SecretHitlerServer.COMMAND_NOMINATE_CHANCELLOR,
+            SecretHitlerServer.COMMAND_REGISTER_VOTE,
+            SecretHitlerServer.COMMAND_REGISTER_PRESIDENT_CHOICE,
+            SecretHitlerServer.COMMAND_REGISTER_CHANCELLOR_CHOICE,
+            SecretHitlerServer.COMMAND_REGISTER_CHANCELLOR_VETO,
+            SecretHitlerServer.COMMAND_REGISTER_PRESIDENT_VETO,
+            SecretHitlerServer.COMMAND_REGISTER_EXECUTION,
+            SecretHitlerServer.COMMAND_REGISTER_SPECIAL_ELECTION,
+            SecretHitlerServer.COMMAND_GET_INVESTIGATION,
+            SecretHitlerServer.COMMAND_REGISTER_PEEK,
+            SecretHitlerServer.COMMAND_END_TERM
+    );
+
+    private static final byte[] OK_PACKET = {TYPE_OK};
+    private static final byte[] PONG_PACKET = {TYPE_PONG};
+    private static final byte[] RATE_LIMITED_PACKET = {TYPE_RATE_LIMITED};
+
+    /**
+     * A growable byte array for building frames.
+     */
+    private static class FrameWriter {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void u8(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        void u16(int value) {
+            u8(value >>> 8);
+            u8(value);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                u8((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            u8((int) value);
+        }
+
+        void string(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            varint(encoded.length);
+            ensureCapacity(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+
+        void seat(List<Player> players, String username) {
+            u8(seatOf(players, username));
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Gets the seat of a player.
+     * @param players the players in the game, in order.
+     * @param username the username of the player. Can be null.
+     * @return the index of the player in {@code players}, or {@code NO_SEAT} if there is no such player.
+     */
+    static int seatOf(List<Player> players, String username) {
+        if (username != null) {
+            for (int i = 0; i < players.size(); i++) {
+                if (players.get(i).getUsername().equals(username)) {
+                    return i;
+                }
+            }
+        }
+        return NO_SEAT;
+    }
+
+    /**
+     * Encodes a game state frame.
+     * @param game the SecretHitlerGame to encode.
+     * @param view the GameView of the users that the frame is sent to. If null, the full state is encoded.
+     * @param icons a map from each username to the id of their icon.
+     * @param version the state version of the frame.
+     * @return a {@code TYPE_GAME} frame containing the same information as
+     *         {@code GameStateWriter.writeGamePacket(game, view, icons, version)}.
+     */
+    public static byte[] encodeGame(SecretHitlerGame game, GameView view, Map<String, String> icons, long version) {
+        FrameWriter out = new FrameWriter();
+        List<Player> players = game.getPlayerList();
+        GameState state = game.getState();
+        boolean isPresident = view == null || view.getOffice() == GameView.Office.PRESIDENT;
+        boolean isChancellor = view == null || view.getOffice() == GameView.Office.CHANCELLOR;
+
+        out.u8(TYPE_GAME);
+        out.varint(version);
+        out.u8(players.size());
+        for (Player player : players) {
+            out.string(player.getUsername());
+        }
+        out.u8(state.ordinal());
+        out.u8(game.getLastState().ordinal());
+        out.seat(players, game.getCurrentPresident());
+        out.seat(players, game.getCurrentChancellor());
+        out.seat(players, game.getLastPresident());
+        out.seat(players, game.getLastChancellor());
+        out.seat(players, game.getTarget());
+        out.u8(game.getElectionTracker());
+        int flags = 0;
+        if (game.didElectionTrackerAdvance()) {
+            flags |= FLAG_ELECTION_TRACKER_ADVANCED;
+        }
+        if (game.didVetoOccurThisTurn()) {
+            flags |= FLAG_VETO_OCCURRED;
+        }
+        out.u8(flags);
+        out.u8(game.getDrawSize());
+        out.u8(game.getDiscardSize());
+        out.u8(game.getNumFascistPolicies());
+        out.u8(game.getNumLiberalPolicies());
+
+        int alive = 0;
+        int investigated = 0;
+        int voted = 0;
+        int votedYes = 0;
+        Map<String, Boolean> votes = game.getVotes();
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            if (player.isAlive()) {
+                alive |= 1 << i;
+            }
+            if (player.hasBeenInvestigated()) {
+                investigated |= 1 << i;
+            }
+            Boolean vote = votes.get(player.getUsername());
+            if (vote != null) {
+                voted |= 1 << i;
+                if (vote) {
+                    votedYes |= 1 << i;
+                }
+            }
+        }
+        out.u16(alive);
+        out.u16(investigated);
+        out.u16(voted);
+        out.u16(votedYes);
+
+        boolean wasPlayerJustInvestigated = GameView.wasPlayerJustInvestigated(game);
+        int packed = 0;
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            int id = ID_HIDDEN;
+            if (view == null || view.canSeeIdentity(player)) {
+                id = player.isHitler() ? ID_HITLER : (player.isFascist() ? ID_FASCIST : ID_LIBERAL);
+            } else if (isPresident && wasPlayerJustInvestigated && player.getUsername().equals(game.getTarget())) {
+                id = player.isFascist() ? ID_FASCIST : ID_LIBERAL; // only the party is revealed.
+            }
+            packed |= id << ((i % 4) * 2);
+            if (i % 4 == 3 || i == players.size() - 1) {
+                out.u8(packed);
+                packed = 0;
+            }
+        }
+        out.u8(view != null && view.getRole() == GameView.Role.LIBERAL ? ID_LIBERAL : ID_HIDDEN);
+
+        if (state == GameState.LEGISLATIVE_PRESIDENT && isPresident) {
+            writePolicies(out, CHOICES_PRESIDENT, game.getPresidentLegislativeChoices());
+        } else if (state == GameState.LEGISLATIVE_CHANCELLOR && isChancellor) {
+            writePolicies(out, CHOICES_CHANCELLOR, game.getChancellorLegislativeChoices());
+        } else if (state == GameState.PRESIDENTIAL_POWER_PEEK && isPresident) {
+            writePolicies(out, CHOICES_PEEK, game.getPeek());
+        } else {
+            out.u8(CHOICES_NONE);
+        }
+
+        for (Player player : players) {
+            String icon = icons.get(player.getUsername());
+            out.string(icon == null ? "" : icon);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writePolicies(FrameWriter out, int kind, List<Policy> policies) {
+        out.u8(kind);
+        out.u8(policies.size());
+        int bits = 0;
+        for (int i = 0; i < policies.size(); i++) {
+            bits |= policies.get(i).getType().ordinal() << i;
+        }
+        out.u8(bits);
+    }
+
+    /**
+     * Encodes a lobby state frame.
+     * @param usernames the usernames of the active users in the lobby.
+     * @param icons a map from each username to the id of their icon.
+     * @param version the state version of the frame.
+     * @return a {@code TYPE_LOBBY} frame.
+     */
+    public static byte[] encodeLobby(Collection<String> usernames, Map<String, String> icons, long version) {
+        FrameWriter out = new FrameWriter();
+        out.u8(TYPE_LOBBY);
+        out.varint(version);
+        String[] names = usernames.toArray(new String[0]);
+        out.u8(names.length);
+        for (String name : names) {
+            String icon = icons.get(name);
+            out.string(name);
+            out.string(icon == null ? "" : icon);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes a packet without content.
+     * @param packetType the JSON packet type ({@code PACKET_OK}, {@code PACKET_PONG} or {@code PACKET_RATE_LIMITED}).
+     * @throws IllegalArgumentException if the packet type has content.
+     * @return the binary frame for the packet. The returned array is shared and must not be modified.
+     */
+    public static byte[] encodeEmptyPacket(String packetType) {
+        switch (packetType) {
+            case SecretHitlerServer.PACKET_OK:
+                return OK_PACKET;
+            case SecretHitlerServer.PACKET_PONG:
+                return PONG_PACKET;
+            case SecretHitlerServer.PACKET_RATE_LIMITED:
+                return RATE_LIMITED_PACKET;
+            default:
+                throw new IllegalArgumentException("Packet type " + packetType + " cannot be sent without content.");
+        }
+    }
+
+    /**
+     * Encodes the result of an investigation.
+     * @param isFascist whether the investigated player is a member of the fascist party.
+     * @return a {@code TYPE_INVESTIGATION} frame.
+     */
+    public static byte[] encodeInvestigation(boolean isFascist) {
+        return new byte[] {TYPE_INVESTIGATION, (byte) (isFascist ? ID_FASCIST : ID_LIBERAL)};
+    }
+
+    /**
+     * Encodes a command that was rejected because it broke a rule of the game.
+     * @param violation the rule that the command broke.
+     * @return a {@code TYPE_ERROR} frame.
+     */
+    public static byte[] encodeError(RuleViolation violation) {
+        return new byte[] {TYPE_ERROR, (byte) violation.ordinal()};
+    }
+
+    /**
+     * Decodes a command frame from a client.
+     * @param frame the binary frame.
+     * @param game the current game of the lobby, used to resolve seats. Can be null if the lobby is not in a game.
+     * @throws IllegalArgumentException if the frame is empty, truncated, or has an unknown command code or seat.
+     * @return the decoded Command.
+     */
+    public static Command decodeCommand(ByteBuffer frame, SecretHitlerGame game) {
+        if (!frame.hasRemaining()) {
+            throw new IllegalArgumentException("Empty command frame.");
+        }
+        int code = frame.get() & 0xFF;
+        if (code >= COMMANDS.size()) {
+            throw new IllegalArgumentException("Unknown command code " + code + ".");
+        }
+        Command.Type type = Command.Type.fromCommandName(COMMANDS.get(code));
+        try {
+            switch (type) {
+                case NOMINATE_CHANCELLOR:
+                    return new Command.NominateChancellor(readSeat(frame, game));
+                case REGISTER_EXECUTION:
+                    return new Command.RegisterExecution(readSeat(frame, game));
+                case REGISTER_SPECIAL_ELECTION:
+                    return new Command.RegisterSpecialElection(readSeat(frame, game));
+                case GET_INVESTIGATION:
+                    return new Command.GetInvestigation(readSeat(frame, game));
+                case REGISTER_VOTE:
+                    return new Command.RegisterVote(frame.get() != 0);
+                case PRESIDENT_VETO:
+                    return new Command.PresidentVeto(frame.get() != 0);
+                case REGISTER_PRESIDENT_CHOICE:
+                    return new Command.RegisterPresidentChoice(frame.get() & 0xFF);
+                case REGISTER_CHANCELLOR_CHOICE:
+                    return new Command.RegisterChancellorChoice(frame.get() & 0xFF);
+                case SELECT_ICON:
+                    return new Command.SelectIcon(readString(frame));
+                default:
+                    return Command.of(type); // The command has no parameters.
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame for command " + type.getCommandName() + ".");
+        }
+    }
+
+    private static String readSeat(ByteBuffer frame, SecretHitlerGame game) {
+        int seat = frame.get() & 0xFF;
+        if (game == null) {
+            throw new IllegalArgumentException("Cannot target a seat outside of a game.");
+        }
+        List<Player> players = game.getPlayerList();
+        if (seat >= players.size()) {
+            throw new IllegalArgumentException("There is no player in seat " + seat + ".");
+        }
+        return players.get(seat).getUsername();
+    }
+
+    private static String readString(ByteBuffer frame) {
+        long length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = frame.get();
+            length |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        if (length > frame.remaining()) {
+            throw new IllegalArgumentException("String length exceeds the frame.");
+        }
+        byte[] bytes = new byte[(int) length];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,301 @@
+package server.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import server.SecretHitlerServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable command sent by a user over the websocket connection.
+ *
+ * Each command has a {@code Type}. Commands without parameters are shared instances returned by {@code of()};
+ * commands with parameters are subclasses (for example, {@code new Command.NominateChancellor(target)}).
+ */
+public abstract class Command {
+
+    /**
+     * The types of commands, along with their names in JSON messages.
+     */
+    public enum Type {
+        PING(SecretHitlerServer.COMMAND_PING),
+        START_GAME(SecretHitlerServer.COMMAND_START_GAME),
+        GET_STATE(SecretHitlerServer.COMMAND_GET_STATE),
+        SELECT_ICON(SecretHitlerServer.COMMAND_SELECT_ICON),
+        NOMINATE_CHANCELLOR(SecretHitlerServer.COMMAND_NOMINATE_CHANCELLOR),
+        REGISTER_VOTE(SecretHitlerServer.COMMAND_REGISTER_VOTE),
+        REGISTER_PRESIDENT_CHOICE(SecretHitlerServer.COMMAND_REGISTER_PRESIDENT_CHOICE),
+        REGISTER_CHANCELLOR_CHOICE(SecretHitlerServer.COMMAND_REGISTER_CHANCELLOR_CHOICE),
+        CHANCELLOR_VETO(SecretHitlerServer.COMMAND_REGISTER_CHANCELLOR_VETO),
+        PRESIDENT_VETO(SecretHitlerServer.COMMAND_REGISTER_PRESIDENT_VETO),
+        REGISTER_EXECUTION(SecretHitlerServer.COMMAND_REGISTER_EXECUTION),
+        REGISTER_SPECIAL_ELECTION(SecretHitlerServer.COMMAND_REGISTER_SPECIAL_ELECTION),
+        GET_INVESTIGATION(SecretHitlerServer.COMMAND_GET_INVESTIGATION),
+        REGISTER_PEEK(SecretHitlerServer.COMMAND_REGISTER_PEEK),
+        END_TERM(SecretHitlerServer.COMMAND_END_TERM);
+
+        private static final Map<String, Type> NAME_TO_TYPE = new HashMap<>();
+        static {
+            for (Type type : values()) {
+                NAME_TO_TYPE.put(type.commandName, type);
+            }
+        }
+
+        private final String commandName;
+
+        Type(String commandName) {
+            this.commandName = commandName;
+        }
+
+        /**
+         * Returns the name of the command in JSON messages.
+         */
+        public String getCommandName() {
+            return commandName;
+        }
+
+        /**
+         * Gets the type of command with the given name.
+         * @param commandName the name of the command in a JSON message.
+         * @return the Type named {@code commandName}, or null if there is no such command.
+         */
+        public static Type fromCommandName(String commandName) {
+            return NAME_TO_TYPE.get(commandName);
+        }
+    }
+
+    private static final Command[] SIMPLE_COMMANDS = new Command[Type.values().length];
+    static {
+        for (Type type : new Type[] {Type.PING, Type.START_GAME, Type.GET_STATE, Type.CHANCELLOR_VETO,
+                Type.REGISTER_PEEK, Type.END_TERM}) {
+            SIMPLE_COMMANDS[type.ordinal()] = new Simple(type);
+        }
+    }
+
+    private final Type type;
+
+    private Command(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets a command that has no parameters.
+     * @param type the type of command.
+     * @throws IllegalArgumentException if commands of the given type have parameters.
+     * @return the shared Command instance for {@code type}.
+     */
+    public static Command of(Type type) {
+        Command command = SIMPLE_COMMANDS[type.ordinal()];
+        if (command == null) {
+            throw new IllegalArgumentException("The command " + type.getCommandName() + " has parameters.");
+        }
+        return command;
+    }
+
+    /**
+     * Writes the parameters of this command as fields of the current JSON object.
+     * @param gen the generator to write to.
+     */
+    void writeParameters(JsonGenerator gen) throws IOException {}
+
+    @Override
+    public String toString() {
+        return type.getCommandName();
+    }
+
+    private static final class Simple extends Command {
+        private Simple(Type type) {
+            super(type);
+        }
+    }
+
+    /**
+     * A command that targets a player.
+     */
+    public static abstract class Targeted extends Command {
+        private final String target;
+
+        private Targeted(Type type, String target) {
+            super(type);
+            if (target == null) {
+                throw new NullPointerException("The command " + type.getCommandName() + " requires a target.");
+            }
+            this.target = target;
+        }
+
+        /**
+         * Returns the username of the targeted player.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        void writeParameters(JsonGenerator gen) throws IOException {
+            gen.writeStringField(SecretHitlerServer.PARAM_TARGET, target);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "(" + target + ")";
+        }
+    }
+
+    /**
+     * A command that chooses one of the policies offered to the president or chancellor.
+     */
+    public static abstract class PolicyChoice extends Command {
+        private final int choice;
+
+        private PolicyChoice(Type type, int choice) {
+            super(type);
+            this.choice = choice;
+        }
+
+        /**
+         * Returns the index of the chosen policy.
+         */
+        public int getChoice() {
+            return choice;
+        }
+
+        @Override
+        void writeParameters(JsonGenerator gen) throws IOException {
+            gen.writeNumberField(SecretHitlerServer.PARAM_CHOICE, choice);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "(" + choice + ")";
+        }
+    }
+
+    public static final class NominateChancellor extends Targeted {
+        public NominateChancellor(String target) {
+            super(Type.NOMINATE_CHANCELLOR, target);
+        }
+    }
+
+    public static final class RegisterExecution extends Targeted {
+        public RegisterExecution(String target) {
+            super(Type.REGISTER_EXECUTION, target);
+        }
+    }
+
+    public static final class RegisterSpecialElection extends Targeted {
+        public RegisterSpecialElection(String target) {
+            super(Type.REGISTER_SPECIAL_ELECTION, target);
+        }
+    }
+
+    public static final class GetInvestigation extends Targeted {
+        public GetInvestigation(String target) {
+            super(Type.GET_INVESTIGATION, target);
+        }
+    }
+
+    /**
+     * Discards the policy at the given index (the president's choice).
+     */
+    public static final class RegisterPresidentChoice extends PolicyChoice {
+        public RegisterPresidentChoice(int choice) {
+            super(Type.REGISTER_PRESIDENT_CHOICE, choice);
+        }
+    }
+
+    /**
+     * Enacts the policy at the given index (the chancellor's choice).
+     */
+    public static final class RegisterChancellorChoice extends PolicyChoice {
+        public RegisterChancellorChoice(int choice) {
+            super(Type.REGISTER_CHANCELLOR_CHOICE, choice);
+        }
+    }
+
+    public static final class RegisterVote extends Command {
+        private final boolean vote;
+
+        public RegisterVote(boolean vote) {
+            super(Type.REGISTER_VOTE);
+            this.vote = vote;
+        }
+
+        public boolean getVote() {
+            return vote;
+        }
+
+        @Override
+        void writeParameters(JsonGenerator gen) throws IOException {
+            gen.writeBooleanField(SecretHitlerServer.PARAM_VOTE, vote);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "(" + vote + ")";
+        }
+    }
+
+    /**
+     * The president's response to a veto requested by the chancellor.
+     */
+    public static final class PresidentVeto extends Command {
+        private final boolean veto;
+
+        public PresidentVeto(boolean veto) {
+            super(Type.PRESIDENT_VETO);
+            this.veto = veto;
+        }
+
+        /**
+         * Returns whether the president agreed to the veto.
+         */
+        public boolean getVeto() {
+            return veto;
+        }
+
+        @Override
+        void writeParameters(JsonGenerator gen) throws IOException {
+            gen.writeBooleanField(SecretHitlerServer.PARAM_VETO, veto);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "(" + veto + ")";
+        }
+    }
+
+    public static final class SelectIcon extends Command {
+        private final String icon;
+
+        public SelectIcon(String icon) {
+            super(Type.SELECT_ICON);
+            if (icon == null) {
+                throw new NullPointerException("The command " + Type.SELECT_ICON.getCommandName()
+                        + " requires an icon.");
+            }
+            this.icon = icon;
+        }
+
+        /**
+         * Returns the id of the selected icon.
+         */
+        public String getIcon() {
+            return icon;
+        }
+
+        @Override
+        void writeParameters(JsonGenerator gen) throws IOException {
+            gen.writeStringField(SecretHitlerServer.PARAM_ICON, icon);
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "(" + icon + ")";
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package server.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import server.SecretHitlerServer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * Converts between JSON command messages and {@code Command} objects.
+ *
+ * A message is a JSON object with the properties {@code lobby}, {@code name}, {@code command}, and the parameters of
+ * the command (see {@code SecretHitlerServer.onWebSocketMessage()}). Messages are parsed in a single pass without
+ * building a JSONObject; unknown properties are ignored.
+ */
+public class CommandParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * A parsed message: the command and the user that sent it.
+     */
+    public static final class Envelope {
+        private final String lobby;
+        private final String name;
+        private final Command command;
+
+        public Envelope(String lobby, String name, Command command) {
+            this.lobby = lobby;
+            this.name = name;
+            this.command = command;
+        }
+
+        public String getLobby() {
+            return lobby;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+    }
+
+    /**
+     * Parses a JSON command message.
+     * @param message the JSON text of the message.
+     * @throws IllegalArgumentException if the message is not a JSON object, if {@code lobby}, {@code name} or
+     *         {@code command} is missing, if the command is not recognized, or if a parameter of the command is
+     *         missing or has the wrong type.
+     * @return an Envelope with the lobby code, username, and command of the message.
+     */
+    public static Envelope parse(String message) {
+        String lobby = null;
+        String name = null;
+        String commandName = null;
+        String target = null;
+        String icon = null;
+        Boolean vote = null;
+        Boolean veto = null;
+        Integer choice = null;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("The message is not a JSON object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case SecretHitlerServer.PARAM_LOBBY:
+                        lobby = readString(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_NAME:
+                        name = readString(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_COMMAND:
+                        commandName = readString(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_TARGET:
+                        target = readString(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_ICON:
+                        icon = readString(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_VOTE:
+                        vote = readBoolean(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_VETO:
+                        veto = readBoolean(parser, value, field);
+                        break;
+                    case SecretHitlerServer.PARAM_CHOICE:
+                        if (value != JsonToken.VALUE_NUMBER_INT) {
+                            throw new IllegalArgumentException("The parameter " + field + " must be an integer.");
+                        }
+                        choice = parser.getIntValue();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The message is not valid JSON: " + e.getMessage());
+        }
+
+        if (lobby == null || name == null || commandName == null) {
+            throw new IllegalArgumentException("A required parameter is missing.");
+        }
+        Command.Type type = Command.Type.fromCommandName(commandName);
+        if (type == null) {
+            throw new IllegalArgumentException("Unrecognized command " + commandName + ".");
+        }
+        return new Envelope(lobby, name, createCommand(type, target, icon, vote, veto, choice));
+    }
+
+    /**
+     * Creates a command from its parameters.
+     * @throws IllegalArgumentException if a parameter required by {@code type} is null.
+     */
+    private static Command createCommand(Command.Type type, String target, String icon, Boolean vote, Boolean veto,
+                                         Integer choice) {
+        switch (type) {
+            case NOMINATE_CHANCELLOR:
+                return new Command.NominateChancellor(require(target, SecretHitlerServer.PARAM_TARGET));
+            case REGISTER_EXECUTION:
+                return new Command.RegisterExecution(require(target, SecretHitlerServer.PARAM_TARGET));
+            case REGISTER_SPECIAL_ELECTION:
+                return new Command.RegisterSpecialElection(require(target, SecretHitlerServer.PARAM_TARGET));
+            case GET_INVESTIGATION:
+                return new Command.GetInvestigation(require(target, SecretHitlerServer.PARAM_TARGET));
+            case REGISTER_VOTE:
+                return new Command.RegisterVote(require(vote, SecretHitlerServer.PARAM_VOTE));
+            case PRESIDENT_VETO:
+                return new Command.PresidentVeto(require(veto, SecretHitlerServer.PARAM_VETO));
+            case REGISTER_PRESIDENT_CHOICE:
+                return new Command.RegisterPresidentChoice(require(choice, SecretHitlerServer.PARAM_CHOICE));
+            case REGISTER_CHANCELLOR_CHOICE:
+                return new Command.RegisterChancellorChoice(require(choice, SecretHitlerServer.PARAM_CHOICE));
+            case SELECT_ICON:
+                return new Command.SelectIcon(require(icon, SecretHitlerServer.PARAM_ICON));
+            default:
+                return Command.of(type);
+        }
+    }
+
+    private static <T> T require(T value, String field) {
+        if (value == null) {
+            throw new IllegalArgumentException("The parameter " + field + " is missing.");
+        }
+        return value;
+    }
+
+    private static String readString(JsonParser parser, JsonToken value, String field) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        } else if (value != JsonToken.VALUE_STRING) {
+            throw new IllegalArgumentException("The parameter " + field + " must be a string.");
+        }
+        return parser.getText();
+    }
+
+    private static Boolean readBoolean(JsonParser parser, JsonToken value, String field) {
+        if (value == JsonToken.VALUE_TRUE) {
+            return true;
+        } else if (value == JsonToken.VALUE_FALSE) {
+            return false;
+        }
+        throw new IllegalArgumentException("The parameter " + field + " must be a boolean.");
+    }
+
+    /**
+     * Writes a command as a JSON message.
+     * @param lobby the code of the lobby.
+     * @param name the username of the user sending the command.
+     * @param command the command.
+     * @return the JSON text of the message, which {@code parse()} converts back to an equal envelope.
+     */
+    public static String format(String lobby, String name, Command command) {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator gen = JSON_FACTORY.createGenerator(writer)) {
+            gen.writeStartObject();
+            gen.writeStringField(SecretHitlerServer.PARAM_LOBBY, lobby);
+            gen.writeStringField(SecretHitlerServer.PARAM_NAME, name);
+            gen.writeStringField(SecretHitlerServer.PARAM_COMMAND, command.getType().getCommandName());
+            command.writeParameters(gen);
+            gen.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package server.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of event loops (shards) that run the mailboxes of the lobbies.
+ *
+ * Each event loop is a single thread with its own task queue. A lobby is owned by the shard chosen by hashing its code,
+ * so its commands, broadcasts and timer events always run on the same thread, and lobbies on different shards never
+ * share a queue or a thread.
+ */
+public class EventLoopGroup {
+
+    // The number of shards in the shared group. Must be set before the first lobby is created.
+    public static int SHARD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // The length of the window that utilization is measured over.
+    private static final long UTILIZATION_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Holds the group shared by the server, which is created when it is first used.
+     */
+    private static class Shared {
+        static final EventLoopGroup GROUP = new EventLoopGroup(SHARD_COUNT, "lobby-shard");
+    }
+
+    /**
+     * A single thread that runs tasks in the order they were submitted.
+     */
+    public static class EventLoop implements Executor {
+        private final int index;
+        private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        private final AtomicLong completedTasks = new AtomicLong();
+        private volatile double utilization;
+
+        private EventLoop(int index, String threadName) {
+            this.index = index;
+            Thread thread = new Thread(this::run, threadName + "-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Submits a task.
+         * @param task the task to run. Must not block.
+         * @effects runs {@code task} on the thread of this loop after the tasks submitted before it. Exceptions thrown
+         *          by the task are logged.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        private void run() {
+            long windowStart = System.nanoTime();
+            long busyNanos = 0;
+            while (true) {
+                Runnable task;
+                try {
+                    task = tasks.poll(UTILIZATION_WINDOW_NS, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task != null) {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.event(Log.Category.LOBBY, "task-failed", "shard", index, "error", e.toString());
+                    }
+                    busyNanos += System.nanoTime() - start;
+                    completedTasks.incrementAndGet();
+                }
+                long now = System.nanoTime();
+                if (now - windowStart >= UTILIZATION_WINDOW_NS) {
+                    utilization = (double) busyNanos / (now - windowStart);
+                    windowStart = now;
+                    busyNanos = 0;
+                }
+            }
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the number of tasks waiting to run on this loop.
+         */
+        public int getQueueDepth() {
+            return tasks.size();
+        }
+
+        /**
+         * Returns the number of tasks this loop has run.
+         */
+        public long getCompletedTasks() {
+            return completedTasks.get();
+        }
+
+        /**
+         * Returns the fraction of time the loop spent running tasks during the last full window (about a second).
+         */
+        public double getUtilization() {
+            return utilization;
+        }
+    }
+
+    private final List<EventLoop> loops;
+
+    /**
+     * Constructs a new EventLoopGroup and starts its threads.
+     * @param shardCount the number of event loops. Must be positive.
+     * @param threadName the prefix of the thread names.
+     */
+    public EventLoopGroup(int shardCount, String threadName) {
+        List<EventLoop> loops = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            loops.add(new EventLoop(i, threadName));
+        }
+        this.loops = Collections.unmodifiableList(loops);
+    }
+
+    /**
+     * Returns the group shared by the server, with {@code SHARD_COUNT} shards.
+     */
+    public static EventLoopGroup shared() {
+        return Shared.GROUP;
+    }
+
+    /**
+     * Gets the event loop that owns a key.
+     * @param key the key, such as a lobby code.
+     * @return the same event loop for equal keys.
+     */
+    public EventLoop forKey(String key) {
+        // Spread the bits of the hash, since lobby codes only differ in a few characters.
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return loops.get(Math.floorMod(hash, loops.size()));
+    }
+
+    /**
+     * Returns the event loops of this group, in order of their index.
+     */
+    public List<EventLoop> getLoops() {
+        return loops;
+    }
+}
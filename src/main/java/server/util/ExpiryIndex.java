@@ -0,0 +1,115 @@
+package server.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks keys (such as lobby codes) that expire at a deadline that can move later over time.
+ *
+ * Each key has one timeout on a TimerWheel for its deadline. Moving a deadline does not touch the index: when the
+ * timeout fires, the current deadline is read again, and the key is rescheduled if the deadline has moved. Keys whose
+ * deadlines have passed are queued until they are polled, so a sweep only visits keys that have actually expired.
+ * @param <K> the type of the keys.
+ */
+public class ExpiryIndex<K> {
+
+    /**
+     * A key in the index and its current timeout.
+     */
+    private class Entry {
+        final K key;
+        final LongSupplier deadline;
+        volatile TimerWheel.Timeout timeout;
+
+        Entry(K key, LongSupplier deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final TimerWheel wheel;
+    private final ConcurrentHashMap<K, Entry> keyToEntry = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<K> expired = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructs a new ExpiryIndex.
+     * @param wheel the timer wheel that tracks the deadlines.
+     */
+    public ExpiryIndex(TimerWheel wheel) {
+        this.wheel = wheel;
+    }
+
+    /**
+     * Adds a key to the index, replacing the key if it is already in the index.
+     * @param key the key to add.
+     * @param deadline returns the current deadline of the key, in milliseconds since the epoch. Must be thread-safe,
+     *                 and is called each time the key might have expired.
+     * @modifies this
+     * @effects {@code key} is queued to be returned by {@code pollExpired()} once the time is past
+     *          {@code deadline.getAsLong()}.
+     */
+    public void add(K key, LongSupplier deadline) {
+        Entry entry = new Entry(key, deadline);
+        cancel(keyToEntry.put(key, entry));
+        schedule(entry);
+    }
+
+    /**
+     * Removes a key from the index.
+     * @param key the key to remove.
+     * @modifies this
+     * @effects {@code key} will not expire, unless it was already queued as expired.
+     */
+    public void remove(K key) {
+        cancel(keyToEntry.remove(key));
+    }
+
+    /**
+     * Removes every expired key from the queue and passes it to {@code action}.
+     * @param action called with each expired key, in the order that the keys expired.
+     * @modifies this
+     * @effects the keys passed to {@code action} are no longer in the index.
+     * @return the number of keys passed to {@code action}.
+     */
+    public int pollExpired(Consumer<K> action) {
+        int count = 0;
+        K key;
+        while ((key = expired.poll()) != null) {
+            action.accept(key);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of keys that have not expired yet.
+     */
+    public int size() {
+        return keyToEntry.size();
+    }
+
+    private void schedule(Entry entry) {
+        long delay = entry.deadline.getAsLong() - System.currentTimeMillis();
+        if (delay <= 0) {
+            if (keyToEntry.remove(entry.key, entry)) {
+                expired.add(entry.key);
+            }
+            return;
+        }
+        // The entry is checked when the timeout fires, so that a key that was removed or added again is ignored.
+        entry.timeout = wheel.schedule(() -> {
+            if (keyToEntry.get(entry.key) == entry) {
+                schedule(entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancel(Entry entry) {
+        if (entry != null && entry.timeout != null) {
+            entry.timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package server.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import game.GameState;
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+import game.datastructures.Policy;
+import server.SecretHitlerServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes lobby and game state packets directly as JSON text, without building an intermediate JSONObject tree.
+ *
+ * A game state packet is the state of a SecretHitlerGame, either in full or as seen from a {@code GameView} (see
+ * {@code writeGamePacket()} for a description of each property). Output is written into a per-thread buffer that is
+ * reused between packets.
+ */
+public class GameStateWriter {
+    public static final String HITLER = "HITLER";
+    public static final String FASCIST = "FASCIST";
+    public static final String LIBERAL = "LIBERAL";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+    // Buffers that grew past this size are not kept, so that one large packet does not pin memory to a thread.
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Buffer> BUFFERS = ThreadLocal.withInitial(Buffer::new);
+
+    /**
+     * A reusable output buffer that can be decoded to a String without copying its contents first.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    /**
+     * Writes a game state packet.
+     * @param game the SecretHitlerGame to write.
+     * @param view the GameView of the users that the packet is sent to. If null, the full state is written.
+     * @param icons a map from each username to the id of their icon.
+     * @param version the state version of the packet.
+     * @throws NullPointerException if {@code game} is null.
+     * @return a JSON String with the following properties:
+     *          {@code type}: {@code PACKET_GAME_STATE}.
+     *          {@code state}: the state of the game.
+     *          {@code last-state}: the state of the game before the current one.
+     *          {@code player-order}: an array of names representing the order of the players in the game.
+     *
+     *          {@code players}: a JSON object map, with keys that are a player's {@code username}.
+     *              Each {@code username} key maps to an object with the properties {@code id} (String),
+     *              {@code alive} (boolean), and {@code investigated} (boolean), to represent the player.
+     *              The identity is either this.HITLER, this.FASCIST, or this.LIBERAL, and is only included if
+     *              {@code view.canSeeIdentity()} is true for the player. If the president has just investigated a
+     *              player, the president's view includes the party of the target as their {@code id} (FASCIST or
+     *              LIBERAL).
+     *              Ex: {"player1":{"alive": true, "investigated": false, "id": "LIBERAL"}}.
+     *
+     *          {@code president}: the username of the current president.
+     *          {@code chancellor}: the username of the current chancellor (omitted if there is none).
+     *          {@code last-president}: The username of the last president that presided over a legislative session.
+     *          {@code last-chancellor}: The username of the last chancellor that presided over a legislative session.
+     *          {@code target-user}: The username of the target of the current presidential power, if any.
+     *          {@code election-tracker}: The number of failed elections since the last policy was enacted.
+     *          {@code election-tracker-advanced}: Whether the last election failed.
+     *          {@code draw-size}: The size of the draw deck.
+     *          {@code discard-size}: The size of the discard deck.
+     *          {@code fascist-policies}: The number of passed fascist policies.
+     *          {@code liberal-policies}: The number of passed liberal policies.
+     *          {@code user-votes}: A map from each user to their vote from the last chancellor nomination.
+     *          {@code veto-occurred}: Set to true if a veto has already taken place on this legislative session.
+     *          {@code role}: set to LIBERAL in liberal views, since no identities are visible in them. (The views are
+     *                  shared by all liberals, so the client picks a liberal role card from its position in
+     *                  {@code player-order} instead of counting the liberals before it.)
+     *          {@code president-choices}: The choices for the president during the legislative session (only if in
+     *                  game state LEGISLATIVE_PRESIDENT, and only in the president's view).
+     *          {@code chancellor-choices}: The choices for the chancellor during the legislative session (only if in
+     *                  game state LEGISLATIVE_CHANCELLOR, and only in the chancellor's view).
+     *          {@code peek}: The top policies of the draw deck (only if in game state PRESIDENTIAL_POWER_PEEK, and
+     *                  only in the president's view).
+     *          {@code icon}: a map from each username to the id of their icon.
+     *          {@code version}: {@code version}.
+     */
+    public static String writeGamePacket(SecretHitlerGame game, GameView view, Map<String, String> icons,
+                                         long version) {
+        if (game == null) {
+            throw new NullPointerException();
+        }
+        Buffer buffer = BUFFERS.get();
+        try (JsonGenerator gen = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeStringField(SecretHitlerServer.PARAM_PACKET_TYPE, SecretHitlerServer.PACKET_GAME_STATE);
+            writeGameFields(game, view, gen);
+            writeIcons(icons, gen);
+            gen.writeNumberField(SecretHitlerServer.PARAM_VERSION, version);
+            gen.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return takeString(buffer);
+    }
+
+    /**
+     * Writes a lobby state packet.
+     * @param usernames the usernames of the active users in the lobby.
+     * @param icons a map from each username to the id of their icon.
+     * @param version the state version of the packet.
+     * @return a JSON String with the properties {@code type} ({@code PACKET_LOBBY}), {@code user-count},
+     *         {@code usernames}, {@code icon}, and {@code version}.
+     */
+    public static String writeLobbyPacket(Collection<String> usernames, Map<String, String> icons, long version) {
+        Buffer buffer = BUFFERS.get();
+        try (JsonGenerator gen = JSON_FACTORY.createGenerator(buffer, JsonEncoding.UTF8)) {
+            gen.writeStartObject();
+            gen.writeStringField(SecretHitlerServer.PARAM_PACKET_TYPE, SecretHitlerServer.PACKET_LOBBY);
+            gen.writeNumberField("user-count", usernames.size());
+            gen.writeArrayFieldStart("usernames");
+            for (String username : usernames) {
+                gen.writeString(username);
+            }
+            gen.writeEndArray();
+            writeIcons(icons, gen);
+            gen.writeNumberField(SecretHitlerServer.PARAM_VERSION, version);
+            gen.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return takeString(buffer);
+    }
+
+    /**
+     * Decodes the contents of a buffer and resets it for the next packet.
+     * @param buffer the buffer that a packet was written to.
+     * @return the contents of {@code buffer} as a String.
+     */
+    private static String takeString(Buffer buffer) {
+        String out = buffer.toString(StandardCharsets.UTF_8);
+        if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            BUFFERS.remove();
+        } else {
+            buffer.reset();
+        }
+        return out;
+    }
+
+    /**
+     * Writes the properties of the game state into the current object of the generator.
+     * @see #writeGamePacket(SecretHitlerGame, GameView, Map, long)
+     */
+    private static void writeGameFields(SecretHitlerGame game, GameView view, JsonGenerator gen) throws IOException {
+        boolean isPresident = view == null || view.getOffice() == GameView.Office.PRESIDENT;
+        boolean isChancellor = view == null || view.getOffice() == GameView.Office.CHANCELLOR;
+        boolean wasPlayerJustInvestigated = GameView.wasPlayerJustInvestigated(game);
+        List<Player> playerList = game.getPlayerList();
+
+        gen.writeObjectFieldStart("players");
+        for (Player player : playerList) {
+            gen.writeObjectFieldStart(player.getUsername());
+            gen.writeBooleanField("alive", player.isAlive());
+            if (view == null || view.canSeeIdentity(player)) {
+                String id = LIBERAL;
+                if (player.isHitler()) {
+                    id = HITLER;
+                } else if (player.isFascist()) {
+                    id = FASCIST;
+                }
+                gen.writeStringField("id", id);
+            } else if (isPresident && wasPlayerJustInvestigated && player.getUsername().equals(game.getTarget())) {
+                gen.writeStringField("id", player.isFascist() ? FASCIST : LIBERAL); // only the party is revealed.
+            }
+            gen.writeBooleanField("investigated", player.hasBeenInvestigated());
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+
+        gen.writeArrayFieldStart("player-order");
+        for (Player player : playerList) {
+            gen.writeString(player.getUsername());
+        }
+        gen.writeEndArray();
+
+        writeOptionalString(gen, "president", game.getCurrentPresident());
+        writeOptionalString(gen, "chancellor", game.getCurrentChancellor());
+        GameState state = game.getState();
+        gen.writeStringField("state", state.toString());
+        gen.writeStringField("last-state", game.getLastState().toString());
+        writeOptionalString(gen, "last-president", game.getLastPresident());
+        writeOptionalString(gen, "last-chancellor", game.getLastChancellor());
+        writeOptionalString(gen, "target-user", game.getTarget());
+
+        gen.writeNumberField("election-tracker", game.getElectionTracker());
+        gen.writeBooleanField("election-tracker-advanced", game.didElectionTrackerAdvance());
+
+        gen.writeNumberField("draw-size", game.getDrawSize());
+        gen.writeNumberField("discard-size", game.getDiscardSize());
+        gen.writeNumberField("fascist-policies", game.getNumFascistPolicies());
+        gen.writeNumberField("liberal-policies", game.getNumLiberalPolicies());
+        gen.writeObjectFieldStart("user-votes");
+        for (Map.Entry<String, Boolean> vote : game.getVotes().entrySet()) {
+            gen.writeBooleanField(vote.getKey(), vote.getValue());
+        }
+        gen.writeEndObject();
+        gen.writeBooleanField("veto-occurred", game.didVetoOccurThisTurn());
+        if (view != null && view.getRole() == GameView.Role.LIBERAL) {
+            gen.writeStringField("role", LIBERAL);
+        }
+
+        if (state == GameState.LEGISLATIVE_PRESIDENT && isPresident) {
+            writePolicies(gen, "president-choices", game.getPresidentLegislativeChoices());
+        }
+        if (state == GameState.LEGISLATIVE_CHANCELLOR && isChancellor) {
+            writePolicies(gen, "chancellor-choices", game.getChancellorLegislativeChoices());
+        }
+        if (state == GameState.PRESIDENTIAL_POWER_PEEK && isPresident) {
+            writePolicies(gen, "peek", game.getPeek());
+        }
+    }
+
+    /**
+     * Writes a String field, or nothing if the value is null (matching {@code JSONObject.put()}).
+     */
+    private static void writeOptionalString(JsonGenerator gen, String key, String value) throws IOException {
+        if (value != null) {
+            gen.writeStringField(key, value);
+        }
+    }
+
+    /**
+     * Writes a list of policies as an array of policy types ("FASCIST" or "LIBERAL"), in the order of the list.
+     */
+    private static void writePolicies(JsonGenerator gen, String key, List<Policy> policies) throws IOException {
+        gen.writeArrayFieldStart(key);
+        for (Policy policy : policies) {
+            gen.writeString(policy.getType().name());
+        }
+        gen.writeEndArray();
+    }
+
+    /**
+     * Writes the map of user icons as the {@code icon} property.
+     */
+    private static void writeIcons(Map<String, String> icons, JsonGenerator gen) throws IOException {
+        gen.writeObjectFieldStart("icon");
+        for (Map.Entry<String, String> icon : icons.entrySet()) {
+            gen.writeStringField(icon.getKey(), icon.getValue());
+        }
+        gen.writeEndObject();
+    }
+}
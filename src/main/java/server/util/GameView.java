@@ -0,0 +1,184 @@
+package server.util;
+
+import game.GameState;
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+
+/**
+ * Describes which parts of the game state a user is allowed to see.
+ *
+ * A view is made up of a role, which determines which player identities are visible, and an office, which determines
+ * whether the private choices of the president or chancellor are visible. There is a small, fixed set of views, so
+ * the game state only has to be encoded once per view instead of once per user.
+ */
+public final class GameView {
+
+    /**
+     * Determines which player identities are visible.
+     */
+    public enum Role {
+        SPECTATOR,  // No identities are visible.
+        LIBERAL,    // No identities are visible, but the viewer knows they are liberal.
+        HITLER,     // Only Hitler is visible (Hitler in games with more than 6 players).
+        FASCIST     // All identities are visible (fascists, Hitler with 5-6 players, and everyone once the game ends).
+    }
+
+    /**
+     * Determines which private legislative information is visible.
+     */
+    public enum Office {
+        NONE,
+        PRESIDENT,  // The president's policy choices, the peek, and the result of an investigation are visible.
+        CHANCELLOR  // The chancellor's policy choices are visible.
+    }
+
+    // The maximum number of players for which Hitler knows the identity of the fascists.
+    private static final int MAX_PLAYERS_HITLER_KNOWS_FASCISTS = 6;
+
+    private static final GameView[] VIEWS = new GameView[Role.values().length * Office.values().length];
+    static {
+        for (Role role : Role.values()) {
+            for (Office office : Office.values()) {
+                VIEWS[index(role, office)] = new GameView(role, office);
+            }
+        }
+    }
+
+    // The view for users that are not in a game (also used for lobby packets).
+    public static final GameView PUBLIC = of(Role.SPECTATOR, Office.NONE);
+
+    private final Role role;
+    private final Office office;
+
+    private GameView(Role role, Office office) {
+        this.role = role;
+        this.office = office;
+    }
+
+    /**
+     * Gets the view with the given role and office.
+     * @return the unique GameView instance for {@code role} and {@code office}.
+     */
+    public static GameView of(Role role, Office office) {
+        return VIEWS[index(role, office)];
+    }
+
+    private static int index(Role role, Office office) {
+        return role.ordinal() * Office.values().length + office.ordinal();
+    }
+
+    public Role getRole() { return role; }
+
+    public Office getOffice() { return office; }
+
+    /**
+     * Determines the view of a user in a game.
+     * @param game the SecretHitlerGame.
+     * @param username the username of the user. Users that are not players in {@code game} are spectators.
+     * @return the least privileged view that contains everything the user may see in the current game state.
+     *         Users that would see the same state are given the same view, so that it is only encoded once.
+     */
+    public static GameView forUser(SecretHitlerGame game, String username) {
+        Player player = null;
+        for (Player p : game.getPlayerList()) {
+            if (p.getUsername().equals(username)) {
+                player = p;
+                break;
+            }
+        }
+        return forPlayer(game, player);
+    }
+
+    /**
+     * Determines the view of a player in a game.
+     * @param game the SecretHitlerGame.
+     * @param player the player in {@code game}, or null for a spectator.
+     * @return the same view as {@code forUser(game, player.getUsername())}, without searching for the player.
+     */
+    public static GameView forPlayer(SecretHitlerGame game, Player player) {
+        GameState state = game.getState();
+        if (isGameOver(state)) {
+            return of(Role.FASCIST, Office.NONE); // All identities are revealed at the end of the game.
+        }
+        if (player == null) {
+            return PUBLIC;
+        }
+        String username = player.getUsername();
+
+        Role role;
+        if (player.isHitler()) {
+            boolean knowsFascists = game.getPlayerList().size() <= MAX_PLAYERS_HITLER_KNOWS_FASCISTS;
+            role = knowsFascists ? Role.FASCIST : Role.HITLER;
+        } else if (player.isFascist()) {
+            role = Role.FASCIST;
+        } else {
+            role = Role.LIBERAL;
+        }
+
+        Office office = Office.NONE;
+        if (username.equals(game.getCurrentPresident()) && presidentHasPrivateInformation(game)) {
+            office = Office.PRESIDENT;
+        } else if (username.equals(game.getCurrentChancellor()) && state == GameState.LEGISLATIVE_CHANCELLOR) {
+            office = Office.CHANCELLOR;
+        }
+        return of(role, office);
+    }
+
+    /**
+     * Returns whether the president can see information that is hidden from other players.
+     * @param game the SecretHitlerGame.
+     * @return true if the president is choosing a policy, is peeking, or has just investigated a player.
+     */
+    static boolean presidentHasPrivateInformation(SecretHitlerGame game) {
+        GameState state = game.getState();
+        return state == GameState.LEGISLATIVE_PRESIDENT
+                || state == GameState.PRESIDENTIAL_POWER_PEEK
+                || wasPlayerJustInvestigated(game);
+    }
+
+    /**
+     * Returns whether the last presidential power was an investigation that the president has not ended yet.
+     * @param game the SecretHitlerGame.
+     * @return true iff the game is in {@code POST_LEGISLATIVE} directly after {@code PRESIDENTIAL_POWER_INVESTIGATE}.
+     */
+    static boolean wasPlayerJustInvestigated(SecretHitlerGame game) {
+        return game.getState() == GameState.POST_LEGISLATIVE
+                && game.getLastState() == GameState.PRESIDENTIAL_POWER_INVESTIGATE
+                && game.getTarget() != null;
+    }
+
+    /**
+     * Returns whether the game has ended.
+     * @param state the current state of the game.
+     * @return true iff {@code state} is one of the victory states.
+     */
+    public static boolean isGameOver(GameState state) {
+        return state == GameState.FASCIST_VICTORY_ELECTION
+                || state == GameState.FASCIST_VICTORY_POLICY
+                || state == GameState.LIBERAL_VICTORY_EXECUTION
+                || state == GameState.LIBERAL_VICTORY_POLICY;
+    }
+
+    /**
+     * Returns whether the identity of a player is visible in this view.
+     * @param player the player whose identity would be shown.
+     * @return true iff the role of this view is allowed to see the identity of {@code player}.
+     */
+    public boolean canSeeIdentity(Player player) {
+        switch (role) {
+            case FASCIST:
+                return true;
+            case HITLER:
+                return player.isHitler();
+            case LIBERAL:
+            case SPECTATOR:
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return role + "/" + office;
+    }
+}
@@ -0,0 +1,186 @@
+package server.util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only log of the commands accepted by each lobby, so that the changes made since the last backup of a
+ * lobby can be replayed after a crash.
+ *
+ * Appending only queues the entry, so the mailbox of a lobby never waits for the database. A single writer thread
+ * writes the queued entries in batches (group commit): while one batch is being written, the entries appended in the
+ * meantime are collected into the next one, so the number of writes stays low when commands arrive together.
+ */
+public class Journal {
+
+    // The largest number of entries written at once.
+    public static int MAX_BATCH_SIZE = 500;
+    // The largest number of entries waiting to be written. Entries appended beyond this are dropped.
+    public static int MAX_PENDING_ENTRIES = 100_000;
+    // How long to wait before retrying a batch that could not be written.
+    public static long RETRY_DELAY_MS = 1000;
+    // The number of times a batch is written before it is dropped.
+    public static int MAX_ATTEMPTS = 5;
+
+    /**
+     * One accepted command of a lobby.
+     */
+    public static final class Entry {
+        private final String lobbyCode;
+        private final long sequence;
+        private final String data;
+
+        public Entry(String lobbyCode, long sequence, String data) {
+            this.lobbyCode = lobbyCode;
+            this.sequence = sequence;
+            this.data = data;
+        }
+
+        public String getLobbyCode() {
+            return lobbyCode;
+        }
+
+        /**
+         * Returns the position of the entry in the journal of its lobby. Entries of a lobby are replayed in order.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Stores batches of entries, such as in a database table.
+     */
+    public interface Sink {
+        /**
+         * @param entries the entries to store, in the order they were appended.
+         * @throws Exception if the entries could not be stored. The same batch is written again later, unless the
+         *         error is an SQLException that is not temporary or the batch has failed {@code MAX_ATTEMPTS} times,
+         *         in which case it is dropped.
+         */
+        void write(List<Entry> entries) throws Exception;
+    }
+
+    private final Sink sink;
+    private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>(MAX_PENDING_ENTRIES);
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * Constructs a new Journal and starts its writer thread.
+     * @param sink stores the entries. Only called from the writer thread.
+     */
+    public Journal(Sink sink) {
+        this.sink = sink;
+        Thread writer = new Thread(this::run, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an entry to be written. Can be called from any thread, and does not block.
+     * @param lobbyCode the code of the lobby that accepted the command.
+     * @param sequence the position of the entry in the journal of the lobby.
+     * @param data the command, in a form that the lobby can replay.
+     * @effects the entry is written after every entry appended before it. If {@code MAX_PENDING_ENTRIES} entries are
+     *          already waiting, the entry is dropped instead.
+     */
+    public void append(String lobbyCode, long sequence, String data) {
+        appendedCount.incrementAndGet();
+        if (!pending.offer(new Entry(lobbyCode, sequence, data))) {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for the entries appended so far to be written, such as before the server shuts down.
+     * @param timeoutMs the longest time to wait.
+     * @return true iff every entry appended before this call was written or dropped.
+     */
+    public boolean flush(long timeoutMs) throws InterruptedException {
+        long target = appendedCount.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (writtenCount.get() + droppedCount.get() < target) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sink.write(batch);
+                    writtenCount.addAndGet(batch.size());
+                    batchCount.incrementAndGet();
+                    break;
+                } catch (Exception e) {
+                    // An error that will happen again would stop every later entry from being written.
+                    boolean retry = attempt < MAX_ATTEMPTS
+                            && !(e instanceof SQLException && !DatabaseGateway.isTemporary((SQLException) e));
+                    Log.event(Log.Category.LOBBY, retry ? "journal-write-failed" : "journal-batch-dropped",
+                            "entries", batch.size(), "attempt", attempt, "error", e.toString());
+                    if (!retry) {
+                        droppedCount.addAndGet(batch.size());
+                        break;
+                    }
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries that have been written.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the number of entries that were dropped because too many were waiting to be written, or because their
+     * batch could not be written.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of batches that have been written.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of entries waiting to be written.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -1,79 +1,211 @@
 package server.util;
 
-import game.GameState;
+import game.RuleViolation;
 import game.SecretHitlerGame;
+import game.datastructures.StateCodec;
 import io.javalin.websocket.WsContext;
 import org.json.JSONObject;
 import server.SecretHitlerServer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * A Lobby holds a collection of websocket connections, each representing a player.
  * It maintains the game that the connections are associated with.
  *
  * A user is defined as an active websocket connection.
+ *
+ * Each lobby has a mailbox ({@code execute()}). Commands, connections, disconnections and timer events for the lobby
+ * are run as tasks in its mailbox, one at a time and in order, so the lobby does not use locks. The mailbox runs on
+ * the shard of the shared {@code EventLoopGroup} chosen by the code of the lobby. Unless stated
+ * otherwise, the methods of a Lobby must only be called from a task in its mailbox (or by a single thread before the
+ * lobby is shared, such as in tests).
  */
 public class Lobby implements Serializable {
 
+    // The UID of the class before lobbies were stored with StateCodec, so that old backups can still be read.
+    private static final long serialVersionUID = -8376927383562791L;
+
+    // The code of the lobby, which determines the shard that runs its mailbox. Only null for a lobby read from a
+    // backup that was written before lobbies stored their code, until restoreCode() is called.
+    private String code;
     private SecretHitlerGame game;
-    // These two marked transient because they track currently active/connected users.
-    transient private ConcurrentHashMap<WsContext, String> userToUsername;
-    transient private ConcurrentLinkedQueue<String> activeUsernames;
+    // These are marked transient because they track currently active/connected users.
+    transient private ConcurrentHashMap<WsContext, UserSession> userToSession;
+    // Indexes of the connected users, so that checks for a name or icon take constant time.
+    transient private HashMap<String, UserSession> usernameToSession;
+    transient private HashMap<String, String> iconToUsername; // only holds icons other than DEFAULT_ICON.
+    // The names of connected users and of users that recently disconnected, in the order they joined.
+    transient private LinkedHashSet<String> activeUsernames;
     final private ConcurrentSkipListSet<String> usersInGame;
     final private ConcurrentHashMap<String, String> usernameToIcon;
     // Used to reassign users to previously chosen images if they disconnect
     final private ConcurrentHashMap<String, String> usernameToPreferredIcon;
 
     public static long LOBBY_TIMEOUT_DURATION_IN_MIN = 30;
+    // If greater than 0, broadcasts are delayed by up to this many milliseconds so that bursts of changes (such as
+    // votes) are sent to users as a single state update.
+    public static long BROADCAST_WINDOW_MS = 0;
     public static float PLAYER_TIMEOUT_IN_SEC = 3;
-    private long timeout;
-    private static int MAX_TIMER_SCHEDULING_ATTEMPTS = 2;
-    transient private Timer timer = new Timer();
+    // The number of commands all users of a lobby may send in a burst, and the rate they are allowed at afterwards.
+    public static double COMMAND_BURST = 60;
+    public static double COMMANDS_PER_SECOND = 30;
+    // Volatile so that the timeout can be reset (such as by pings) outside of the mailbox.
+    private volatile long timeout;
+    // The sequence number of the last journal entry applied to the lobby. Stored with the lobby, so that only later
+    // entries are replayed when the lobby is loaded. Only accessed from the mailbox (or before the lobby is shared).
+    private long journalSequence;
+    // Pending removals of users that disconnected, which are cancelled if the user reconnects in time.
+    transient private HashMap<String, TimerWheel.Timeout> usernameToRemoval;
+
+    // Every change produces a new state version. The packet for a version is encoded at most once and the
+    // same String is sent to every connection that requests it.
+    transient private long stateVersion;
+    // Each GameView has its own history, since users with different views are sent different states.
+    transient private HashMap<GameView, StateHistory> viewToStateHistory;
+    transient private long encodesAvoided;
+    // The binary state frames of the current version for each view.
+    transient private HashMap<GameView, byte[]> viewToBinaryPacket;
+    transient private long binaryPacketVersion;
+    transient private Mailbox mailbox;
+    // Whether a delayed broadcast has been scheduled but not sent yet.
+    transient private boolean isBroadcastScheduled;
+    private static final AtomicLong totalBroadcastsCoalesced = new AtomicLong();
+    // The state version that was last broadcast, so a broadcast is skipped if nothing changed since.
+    transient private long broadcastVersion;
+    private static final AtomicLong totalBroadcastsSkipped = new AtomicLong();
+    // The change count of the game when it was last checked, to detect changes made through game().
+    transient private long seenGameChanges;
+    // Whether the lobby changed since it was last backed up. Set in the mailbox and cleared by the backup.
+    transient private AtomicBoolean hasUnsavedChanges;
+    transient private TokenBucket commandLimit;
+    private static final AtomicLong totalCommandsRejected = new AtomicLong();
+    private static final AtomicLong totalEncodesAvoided = new AtomicLong();
 
     static String DEFAULT_ICON = "p_default";
 
     /**
      * Constructs a new Lobby.
+     * @param code the code of the lobby.
      */
-    public Lobby() {
-        userToUsername = new ConcurrentHashMap<>();
-        activeUsernames = new ConcurrentLinkedQueue<>();
+    public Lobby(String code) {
+        this.code = code;
+        userToSession = new ConcurrentHashMap<>();
+        usernameToSession = new HashMap<>();
+        iconToUsername = new HashMap<>();
+        activeUsernames = new LinkedHashSet<>();
         usersInGame = new ConcurrentSkipListSet<>();
         usernameToIcon = new ConcurrentHashMap<>();
         usernameToPreferredIcon = new ConcurrentHashMap<>();
+        viewToStateHistory = new HashMap<>();
+        viewToBinaryPacket = new HashMap<>();
+        usernameToRemoval = new HashMap<>();
+        mailbox = new Mailbox(EventLoopGroup.shared().forKey(code));
+        commandLimit = new TokenBucket(COMMAND_BURST, COMMANDS_PER_SECOND);
+        broadcastVersion = -1;
+        hasUnsavedChanges = new AtomicBoolean(true);
         resetTimeout();
     }
 
     /**
      * Resets the internal timeout for this.
-     * @effects The lobby will time out in {@code TIMEOUT_DURATION_MS} ms from now.
+     * @effects The lobby will time out in {@code TIMEOUT_DURATION_MS} ms from now. Can be called from any thread.
      */
-    synchronized public void resetTimeout() {
+    public void resetTimeout() {
         // The timeout duration for the server. (currently 30 minutes)
             long MS_PER_MINUTE = 1000 * 60;
             timeout = System.currentTimeMillis() + MS_PER_MINUTE * LOBBY_TIMEOUT_DURATION_IN_MIN;
     }
 
+    /**
+     * Runs a task in the mailbox of this lobby. Can be called from any thread.
+     * @param task the task to run.
+     * @effects runs {@code task} after all previously submitted tasks for this lobby have finished. Does not block.
+     */
+    public void execute(Runnable task) {
+        mailbox.execute(task);
+    }
+
+    /**
+     * Computes a value in the mailbox of this lobby. Can be called from any thread.
+     * @param task the task to run.
+     * @return a future that completes with the result of {@code task} once it has run.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return mailbox.submit(task);
+    }
+
+    /**
+     * Returns the number of tasks waiting to run (or running) in the mailbox of this lobby. Can be called from any
+     * thread.
+     */
+    public int getMailboxDepth() {
+        return mailbox.getDepth();
+    }
+
+    /**
+     * Returns the time at which the lobby times out.
+     * @return the timeout, in milliseconds since the epoch. Can be called from any thread.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Checks the command rate limit of the lobby. Can be called from any thread.
+     * @modifies this
+     * @effects uses up one command from the limit of the lobby if the command is allowed.
+     * @return true iff the users of the lobby have not sent more than {@code COMMAND_BURST} commands recently, or more
+     *         than {@code COMMANDS_PER_SECOND} per second on average.
+     */
+    public boolean tryAcquireCommand() {
+        if (commandLimit.tryAcquire()) {
+            return true;
+        }
+        totalCommandsRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of commands rejected by the rate limits of lobbies, across all lobbies.
+     */
+    public static long getTotalCommandsRejected() {
+        return totalCommandsRejected.get();
+    }
+
+    /**
+     * Returns the code of the lobby.
+     */
+    public String getCode() {
+        return code;
+    }
+
     /**
      * Returns whether the lobby has timed out.
-     * @return true if the Lobby has timed out.
+     * @return true if the Lobby has timed out. Can be called from any thread.
      */
-    synchronized public boolean hasTimedOut() {
+    public boolean hasTimedOut() {
         return timeout <= System.currentTimeMillis();
     }
 
     /**
      * Returns the set of websocket connections connected to this Lobby.
-     * @return a set of WsContexts, where each context is a user connected to the Lobby.
+     * @return a set of WsContexts, where each context is a user connected to the Lobby. Can be called from any
+     *         thread (the set is a concurrent view).
      */
-    synchronized public Set<WsContext> getConnections() {
-        return userToUsername.keySet();
+    public Set<WsContext> getConnections() {
+        return userToSession.keySet();
     }
 
     /////// User Management
@@ -84,25 +216,27 @@ public class Lobby implements Serializable {
      * @param context the Websocket context of a user.
      * @return true iff the {@code context} is in this lobby.
      */
-    synchronized public boolean hasUser(WsContext context) {
-        return userToUsername.containsKey(context);
+    public boolean hasUser(WsContext context) {
+        return userToSession.containsKey(context);
     }
 
-    /**
-     * Returns whether a user with the given name exists in this lobby.
-     * @param context the Websocket context of the user.
-     * @param name the name of the user.
-     * @return true iff {@code context} is a user in the lobby with the name {@code name}.
-     */
-    synchronized public boolean hasUser(WsContext context, String name) {return userToUsername.containsKey(context) && userToUsername.get(context).equals(name); }
-
     /**
      * Returns true if the lobby has a user with a given username.
      * @param name the username to check the Lobby for.
      * @return true iff the username {@code name} is in this lobby.
      */
-    synchronized public boolean hasUserWithName(String name) {
-        return userToUsername.values().contains(name);
+    public boolean hasUserWithName(String name) {
+        return usernameToSession.containsKey(name);
+    }
+
+    /**
+     * Gets the username of a user.
+     * @param context the Websocket context of the user.
+     * @return the username of {@code context}, or null if the user is not in this lobby.
+     */
+    public String getUsername(WsContext context) {
+        UserSession session = userToSession.get(context);
+        return session == null ? null : session.getUsername();
     }
 
     /**
@@ -112,7 +246,7 @@ public class Lobby implements Serializable {
      *         removed from the lobby.
      *
      */
-    synchronized public boolean canAddUserDuringGame(String name) {
+    public boolean canAddUserDuringGame(String name) {
         return (usersInGame.contains(name) && !activeUsernames.contains(name)); // the user was in the game but was disconnected.
     }
 
@@ -120,14 +254,14 @@ public class Lobby implements Serializable {
      * Checks whether the lobby is full.
      * @return Returns true if the number of players in the lobby is {@literal >= } {@code SecretHitlerGame.MAX_PLAYERS}.
      */
-    synchronized public boolean isFull() {
+    public boolean isFull() {
         return activeUsernames.size() >= SecretHitlerGame.MAX_PLAYERS;
     }
 
     /**
      * Adds a user (websocket connection) to the lobby.
-     * @param context the websocket connection context.
-     * @param name the name of the player to be added.
+     * @param session the session of the websocket connection, which has this lobby and the name of the player to
+     *                be added.
      * @throws IllegalArgumentException if a duplicate websocket is added, if there is already a websocket with the
      *         given name in the game, if the lobby is full, if the player has a duplicate name,
      *         or if a new player is added during a game.
@@ -136,20 +270,22 @@ public class Lobby implements Serializable {
      *          If the game has already started, the player can only join if a player with the name {@name} was
      *          previously in the same game but was removed.
      */
-    synchronized public void addUser(WsContext context, String name) {
-        if(userToUsername.containsKey(context)) {
+    public void addUser(UserSession session) {
+        WsContext context = session.getContext();
+        String name = session.getUsername();
+        if(userToSession.containsKey(context)) {
             throw new IllegalArgumentException("Duplicate websockets cannot be added to a lobby.");
         } else {
             if (isInGame()) {
                 if(canAddUserDuringGame(name)) { // This username is in the game but is not currently connected.
                     // allow the user to be connected.
-                    userToUsername.put(context, name);
+                    putSession(session);
 
-                    usernameToIcon.put(name, DEFAULT_ICON); // load default icon
+                    setIcon(name, DEFAULT_ICON); // load default icon
                     // Try setting the player's icon using their previous choice
                     if (usernameToPreferredIcon.containsKey(name)) {
                         String iconID = usernameToPreferredIcon.get(name);
-                        trySetUserIcon(iconID, context);
+                        trySetUserIcon(iconID, session);
                     }
                 } else {
                     throw new IllegalArgumentException("Cannot add a new player to a lobby currently in a game.");
@@ -157,16 +293,14 @@ public class Lobby implements Serializable {
             } else {
                 if (!isFull()) {
                     if (!hasUserWithName(name)) { // This is a new user with a new name, so we add them to the Lobby.
-                        userToUsername.put(context, name);
-                        if (!activeUsernames.contains(name)) {
-                            activeUsernames.add(name);
-                        }
+                        putSession(session);
+                        activeUsernames.add(name);
                         // Set icon to default
-                        usernameToIcon.put(name, DEFAULT_ICON);
+                        setIcon(name, DEFAULT_ICON);
                         // Attempt to retrieve previous icon (if it exists)
                         if (usernameToPreferredIcon.containsKey(name)) {
                             String iconID = usernameToPreferredIcon.get(name);
-                            trySetUserIcon(iconID, context);
+                            trySetUserIcon(iconID, session);
                         }
                     } else {
                         throw new IllegalArgumentException("Cannot add duplicate names.");
@@ -175,59 +309,71 @@ public class Lobby implements Serializable {
                     throw new IllegalArgumentException("Cannot add the player because the lobby is full.");
                 }
             }
+            // The user reconnected before they were removed, so the removal is no longer needed.
+            TimerWheel.Timeout pendingRemoval = usernameToRemoval.remove(name);
+            if (pendingRemoval != null) {
+                pendingRemoval.cancel();
+            }
+            advanceStateVersion();
         }
     }
 
+    private void putSession(UserSession session) {
+        userToSession.put(session.getContext(), session);
+        usernameToSession.put(session.getUsername(), session);
+        session.setInLobby(true);
+    }
+
     /**
      * Removes a user from the Lobby.
-     * @param context the websocket connection context of the player to remove.
-     * @throws IllegalArgumentException if {@code context} is not a user in the Lobby.
+     * @param session the session of the websocket connection of the player to remove.
+     * @throws IllegalArgumentException if {@code session} is not a user in the Lobby.
      * @modifies this
      * @effects removes the user context (websocket connection) of the player from the lobby.
      */
-    synchronized public void removeUser(WsContext context) {
-        if (!hasUser(context)) {
+    public void removeUser(UserSession session) {
+        if (!userToSession.remove(session.getContext(), session)) {
             throw new IllegalArgumentException("Cannot remove a websocket that is not in the Lobby.");
         } else {
-            // Delay removing players from the list by adding it to a timer.
-            int delay_in_ms = (int) (PLAYER_TIMEOUT_IN_SEC * 1000);
-            final String username = userToUsername.get(context);
-
-            int timerSchedulingAttempts = 0;
-            while (timerSchedulingAttempts < MAX_TIMER_SCHEDULING_ATTEMPTS) {
-                try {
-                    timer.schedule(new RemoveUserTask(username), delay_in_ms);
-                    break; // exit loop if successful
-                } catch (IllegalStateException e) {
-                    // Timer hit an error state and must be reset.
-                    timer.cancel();
-                    timer = new Timer();
-                    timerSchedulingAttempts++;
-                }
+            // Delay removing players from the list by adding it to the timer wheel.
+            long delay_in_ms = (long) (PLAYER_TIMEOUT_IN_SEC * 1000);
+            final String username = session.getUsername();
+            usernameToSession.remove(username, session);
+            // The icon is kept until the user is removed from activeUsernames, but other users may now take it.
+            String icon = usernameToIcon.get(username);
+            if (icon != null) {
+                iconToUsername.remove(icon, username);
             }
-            if (timerSchedulingAttempts == MAX_TIMER_SCHEDULING_ATTEMPTS) {
-                System.out.println("Failed to schedule removal of the user '" + username + "'.");
+            TimerWheel.Timeout previousRemoval = usernameToRemoval.put(username,
+                    TimerWheel.SHARED.schedule(new RemoveUserTask(username), delay_in_ms, TimeUnit.MILLISECONDS));
+            if (previousRemoval != null) {
+                previousRemoval.cancel();
             }
 
-            userToUsername.remove(context);
+            session.setInLobby(false);
+            session.close();
+            advanceStateVersion();
         }
     }
 
     /**
      * Small helper class for removing users from the active users queue.
+     * The timer only submits the removal to the mailbox of the lobby.
      */
-    class RemoveUserTask extends TimerTask {
+    class RemoveUserTask implements Runnable {
         private final String username;
 
         RemoveUserTask(String username) { this.username = username; }
 
         public void run() {
-            if (!userToUsername.values().contains(username) && activeUsernames.contains(username)) {
-                activeUsernames.remove(username);
+            mailbox.execute(this::removeUser);
+        }
 
-                if (usernameToIcon.containsKey(username)) {
-                    usernameToIcon.remove(username);  // possible for users to disconnect before choosing icon
-                }
+        private void removeUser() {
+            usernameToRemoval.remove(username);
+            if (!hasUserWithName(username) && activeUsernames.remove(username)) {
+                usernameToIcon.remove(username);  // possible for users to disconnect before choosing icon
+                advanceStateVersion();
                 updateAllUsers();
             }
         }
@@ -237,93 +383,507 @@ public class Lobby implements Serializable {
      * Returns the number of active users connected to the Lobby.
      * @return the number of active websocket connections currently in the lobby.
      */
-    synchronized public int getUserCount() {
+    public int getUserCount() {
         return activeUsernames.size();
     }
 
     /**
-     * Sends a message to every connected user with the current game state.
-     * @effects a message containing a JSONObject representing the state of the SecretHitlerGame is sent
-     *          to each connected WsContext. ({@code GameToJSONConverter.convert()})
+     * Sends a message to every connected user with the current game state, if it changed since the last broadcast.
+     * @effects a message containing a JSONObject representing the state of the SecretHitlerGame, as seen from the
+     *          GameView of the user, is sent to each connected WsContext. ({@code GameStateWriter.writeGamePacket()})
+     *          The state is encoded once per GameView.
+     *          Users with delta updates enabled receive a patch against the last version they were sent instead.
+     *          If {@code BROADCAST_WINDOW_MS} is greater than 0, the message is sent up to that many milliseconds
+     *          later, and all calls made in the meantime are combined into that single message.
+     *          Nothing is sent if neither the lobby nor the game changed since the last broadcast.
+     */
+    public void updateAllUsers() {
+        pollGameChanges();
+        if (isBroadcastScheduled) {
+            totalBroadcastsCoalesced.incrementAndGet();
+        } else if (stateVersion == broadcastVersion) {
+            totalBroadcastsSkipped.incrementAndGet();
+        } else if (BROADCAST_WINDOW_MS <= 0) {
+            broadcastState();
+        } else {
+            isBroadcastScheduled = true;
+            TimerWheel.SHARED.schedule(() -> mailbox.execute(this::sendScheduledBroadcast),
+                    BROADCAST_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends a broadcast that was delayed by {@code updateAllUsers()}.
      */
-    synchronized public void updateAllUsers() {
-        for (WsContext ws : userToUsername.keySet()) {
-            updateUser(ws);
+    private void sendScheduledBroadcast() {
+        if (isBroadcastScheduled) {
+            isBroadcastScheduled = false;
+            broadcastState();
         }
-        //Check if the game ended.
-        if (game != null && (game.getState() == GameState.FASCIST_VICTORY_ELECTION
-                || game.getState() == GameState.FASCIST_VICTORY_POLICY
-                || game.getState() == GameState.LIBERAL_VICTORY_EXECUTION
-                || game.getState() == GameState.LIBERAL_VICTORY_POLICY)) {
+    }
+
+    /**
+     * Returns the number of broadcasts that were combined with an earlier delayed broadcast, across all lobbies.
+     */
+    public static long getTotalBroadcastsCoalesced() {
+        return totalBroadcastsCoalesced.get();
+    }
+
+    /**
+     * Returns the number of broadcasts that were skipped because nothing changed, across all lobbies.
+     */
+    public static long getTotalBroadcastsSkipped() {
+        return totalBroadcastsSkipped.get();
+    }
+
+    /**
+     * Sends the current state version to every connected user, then clears the game if it has ended.
+     */
+    private void broadcastState() {
+        broadcastVersion = stateVersion;
+        for (UserSession session : userToSession.values()) {
+            sendState(session, true);
+        }
+        endGameIfOver();
+    }
+
+    /**
+     * Clears the game if it has ended.
+     * @modifies this
+     * @effects if the game is over, the lobby is no longer in a game.
+     */
+    private void endGameIfOver() {
+        if (game != null && GameView.isGameOver(game.getState())) {
             game = null;
+            advanceStateVersion();
         }
     }
 
     /**
      * Sends a message to the specified user with the current game state.
-     * @param ctx the WsContext websocket context.
-     * @effects a message containing a JSONObject representing the state of the SecretHitlerGame is sent
-     *          to the specified WsContext. ({@code GameToJSONConverter.convert()})
+     * @param session the session of the user.
+     * @effects a message containing a JSONObject representing the state of the SecretHitlerGame, as seen from the
+     *          GameView of the user, is sent to the specified WsContext. ({@code GameStateWriter.writeGamePacket()})
+     *          The full state is always sent, so this can be used to resynchronize users with delta updates enabled.
+     */
+    public void updateUser(UserSession session) {
+        pollGameChanges();
+        sendState(session, false);
+    }
+
+    /**
+     * Gets the view of the game for the given user.
+     * @param session the session of the user.
+     * @return the GameView of the user if the lobby is in a game. Otherwise, returns {@code GameView.PUBLIC}.
+     */
+    private GameView getView(UserSession session) {
+        if (!isInGame()) {
+            return GameView.PUBLIC;
+        }
+        return GameView.forPlayer(game, session.getPlayer(game));
+    }
+
+    /**
+     * Sends the current state version to a user.
+     * @param session the session of the user.
+     * @param allowPatch whether a patch may be sent instead of the full state.
+     * @effects queues a {@code PACKET_GAME_STATE_DELTA} packet if {@code allowPatch} is true, the user accepts
+     *          patches, and the last version received by the user is still in the state history of their view.
+     *          Otherwise, queues the full state. Any state packet that the user has not been sent yet is replaced.
+     */
+    private void sendState(UserSession session, boolean allowPatch) {
+        if (!session.isInLobby()) {
+            return;
+        }
+        OutboundQueue queue = session.getQueue();
+        GameView view = getView(session);
+        if (session.isBinary()) {
+            queue.sendState(getBinaryStatePacket(view));
+            return;
+        }
+        if (!session.acceptsPatches()) {
+            queue.sendState(getStatePacket(view));
+            return;
+        }
+
+        // If the last state packet is still queued it will be dropped, so the patch must apply to its base instead.
+        // (If it is sent in the meantime, the client sees a mismatched base version and requests the full state.)
+        long baseVersion = queue.hasPendingState() ? session.lastSentBaseVersion : session.lastSentVersion;
+        StateHistory history = encodeCurrentVersion(view);
+        if (allowPatch && session.lastSentView == view && baseVersion >= 0 && history.canPatchFrom(baseVersion)) {
+            if (history.hasCachedPatchFrom(baseVersion)) {
+                encodesAvoided++;
+                totalEncodesAvoided.incrementAndGet();
+            }
+            JSONObject delta = new JSONObject();
+            delta.put(SecretHitlerServer.PARAM_PACKET_TYPE, SecretHitlerServer.PACKET_GAME_STATE_DELTA);
+            delta.put(SecretHitlerServer.PARAM_BASE_VERSION, baseVersion);
+            delta.put(SecretHitlerServer.PARAM_VERSION, stateVersion);
+            // The patch is already encoded, so it is spliced into the packet instead of being parsed again.
+            String packet = delta.toString();
+            queue.sendState(packet.substring(0, packet.length() - 1) + ",\"" + SecretHitlerServer.PARAM_PATCH + "\":"
+                    + history.getPatchFrom(baseVersion) + "}");
+            session.lastSentBaseVersion = baseVersion;
+        } else {
+            queue.sendState(getStatePacket(view));
+            session.lastSentBaseVersion = -1;
+        }
+        session.lastSentView = view;
+        session.lastSentVersion = stateVersion;
+    }
+
+    /**
+     * Marks the lobby state as changed.
+     * @modifies this
+     * @effects increments the state version, so that the next call to {@code getStatePacket()} re-encodes the state.
+     */
+    private void advanceStateVersion() {
+        stateVersion++;
+        hasUnsavedChanges.set(true);
+    }
+
+    /**
+     * Checks whether the game was changed through {@code game()} since the last check.
+     * @modifies this
+     * @effects advances the state version if the change count of the game has changed.
+     */
+    private void pollGameChanges() {
+        if (game != null && game.getChangeCount() != seenGameChanges) {
+            seenGameChanges = game.getChangeCount();
+            advanceStateVersion();
+        }
+    }
+
+    /**
+     * Marks the lobby as backed up. Can be called from any thread.
+     * @modifies this
+     * @effects the lobby has no unsaved changes until its state changes again.
+     * @return true iff the lobby changed since it was last marked as backed up.
+     */
+    public boolean markSaved() {
+        return hasUnsavedChanges.getAndSet(false);
+    }
+
+    /**
+     * Marks the lobby as changed, such as after a backup of it failed. Can be called from any thread.
+     * @modifies this
+     * @effects the lobby has unsaved changes.
+     */
+    public void markUnsaved() {
+        hasUnsavedChanges.set(true);
+    }
+
+    /**
+     * Returns the current state version of the lobby.
+     * @return a number that increases every time the lobby state is changed.
+     */
+    public long getStateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * Returns the number of times a cached state packet was sent instead of encoding the state again.
+     * @return the number of avoided encodes for this lobby since it was created or loaded.
+     */
+    public long getEncodesAvoided() {
+        return encodesAvoided;
+    }
+
+    /**
+     * Returns the number of avoided state encodes across all lobbies.
+     * @return the total count of cached state packets that were reused.
+     */
+    public static long getTotalEncodesAvoided() {
+        return totalEncodesAvoided.get();
+    }
+
+    /**
+     * Gets the serialized state packet for the current state version.
+     * @param view the GameView to encode the state for.
+     * @return the String message sent to users to update them on the lobby and game state. The message is only
+     *         encoded once per state version and view; later calls return the cached String.
+     */
+    private String getStatePacket(GameView view) {
+        StateHistory history = viewToStateHistory.get(view);
+        if (history != null && history.isCurrent(stateVersion)) {
+            encodesAvoided++;
+            totalEncodesAvoided.incrementAndGet();
+        } else {
+            history = encodeCurrentVersion(view);
+        }
+        return history.getPacket();
+    }
+
+    /**
+     * Gets the binary state frame for the current state version.
+     * @param view the GameView to encode the state for.
+     * @return the binary frame ({@code BinaryProtocol}) for the lobby or game state. The frame is only encoded once
+     *         per state version and view.
      */
-    synchronized public void updateUser(WsContext ctx) {
-        JSONObject message;
+    private byte[] getBinaryStatePacket(GameView view) {
+        if (binaryPacketVersion != stateVersion) {
+            viewToBinaryPacket.clear();
+            binaryPacketVersion = stateVersion;
+        }
+        byte[] packet = viewToBinaryPacket.get(view);
+        if (packet != null) {
+            encodesAvoided++;
+            totalEncodesAvoided.incrementAndGet();
+            return packet;
+        }
         if (isInGame()) {
-            message = GameToJSONConverter.convert(game); // sends the game state
-            message.put(SecretHitlerServer.PARAM_PACKET_TYPE, SecretHitlerServer.PACKET_GAME_STATE);
+            packet = BinaryProtocol.encodeGame(game, view, usernameToIcon, stateVersion);
         } else {
-            message = new JSONObject();
-            message.put(SecretHitlerServer.PARAM_PACKET_TYPE, SecretHitlerServer.PACKET_LOBBY);
-            message.put("user-count", getUserCount());
-            message.put("usernames", activeUsernames.toArray());
+            packet = BinaryProtocol.encodeLobby(activeUsernames, usernameToIcon, stateVersion);
+        }
+        viewToBinaryPacket.put(view, packet);
+        return packet;
+    }
+
+    /**
+     * Adds the current state version to the state history of a view if it has not been encoded yet.
+     * @param view the GameView to encode the state for.
+     * @modifies this
+     * @effects the state history of {@code view} holds the encoded packet for {@code stateVersion}.
+     * @return the state history of {@code view}.
+     */
+    private StateHistory encodeCurrentVersion(GameView view) {
+        StateHistory history = viewToStateHistory.computeIfAbsent(view, v -> new StateHistory());
+        if (!history.isCurrent(stateVersion)) {
+            String type = isInGame() ? SecretHitlerServer.PACKET_GAME_STATE : SecretHitlerServer.PACKET_LOBBY;
+            history.add(stateVersion, encodeStatePacket(view), type);
         }
-        // Add user icons to the update message
-        JSONObject icons = new JSONObject(usernameToIcon);
-        message.put("icon", icons);
+        return history;
+    }
 
-        ctx.send(message.toString());
+    /**
+     * Encodes the state of the lobby or game as a JSON packet.
+     * @param view the GameView that determines which parts of the game state are included.
+     * @return a JSON String representing the state of the SecretHitlerGame as seen from {@code view} if there is one,
+     *         otherwise the state of the lobby. The packet includes the user icons and the current state version.
+     *         ({@code GameStateWriter})
+     */
+    private String encodeStatePacket(GameView view) {
+        if (isInGame()) {
+            return GameStateWriter.writeGamePacket(game, view, usernameToIcon, stateVersion);
+        } else {
+            return GameStateWriter.writeLobbyPacket(activeUsernames, usernameToIcon, stateVersion);
+        }
     }
 
     /**
      * Called when an object is deserialized (see Serializable in Java docs).
-     * Initializes the userToUsername and activeUsernames, as they are transient objects and not saved during
-     * serialization of Lobby.
+     * Initializes the userToSession, its indexes and activeUsernames, as they are transient objects and not saved during
+     * serialization of Lobby. If the lobby was written without its code, the mailbox is created by restoreCode().
      * @param in the Object Input Stream that is reading in the object.
      * @throws IOException
      * @throws ClassNotFoundException
      */
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        userToUsername = new ConcurrentHashMap<>();
-        activeUsernames = new ConcurrentLinkedQueue<>();
-        timer = new Timer();
+        userToSession = new ConcurrentHashMap<>();
+        usernameToSession = new HashMap<>();
+        iconToUsername = new HashMap<>();
+        activeUsernames = new LinkedHashSet<>();
+        usernameToRemoval = new HashMap<>();
+        viewToStateHistory = new HashMap<>();
+        viewToBinaryPacket = new HashMap<>();
+        if (code != null) {
+            mailbox = new Mailbox(EventLoopGroup.shared().forKey(code));
+        }
+        commandLimit = new TokenBucket(COMMAND_BURST, COMMANDS_PER_SECOND);
+        broadcastVersion = -1;
+        hasUnsavedChanges = new AtomicBoolean(false); // the lobby was just loaded from the backup.
+    }
+
+    /**
+     * Sets the code of a lobby read from a backup that was written before lobbies stored their code.
+     * @param code the code the lobby was stored under.
+     * @throws IllegalStateException if the lobby already has a code.
+     * @modifies this
+     * @effects sets the code of the lobby and creates its mailbox on the shard for {@code code}. Must be called
+     *          before the lobby is used.
+     */
+    public void restoreCode(String code) {
+        if (this.code != null) {
+            throw new IllegalStateException("The lobby already has the code " + this.code + ".");
+        }
+        this.code = code;
+        mailbox = new Mailbox(EventLoopGroup.shared().forKey(code));
+    }
+
+    /**
+     * Encodes the saved state of the lobby: its code, game, players, icons, timeout and journal sequence. Connected
+     * users are not saved.
+     * @return the lobby in the format of {@code StateCodec}.
+     */
+    public byte[] encode() {
+        StateCodec.Writer out = new StateCodec.Writer();
+        int section = out.beginSection();
+        out.writeString(code);
+        out.writeLong(timeout);
+        out.writeLong(journalSequence);
+        out.writeBoolean(game != null);
+        if (game != null) {
+            game.encode(out);
+        }
+        out.writeVarInt(usersInGame.size());
+        for (String username : usersInGame) {
+            out.writeString(username);
+        }
+        writeIcons(out, usernameToIcon);
+        writeIcons(out, usernameToPreferredIcon);
+        out.endSection(section);
+        return out.toByteArray();
+    }
+
+    /**
+     * Captures the saved state of the lobby for a backup ({@code SnapshotPipeline}). Must be run in the mailbox, so
+     * that no command changes the lobby while it is encoded.
+     * @return a snapshot of the lobby with the sequence number of the last journal entry it includes.
+     */
+    SnapshotPipeline.Snapshot snapshot() {
+        return new SnapshotPipeline.Snapshot(this, journalSequence, encode());
+    }
+
+    /**
+     * Reads a lobby that an older server stored with Java serialization.
+     * @param code the code the lobby was stored under.
+     * @param data the serialized lobby.
+     * @throws IOException if the data is not a serialized lobby.
+     * @throws ClassNotFoundException if the data refers to classes that no longer exist.
+     * @return the lobby, marked as unsaved so that the next backup stores it with {@code StateCodec}.
+     */
+    public static Lobby decodeSerialized(String code, byte[] data) throws IOException, ClassNotFoundException {
+        Object object = readSerialized(data);
+        if (!(object instanceof Lobby)) {
+            throw new IOException("The data is not a serialized lobby.");
+        }
+        Lobby lobby = (Lobby) object;
+        if (lobby.code == null) {
+            lobby.restoreCode(code);
+        }
+        lobby.markUnsaved();
+        return lobby;
+    }
+
+    /**
+     * Reads the single-row backup of every lobby that servers stored before lobbies had their own rows.
+     * @param data the serialized map from lobby codes to lobbies.
+     * @throws IOException if the data is not a serialized map of lobbies.
+     * @throws ClassNotFoundException if the data refers to classes that no longer exist.
+     * @return the lobbies by code, each marked as unsaved so that the next backup stores it in its own row.
+     */
+    public static ConcurrentHashMap<String, Lobby> decodeSerializedBackup(byte[] data)
+            throws IOException, ClassNotFoundException {
+        Object object = readSerialized(data);
+        if (!(object instanceof Map)) {
+            throw new IOException("The data is not a serialized map of lobbies.");
+        }
+        ConcurrentHashMap<String, Lobby> lobbies = new ConcurrentHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+            if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof Lobby)) {
+                throw new IOException("The data is not a serialized map of lobbies.");
+            }
+            String code = (String) entry.getKey();
+            Lobby lobby = (Lobby) entry.getValue();
+            if (lobby.code == null) { // lobbies did not store their code, so it is taken from the map.
+                lobby.restoreCode(code);
+            }
+            lobby.markUnsaved();
+            lobbies.put(code, lobby);
+        }
+        return lobbies;
+    }
+
+    private static Object readSerialized(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+
+    private static void writeIcons(StateCodec.Writer out, Map<String, String> icons) {
+        out.writeVarInt(icons.size());
+        for (Map.Entry<String, String> icon : icons.entrySet()) {
+            out.writeString(icon.getKey());
+            out.writeString(icon.getValue());
+        }
+    }
+
+    private static void readIcons(StateCodec.Reader in, Map<String, String> icons) throws IOException {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            icons.put(in.readString(), in.readString());
+        }
+    }
+
+    /**
+     * Decodes a lobby written by {@code encode}.
+     * @param data the encoded lobby.
+     * @throws IOException if the data is invalid or cannot be read by this version.
+     * @return a lobby with the saved state of the encoded lobby and no connected users. The lobby is marked as saved,
+     *         unless the data was written by an older version, so that it is saved again in the current format.
+     */
+    public static Lobby decode(byte[] data) throws IOException {
+        StateCodec.Reader in = new StateCodec.Reader(data);
+        int end = in.beginSection();
+        Lobby lobby = new Lobby(in.readString());
+        lobby.timeout = in.readLong();
+        lobby.journalSequence = in.readLong();
+        if (in.readBoolean()) {
+            lobby.game = SecretHitlerGame.decode(in);
+        }
+        int usersInGame = in.readVarInt();
+        for (int i = 0; i < usersInGame; i++) {
+            lobby.usersInGame.add(in.readString());
+        }
+        readIcons(in, lobby.usernameToIcon);
+        readIcons(in, lobby.usernameToPreferredIcon);
+        in.endSection(end);
+        lobby.hasUnsavedChanges.set(in.getVersion() < StateCodec.VERSION);
+        return lobby;
     }
 
     /**
      * Attempts to set the player's icon to the given iconID and returns whether it was set.
      * @param iconID the ID of the new icon to give the player.
-     * @param user the user to change the icon of.
+     * @param user the session of the user to change the icon of.
      * @effects If no other user has the given {@code iconID}, sets the icon of the {@code user}
      *          to {@code iconID}. (exception is for the default value.)
      * @throws IllegalArgumentException if {@code user} is not in the game.
      */
-    synchronized public void trySetUserIcon(String iconID, WsContext user) {
+    public void trySetUserIcon(String iconID, UserSession user) {
         // Verify that the user exists.
-        if (!hasUser(user)) {
+        if (!user.isInLobby() || user.getLobby() != this) {
             throw new IllegalArgumentException("User is not in this lobby.");
         }
 
-        String username = userToUsername.get(user);
+        String username = user.getUsername();
         // Verify that no user has the same icon
-        if (!iconID.equals(DEFAULT_ICON)) {  // all icons other than the default cannot be shared.
-            for (String name : userToUsername.values()) {
-                if (usernameToIcon.containsKey(name) && usernameToIcon.get(name).equals(iconID)) {
-                    return;
-                }
-            }
+        if (iconToUsername.containsKey(iconID)) {  // all icons other than the default cannot be shared.
+            return;
         }
 
-        usernameToIcon.put(username, iconID);
+        setIcon(username, iconID);
         usernameToPreferredIcon.put(username, iconID);
+        advanceStateVersion();
+    }
+
+    /**
+     * Sets the icon of a connected user.
+     * @param username the username of a connected user.
+     * @param iconID the ID of the icon.
+     * @modifies this
+     * @effects sets the icon of {@code username} to {@code iconID} and updates {@code iconToUsername}.
+     */
+    private void setIcon(String username, String iconID) {
+        String previousIcon = usernameToIcon.put(username, iconID);
+        if (previousIcon != null) {
+            iconToUsername.remove(previousIcon, username);
+        }
+        if (!iconID.equals(DEFAULT_ICON)) {
+            iconToUsername.put(iconID, username);
+        }
     }
 
     //</editor-fold>
@@ -335,10 +895,30 @@ public class Lobby implements Serializable {
      * Returns whether the Lobby is currently in a game.
      * @return true iff the Lobby has a currently active game.
      */
-    synchronized public boolean isInGame() {
+    public boolean isInGame() {
         return game != null;
     }
 
+    /**
+     * Checks whether a new game can be started, without changing the lobby.
+     * @return the rule that starting a game would break (see {@code startNewGame}), or null if a game can be started.
+     */
+    public RuleViolation checkStartNewGame() {
+        if (userToSession.size() < SecretHitlerGame.MIN_PLAYERS || userToSession.size() > SecretHitlerGame.MAX_PLAYERS) {
+            return RuleViolation.WRONG_PLAYER_COUNT;
+        } else if (isInGame()) {
+            return RuleViolation.GAME_IN_PROGRESS;
+        }
+
+        // Check that all players have (non-default) icons set.
+        for (UserSession session : userToSession.values()) {
+            if (usernameToIcon.get(session.getUsername()).equals(DEFAULT_ICON)) {
+                return RuleViolation.ICONS_NOT_SELECTED;
+            }
+        }
+        return null;
+    }
+
     /**
      * Starts a new SecretHitlerGame with the connected users as players.
      * @throws RuntimeException if there are an insufficient number of players to start a game, if there are too
@@ -348,27 +928,97 @@ public class Lobby implements Serializable {
      * @effects creates and stores a new SecretHitlerGame.
      *          The usernames of all active users are added to the game in a randomized order.
      */
-    synchronized public void startNewGame() {
-        if (userToUsername.size() < SecretHitlerGame.MIN_PLAYERS) {
-            throw new RuntimeException("Too many users to start a game.");
-        } else if (userToUsername.size() > SecretHitlerGame.MAX_PLAYERS) {
-            throw new RuntimeException("Too many users to start a game.");
-        } else if (isInGame()) {
-            throw new RuntimeException("Cannot start a new game while a game is in progress.");
-        }
-
-        // Check that all players have (non-default) icons set.
-        for (String username : userToUsername.values()) {
-            if (usernameToIcon.get(username).equals(DEFAULT_ICON)) {
-                throw new RuntimeException("Not all players have selected icons.");
-            }
+    public void startNewGame() {
+        RuleViolation violation = checkStartNewGame();
+        if (violation != null) {
+            throw violation.toException("Cannot start a new game");
         }
 
         usersInGame.clear();
-        usersInGame.addAll(userToUsername.values());
-        List<String> playerNames = new ArrayList<>(userToUsername.values());
+        List<String> playerNames = new ArrayList<>();
+        for (UserSession session : userToSession.values()) {
+            playerNames.add(session.getUsername());
+        }
+        usersInGame.addAll(playerNames);
         Collections.shuffle(playerNames);
         game = new SecretHitlerGame(playerNames);
+        seenGameChanges = game.getChangeCount();
+        advanceStateVersion();
+    }
+
+    /**
+     * Returns the sequence number of the last journal entry applied to the lobby.
+     */
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Reserves the sequence number of a new journal entry for a command that the lobby has accepted.
+     * @modifies this
+     * @return a sequence number greater than that of every earlier entry of the lobby.
+     */
+    public long nextJournalSequence() {
+        return ++journalSequence;
+    }
+
+    /**
+     * Applies a journal entry to a lobby that was loaded from a backup, before any user connects.
+     * @param sequence the sequence number of the entry.
+     * @param replay changes the lobby in the same way as the command that the entry records.
+     * @throws IllegalStateException if {@code sequence} is not {@code getJournalSequence() + 1}, such as when an
+     *         entry was dropped before it was written. The lobby is not changed.
+     * @throws RuntimeException if the entry could not be applied. The lobby may be partly changed.
+     * @modifies this
+     * @effects runs {@code replay}, then records {@code sequence} as the last entry applied. Ends the game if the
+     *          entry ended it, like a broadcast does.
+     */
+    public void replayJournalEntry(long sequence, Runnable replay) {
+        if (sequence != journalSequence + 1) {
+            throw new IllegalStateException("Expected journal entry " + (journalSequence + 1) + " of lobby " + code
+                    + " but found entry " + sequence + ".");
+        }
+        replay.run();
+        journalSequence = sequence;
+        pollGameChanges();
+        endGameIfOver();
+    }
+
+    /**
+     * Starts a game that was started before the lobby was loaded from a backup.
+     * @param playerNames the names of the players, in the order of the game.
+     * @param seed the seed that the game was created with.
+     * @modifies this
+     * @effects creates and stores a new SecretHitlerGame that is equal to the game that was started.
+     */
+    public void restoreGame(List<String> playerNames, long seed) {
+        usersInGame.clear();
+        usersInGame.addAll(playerNames);
+        game = new SecretHitlerGame(playerNames, seed);
+        seenGameChanges = game.getChangeCount();
+        advanceStateVersion();
+    }
+
+    /**
+     * Sets an icon that a user selected before the lobby was loaded from a backup.
+     * @param username the name of the user.
+     * @param iconID the ID of the icon that the user selected.
+     * @modifies this
+     * @effects sets the icon and the preferred icon of {@code username} to {@code iconID}.
+     */
+    public void restoreIcon(String username, String iconID) {
+        usernameToIcon.put(username, iconID);
+        usernameToPreferredIcon.put(username, iconID);
+        advanceStateVersion();
+    }
+
+    /**
+     * Returns the icon of a user.
+     * @param username the name of the user.
+     * @return the ID of the icon of {@code username}, or null if the user has no icon.
+     */
+    public String getIcon(String username) {
+        return usernameToIcon.get(username);
     }
 
     /**
@@ -376,7 +1026,7 @@ public class Lobby implements Serializable {
      * @throws RuntimeException if called when there is no active game ({@code !this.isInGame()}).
      * @return the SecretHitlerGame for this lobby.
      */
-    synchronized public SecretHitlerGame game() {
+    public SecretHitlerGame game() {
         if (game == null) {
             throw new RuntimeException();
         } else {
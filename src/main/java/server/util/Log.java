@@ -0,0 +1,194 @@
+package server.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An asynchronous, structured event log.
+ *
+ * Callers hand events to a fixed-size ring buffer and return immediately; a single background thread formats the
+ * events and writes them to standard output. Each event has a category, a name, and a list of key/value fields, and
+ * is written as one line: {@code <time> [<category>] <event> key=value key=value ...}.
+ *
+ * Each category has a sample rate: with a rate of N, only every Nth event in the category is written. If the buffer is
+ * full, new events are dropped (and counted) rather than blocking the caller.
+ */
+public class Log {
+
+    /**
+     * The categories of events, along with their default sample rates.
+     */
+    public enum Category {
+        CONNECTION(1),  // websocket connections and disconnections
+        COMMAND(1),     // commands sent by users
+        PING(100),      // pings that could not be answered on the fast path
+        LOBBY(1);       // lobbies being created and removed
+
+        private volatile int sampleRate;
+        private final AtomicLong count = new AtomicLong();
+
+        Category(int sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        /**
+         * Sets the sample rate of the category.
+         * @param sampleRate only every {@code sampleRate}th event is written. Values below 1 are treated as 1.
+         */
+        public void setSampleRate(int sampleRate) {
+            this.sampleRate = Math.max(1, sampleRate);
+        }
+    }
+
+    private static final int BUFFER_CAPACITY = 8192;
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * A logged event. The fields are formatted by the writer thread, so they must not be modified after logging.
+     */
+    private static class Event {
+        final long time;
+        final Category category;
+        final String name;
+        final Object[] fields;
+
+        Event(long time, Category category, String name, Object[] fields) {
+            this.time = time;
+            this.category = category;
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+
+    private static final ArrayBlockingQueue<Event> buffer = new ArrayBlockingQueue<>(BUFFER_CAPACITY);
+    private static final AtomicLong droppedEvents = new AtomicLong();
+    private static final Object writeLock = new Object();
+
+    static {
+        Thread writer = new Thread(Log::writeEvents, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Logs an event.
+     * @param category the category of the event.
+     * @param name a short name for the event.
+     * @param fields alternating keys and values. Values are converted with {@code String.valueOf()} when the event is
+     *               written, so they should be immutable.
+     * @effects if the event is sampled in {@code category} and there is room in the buffer, queues the event to be
+     *          written by the background thread. Otherwise, does nothing. Never blocks.
+     */
+    public static void event(Category category, String name, Object... fields) {
+        int sampleRate = category.sampleRate;
+        if (sampleRate > 1 && category.count.getAndIncrement() % sampleRate != 0) {
+            return;
+        }
+        if (!buffer.offer(new Event(System.currentTimeMillis(), category, name, fields))) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of events that were dropped because the buffer was full.
+     */
+    public static long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Writes all queued events.
+     * @effects blocks until every event queued before the call has been written (used before shutting down).
+     */
+    public static void flush() {
+        List<Event> batch = new ArrayList<>();
+        synchronized (writeLock) {
+            buffer.drainTo(batch);
+            write(batch);
+        }
+    }
+
+    /**
+     * Writes events until the program exits. Runs on the writer thread.
+     */
+    private static void writeEvents() {
+        List<Event> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            try {
+                Event first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                synchronized (writeLock) {
+                    batch.add(first);
+                    buffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    write(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void write(List<Event> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder builder = new StringBuilder();
+        for (Event event : batch) {
+            builder.append(formatter.format(new Date(event.time)))
+                    .append(" [").append(event.category).append("] ")
+                    .append(event.name);
+            for (int i = 0; i + 1 < event.fields.length; i += 2) {
+                builder.append(' ').append(event.fields[i]).append('=');
+                appendValue(builder, String.valueOf(event.fields[i + 1]));
+            }
+            if (event.category.sampleRate > 1) {
+                builder.append(" sample=1/").append(event.category.sampleRate);
+            }
+            builder.append('\n');
+        }
+        System.out.print(builder);
+        System.out.flush();
+    }
+
+    /**
+     * Appends a value, quoting it if it contains spaces, quotes, or line breaks so that each event stays on one line.
+     */
+    private static void appendValue(StringBuilder builder, String value) {
+        boolean needsQuotes = value.isEmpty();
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == ' ' || c == '"' || c == '=' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            builder.append(value);
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '\r') {
+                builder.append("\\r");
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,96 @@
+package server.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A serial executor: tasks submitted to a mailbox run one at a time, in the order they were submitted.
+ *
+ * Mailboxes do not own threads. Each mailbox belongs to an event loop ({@code EventLoopGroup}), which is shared with
+ * other mailboxes. When a mailbox has tasks, it is scheduled on its event loop and runs a batch of tasks before giving
+ * the thread to the next mailbox. Since only one task of a mailbox runs at a time, the state it protects does not
+ * need to be locked.
+ */
+public class Mailbox implements Executor {
+
+    // The maximum number of tasks run before the worker thread is given to other mailboxes.
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final Executor loop;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean isScheduled = new AtomicBoolean();
+
+    /**
+     * Constructs a new Mailbox.
+     * @param loop the executor that runs the batches of this mailbox, such as an event loop. Batches of different
+     *             mailboxes may run on it at the same time if it has more than one thread.
+     */
+    public Mailbox(Executor loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Submits a task.
+     * @param task the task to run.
+     * @effects runs {@code task} on the event loop after every task submitted before it has finished. Never blocks.
+     *          Exceptions thrown by the task are logged and do not affect later tasks.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        depth.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * Submits a task that computes a value.
+     * @param task the task to run.
+     * @return a future that is completed with the result of {@code task} once it has run in this mailbox.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, this);
+    }
+
+    /**
+     * Returns the number of tasks that have been submitted but have not finished yet.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && isScheduled.compareAndSet(false, true)) {
+            loop.execute(this::runBatch);
+        }
+    }
+
+    /**
+     * Runs tasks until the mailbox is empty or the batch size is reached. Runs on the event loop.
+     */
+    private void runBatch() {
+        try {
+            for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.event(Log.Category.LOBBY, "task-failed", "error", e.toString());
+                } finally {
+                    depth.decrementAndGet();
+                }
+            }
+        } finally {
+            isScheduled.set(false);
+        }
+        // Tasks may have been added after the last poll, or the batch may have ended early.
+        schedule();
+    }
+}
@@ -0,0 +1,253 @@
+package server.util;
+
+import io.javalin.websocket.WsContext;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue of messages waiting to be sent to one websocket connection.
+ *
+ * Messages are added from the mailbox of the lobby and are sent later by a shared pool of sender threads, so a slow
+ * connection only delays its own messages. Only the newest state packet is kept: if a state packet is still waiting
+ * when a newer one is added, the newer one takes its place in the queue. Packets queued after the older state, such as
+ * the ok for the command that changed it, are therefore never sent before a state that includes their change.
+ * Connections that fall too far behind are disconnected.
+ *
+ * Closing a websocket can block until the close frame is written, so connections are also closed from the sender
+ * threads ({@code disconnect()}), never from the thread that asks for it, which may be the event loop of a lobby.
+ */
+public class OutboundQueue {
+
+    // The maximum number of messages that can wait to be sent to a connection.
+    public static int MAX_PENDING_MESSAGES = 32;
+    // The maximum time in milliseconds that a message can wait to be sent (or be in the process of being sent).
+    public static long MAX_LAG_MS = 10_000;
+
+    // WebSocket close code for a policy violation (RFC 6455).
+    private static final int CLOSE_CODE_TOO_SLOW = 1008;
+
+    private static final ExecutorService SENDERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "outbound-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicLong totalStatesDropped = new AtomicLong();
+    private static final AtomicLong totalSlowDisconnects = new AtomicLong();
+
+    /**
+     * A message and the time it was added to the queue.
+     */
+    private static class Message {
+        Object payload; // a String or a byte[]. Replaced by newer states while waiting.
+        final boolean isState;
+        final long queuedAt;
+
+        Message(Object payload, boolean isState, long queuedAt) {
+            this.payload = payload;
+            this.isState = isState;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final Consumer<Object> sender;
+    private final BiConsumer<Integer, String> closer;
+
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private Message pendingState; // the state packet in {@code pending}, if there is one.
+    private long sendingSince; // the time the message currently being sent was queued, or 0.
+    private boolean isDraining;
+    private boolean isClosed;
+    private boolean isDisconnected;
+
+    /**
+     * Constructs a new OutboundQueue.
+     * @param sender sends a single message (a String or a byte[]) and blocks until it is written.
+     * @param closer closes the connection with a status code and reason, and may block. Called at most once, from a
+     *               sender thread.
+     */
+    OutboundQueue(Consumer<Object> sender, BiConsumer<Integer, String> closer) {
+        this.sender = sender;
+        this.closer = closer;
+    }
+
+    /**
+     * Creates a queue for a websocket connection.
+     * @param ctx the websocket context of the connection.
+     * @return an OutboundQueue that sends text messages for Strings and binary messages for byte arrays, and closes
+     *         the connection if it falls too far behind.
+     */
+    public static OutboundQueue forConnection(WsContext ctx) {
+        return new OutboundQueue(
+                payload -> {
+                    if (payload instanceof byte[]) {
+                        ctx.send(ByteBuffer.wrap((byte[]) payload));
+                    } else {
+                        ctx.send((String) payload);
+                    }
+                },
+                (statusCode, reason) -> ctx.session.close(statusCode, reason));
+    }
+
+    /**
+     * Adds a message to the queue.
+     * @param payload the message, either a String or a byte[].
+     * @modifies this
+     * @effects queues {@code payload} to be sent after the messages already in the queue.
+     *          Disconnects the connection instead if it has fallen too far behind.
+     */
+    public void send(Object payload) {
+        offer(payload, false);
+    }
+
+    /**
+     * Adds a state packet to the queue, replacing any state packet that has not been sent yet.
+     * @param payload the state packet, either a String or a byte[].
+     * @modifies this
+     * @effects if a state packet is waiting to be sent, replaces it with {@code payload} in the same position.
+     *          Otherwise, queues {@code payload} to be sent after the messages already in the queue. Disconnects the
+     *          connection instead if it has fallen too far behind.
+     */
+    public void sendState(Object payload) {
+        offer(payload, true);
+    }
+
+    /**
+     * Returns whether a state packet is waiting to be sent.
+     * @return true iff the next call to {@code sendState()} would replace a state packet.
+     */
+    public synchronized boolean hasPendingState() {
+        return pendingState != null;
+    }
+
+    /**
+     * Discards all waiting messages.
+     * @modifies this
+     * @effects no further messages are sent, and later calls to {@code send()} and {@code sendState()} are ignored.
+     */
+    public synchronized void close() {
+        isClosed = true;
+        pending.clear();
+        pendingState = null;
+    }
+
+    /**
+     * Closes the connection without blocking the calling thread.
+     * @param statusCode the websocket close code.
+     * @param reason the reason sent to the client.
+     * @modifies this
+     * @effects discards all waiting messages like {@code close()}, and closes the connection from a sender thread.
+     *          Only the first call closes the connection.
+     */
+    public void disconnect(int statusCode, String reason) {
+        synchronized (this) {
+            close();
+            if (isDisconnected) {
+                return;
+            }
+            isDisconnected = true;
+        }
+        SENDERS.execute(() -> {
+            try {
+                closer.accept(statusCode, reason);
+            } catch (RuntimeException e) {
+                Log.event(Log.Category.CONNECTION, "close-failed", "error", e.toString());
+            }
+        });
+    }
+
+    private void offer(Object payload, boolean isState) {
+        long now = System.currentTimeMillis();
+        boolean shouldDisconnect = false;
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            boolean replacesState = isState && pendingState != null;
+            if ((!replacesState && pending.size() >= MAX_PENDING_MESSAGES) || getLag(now) > MAX_LAG_MS) {
+                shouldDisconnect = true;
+                close();
+            } else if (replacesState) {
+                pendingState.payload = payload; // keeps the time it was first queued, so the lag is not hidden.
+                totalStatesDropped.incrementAndGet();
+            } else {
+                Message message = new Message(payload, isState, now);
+                pending.add(message);
+                if (isState) {
+                    pendingState = message;
+                }
+                if (!isDraining) {
+                    isDraining = true;
+                    SENDERS.execute(this::drain);
+                }
+            }
+        }
+        if (shouldDisconnect) {
+            totalSlowDisconnects.incrementAndGet();
+            disconnect(CLOSE_CODE_TOO_SLOW, "The connection is too slow.");
+        }
+    }
+
+    /**
+     * Returns how long the oldest unsent message has been waiting.
+     */
+    private synchronized long getLag(long now) {
+        long oldest = sendingSince;
+        if (oldest == 0 && !pending.isEmpty()) {
+            oldest = pending.peek().queuedAt;
+        }
+        return oldest == 0 ? 0 : now - oldest;
+    }
+
+    /**
+     * Sends messages until the queue is empty. Runs on a sender thread.
+     */
+    private void drain() {
+        while (true) {
+            Message message;
+            synchronized (this) {
+                message = pending.poll();
+                if (message == null) {
+                    isDraining = false;
+                    sendingSince = 0;
+                    return;
+                }
+                if (message == pendingState) {
+                    pendingState = null;
+                }
+                sendingSince = message.queuedAt;
+            }
+            try {
+                sender.accept(message.payload);
+            } catch (RuntimeException e) {
+                Log.event(Log.Category.CONNECTION, "send-failed", "error", e.toString());
+                synchronized (this) {
+                    close();
+                    isDraining = false;
+                    sendingSince = 0;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of state packets that were replaced before they were sent, across all connections.
+     */
+    public static long getTotalStatesDropped() {
+        return totalStatesDropped.get();
+    }
+
+    /**
+     * Returns the number of connections that were closed for falling too far behind.
+     */
+    public static long getTotalSlowDisconnects() {
+        return totalSlowDisconnects.get();
+    }
+}
@@ -0,0 +1,251 @@
+package server.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up lobbies in two stages, so that a backup never reads a lobby while it is being changed.
+ *
+ * 1. Capture: each lobby encodes itself in its mailbox, between two commands ({@code Lobby.snapshot()}). The encoded
+ *    bytes are a consistent copy of the lobby at that point, and encoding takes a few microseconds, so the mailbox is
+ *    barely delayed.
+ * 2. Write: a single writer thread compresses the snapshots and stores them in batches.
+ *
+ * At most {@code MAX_PENDING_SNAPSHOTS} snapshots are captured but not yet written; capturing more waits for the
+ * writer, so a backup of many lobbies uses a bounded amount of memory.
+ */
+public class SnapshotPipeline {
+
+    // The largest number of snapshots that are captured but not yet written.
+    public static int MAX_PENDING_SNAPSHOTS = 256;
+    // The largest number of snapshots written at once.
+    public static int MAX_BATCH_SIZE = 64;
+    // How long a lobby may take to capture its snapshot before the capture is abandoned.
+    public static long CAPTURE_TIMEOUT_MS = 5000;
+
+    private static final int GZIP_MAGIC_FIRST_BYTE = 0x1f;
+    private static final int GZIP_MAGIC_SECOND_BYTE = 0x8b;
+
+    /**
+     * The saved state of a lobby at one point in its command sequence.
+     */
+    public static final class Snapshot {
+        private final Lobby lobby;
+        private final long journalSequence;
+        private final byte[] encoded;
+        private byte[] data;
+
+        Snapshot(Lobby lobby, long journalSequence, byte[] encoded) {
+            this.lobby = lobby;
+            this.journalSequence = journalSequence;
+            this.encoded = encoded;
+        }
+
+        public Lobby getLobby() {
+            return lobby;
+        }
+
+        /**
+         * Returns the sequence number of the last journal entry included in the snapshot.
+         */
+        public long getJournalSequence() {
+            return journalSequence;
+        }
+
+        /**
+         * Returns the compressed snapshot, which {@code Lobby.decode(decompress(data))} reads.
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Stores batches of snapshots, such as in a database table.
+     */
+    public interface Sink {
+        /**
+         * @param snapshots the snapshots to store, in the order they were captured.
+         * @throws Exception if the snapshots could not be stored. Their lobbies are marked as unsaved.
+         */
+        void write(List<Snapshot> snapshots) throws Exception;
+    }
+
+    private final Sink sink;
+    private final Semaphore permits = new Semaphore(MAX_PENDING_SNAPSHOTS);
+    private final LinkedBlockingQueue<Snapshot> captured = new LinkedBlockingQueue<>();
+    // The number of snapshots that were requested and are not yet written or abandoned.
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /**
+     * Constructs a new SnapshotPipeline and starts its writer thread.
+     * @param sink stores the snapshots. Only called from the writer thread.
+     */
+    public SnapshotPipeline(Sink sink) {
+        this.sink = sink;
+        Thread writer = new Thread(this::run, "snapshot-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Requests a snapshot of a lobby. Must not be called from a lobby mailbox.
+     * @param lobby the lobby, which has unsaved changes.
+     * @throws InterruptedException if the thread was interrupted while waiting for the writer.
+     * @effects waits until fewer than {@code MAX_PENDING_SNAPSHOTS} snapshots are pending, then has the lobby capture
+     *          a snapshot in its mailbox and queues it to be written. If the capture fails or takes longer than
+     *          {@code CAPTURE_TIMEOUT_MS}, the lobby is marked as unsaved instead.
+     */
+    public void capture(Lobby lobby) throws InterruptedException {
+        permits.acquire();
+        pendingCount.incrementAndGet();
+        lobby.submit(lobby::snapshot)
+                .orTimeout(CAPTURE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((snapshot, error) -> {
+                    if (error == null) {
+                        captured.add(snapshot);
+                    } else {
+                        Log.event(Log.Category.LOBBY, "snapshot-capture-failed", "lobby", lobby.getCode(),
+                                "error", error.toString());
+                        lobby.markUnsaved();
+                        failedCount.incrementAndGet();
+                        finish(1);
+                    }
+                });
+    }
+
+    /**
+     * Waits for the snapshots requested so far to be written or to fail, such as at the end of a backup.
+     * @param timeoutMs the longest time to wait.
+     * @return true iff no snapshots are pending.
+     */
+    public boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (pendingCount.get() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private void finish(int count) {
+        pendingCount.addAndGet(-count);
+        permits.release(count);
+    }
+
+    private void run() {
+        List<Snapshot> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(captured.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            captured.drainTo(batch, MAX_BATCH_SIZE - 1);
+            try {
+                for (Snapshot snapshot : batch) {
+                    snapshot.data = compress(snapshot.encoded);
+                    encodedBytes.addAndGet(snapshot.encoded.length);
+                    compressedBytes.addAndGet(snapshot.data.length);
+                }
+                sink.write(batch);
+                writtenCount.addAndGet(batch.size());
+            } catch (Exception e) {
+                Log.event(Log.Category.LOBBY, "snapshot-write-failed", "snapshots", batch.size(),
+                        "error", e.toString());
+                for (Snapshot snapshot : batch) {
+                    snapshot.lobby.markUnsaved(); // stored by the next backup.
+                }
+                failedCount.addAndGet(batch.size());
+            }
+            finish(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Compresses a snapshot with gzip.
+     * @param data the encoded snapshot.
+     * @return the compressed data.
+     */
+    static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks whether stored data was compressed by {@code compress}.
+     * @param data the stored data.
+     * @return true iff {@code data} starts with the gzip header.
+     */
+    public static boolean isCompressed(byte[] data) {
+        return data.length >= 2 && (data[0] & 0xFF) == GZIP_MAGIC_FIRST_BYTE
+                && (data[1] & 0xFF) == GZIP_MAGIC_SECOND_BYTE;
+    }
+
+    /**
+     * Decompresses data written by {@code compress}.
+     * @param data the compressed data.
+     * @throws IOException if the data is not valid gzip data.
+     * @return the encoded snapshot.
+     */
+    public static byte[] decompress(byte[] data) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Returns the number of snapshots that have been written.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the number of snapshots that could not be captured or written.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Returns the number of snapshots that were requested and are not yet written.
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the total size of the snapshots before compression, in bytes.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * Returns the total size of the snapshots after compression, in bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+}
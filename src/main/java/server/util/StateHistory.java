@@ -0,0 +1,178 @@
+package server.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the encoded state packets for the most recent state versions of a lobby.
+ * A state can be sent to a user either in full, or as a patch against an earlier version that the user already has.
+ *
+ * Patches follow the JSON Merge Patch format (RFC 7386): keys in the patch replace the keys in the base state,
+ * nested objects are patched recursively, and a null value removes the key.
+ */
+class StateHistory {
+
+    // The number of previous versions that patches can be created against.
+    static final int MAX_VERSIONS = 8;
+
+    private final LinkedHashMap<Long, Entry> versions;
+    private long currentVersion;
+    // Patches to the current version, keyed by the version they are based on.
+    private final Map<Long, String> patchCache;
+
+    /**
+     * A single encoded state version. The JSON tree is only parsed when a patch has to be computed.
+     */
+    private static class Entry {
+        final String packet;
+        final String type;
+        JSONObject parsed;
+
+        Entry(String packet, String type) {
+            this.packet = packet;
+            this.type = type;
+        }
+
+        JSONObject parsed() {
+            if (parsed == null) {
+                parsed = new JSONObject(packet);
+            }
+            return parsed;
+        }
+    }
+
+    /**
+     * Constructs a new, empty StateHistory.
+     */
+    StateHistory() {
+        versions = new LinkedHashMap<>();
+        patchCache = new HashMap<>();
+        currentVersion = -1;
+    }
+
+    /**
+     * Adds a new state version to the history.
+     * @param version the state version. Must be greater than any previously added version.
+     * @param packet the encoded full state packet for this version.
+     * @param type the packet type of {@code packet}. Patches are never created across packet types.
+     * @modifies this
+     * @effects {@code version} becomes the current version. If more than {@code MAX_VERSIONS} versions are stored,
+     *          the oldest version is forgotten.
+     */
+    void add(long version, String packet, String type) {
+        versions.put(version, new Entry(packet, type));
+        currentVersion = version;
+        patchCache.clear();
+        Iterator<Long> itr = versions.keySet().iterator();
+        while (versions.size() > MAX_VERSIONS && itr.hasNext()) {
+            itr.next();
+            itr.remove();
+        }
+    }
+
+    /**
+     * Returns whether the given version is the latest version in the history.
+     * @param version the state version.
+     * @return true iff {@code version} is the current version.
+     */
+    boolean isCurrent(long version) {
+        return !versions.isEmpty() && version == currentVersion;
+    }
+
+    /**
+     * Gets the full packet for the current version.
+     * @return the encoded packet, or null if the history is empty.
+     */
+    String getPacket() {
+        Entry entry = versions.get(currentVersion);
+        return entry == null ? null : entry.packet;
+    }
+
+    /**
+     * Returns whether a patch from the given version to the current version can be created.
+     * @param baseVersion the version that the user already has.
+     * @return true iff {@code baseVersion} is still stored and has the same packet type as the current version.
+     */
+    boolean canPatchFrom(long baseVersion) {
+        Entry base = versions.get(baseVersion);
+        Entry current = versions.get(currentVersion);
+        return base != null && current != null && base.type.equals(current.type);
+    }
+
+    /**
+     * Gets the merge patch that turns the state at {@code baseVersion} into the current state.
+     * @param baseVersion the version that the user already has.
+     * @requires {@code canPatchFrom(baseVersion)}
+     * @return the encoded patch object. Patches are computed once per base version and then reused.
+     */
+    String getPatchFrom(long baseVersion) {
+        String patch = patchCache.get(baseVersion);
+        if (patch == null) {
+            patch = diff(versions.get(baseVersion).parsed(), versions.get(currentVersion).parsed()).toString();
+            patchCache.put(baseVersion, patch);
+        }
+        return patch;
+    }
+
+    /**
+     * Returns whether the given patch was served from the cache (used for metrics).
+     * @param baseVersion the base version of the patch.
+     * @return true iff a patch from {@code baseVersion} to the current version has already been encoded.
+     */
+    boolean hasCachedPatchFrom(long baseVersion) {
+        return patchCache.containsKey(baseVersion);
+    }
+
+    /**
+     * Creates a JSON merge patch between two objects.
+     * @param from the original object.
+     * @param to the updated object.
+     * @return a JSONObject that, when applied to {@code from} as a merge patch, results in {@code to}.
+     *         Keys that are unchanged are omitted and keys that were removed map to {@code JSONObject.NULL}.
+     */
+    static JSONObject diff(JSONObject from, JSONObject to) {
+        JSONObject patch = new JSONObject();
+        for (String key : to.keySet()) {
+            Object newValue = to.get(key);
+            if (!from.has(key)) {
+                patch.put(key, newValue);
+                continue;
+            }
+            Object oldValue = from.get(key);
+            if (oldValue instanceof JSONObject && newValue instanceof JSONObject) {
+                JSONObject nested = diff((JSONObject) oldValue, (JSONObject) newValue);
+                if (!nested.isEmpty()) {
+                    patch.put(key, nested);
+                }
+            } else if (!isSimilar(oldValue, newValue)) {
+                patch.put(key, newValue);
+            }
+        }
+        for (String key : from.keySet()) {
+            if (!to.has(key)) {
+                patch.put(key, JSONObject.NULL);
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * Compares two parsed JSON values.
+     * @return true iff {@code a} and {@code b} represent the same JSON value.
+     */
+    private static boolean isSimilar(Object a, Object b) {
+        if (a instanceof JSONObject && b instanceof JSONObject) {
+            return ((JSONObject) a).similar(b);
+        } else if (a instanceof JSONArray && b instanceof JSONArray) {
+            return ((JSONArray) a).similar(b);
+        } else if (a instanceof Number && b instanceof Number) {
+            return a.equals(b) || ((Number) a).doubleValue() == ((Number) b).doubleValue();
+        }
+        return a.equals(b);
+    }
+}
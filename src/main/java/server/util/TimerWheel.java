@@ -0,0 +1,227 @@
+package server.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timer wheel: a single thread that runs delayed tasks for the whole server.
+ *
+ * Time is divided into ticks of {@code tickMs} milliseconds, and the wheel has a fixed number of buckets. A task
+ * scheduled for tick t is placed in bucket {@code t % bucketCount}, along with the number of full turns of the wheel
+ * left before it expires. Every tick the thread only looks at one bucket, so scheduling, cancelling and expiring
+ * tasks take constant time regardless of how many tasks are pending. Tasks may run up to one tick late.
+ *
+ * Tasks run on the timer thread and must be short; tasks that do more work should hand it to another executor (such
+ * as the mailbox of a lobby).
+ */
+public class TimerWheel {
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_BUCKET_COUNT = 1024;
+
+    // The timer wheel shared by the server.
+    public static final TimerWheel SHARED = new TimerWheel(DEFAULT_TICK_MS, DEFAULT_BUCKET_COUNT, "timer-wheel");
+
+    /**
+     * A task that has been scheduled on the wheel.
+     */
+    public final class Timeout {
+        private static final int STATE_PENDING = 0;
+        private static final int STATE_CANCELLED = 1;
+        private static final int STATE_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineTick;
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancels the task.
+         * @modifies this
+         * @effects the task will not run, unless it has already started.
+         * @return true iff the task was pending and is now cancelled.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                pendingCount.decrementAndGet();
+                cancelledCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == STATE_EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                return; // cancelled in the meantime.
+            }
+            pendingCount.decrementAndGet();
+            expiredCount.incrementAndGet();
+            lateTicks.addAndGet(currentTick - deadlineTick);
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.event(Log.Category.LOBBY, "timer-task-failed", "error", e.toString());
+            }
+        }
+    }
+
+    private final long tickMs;
+    private final List<List<Timeout>> buckets;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private volatile long currentTick;
+
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong lateTicks = new AtomicLong();
+
+    /**
+     * Constructs and starts a new TimerWheel.
+     * @param tickMs the length of a tick in milliseconds. Must be positive.
+     * @param bucketCount the number of buckets in the wheel. Must be positive.
+     * @param threadName the name of the timer thread.
+     */
+    public TimerWheel(long tickMs, int bucketCount, String threadName) {
+        this.tickMs = tickMs;
+        this.buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.startTime = System.nanoTime();
+        Thread worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task.
+     * @param task the task to run.
+     * @param delay the delay before the task runs.
+     * @param unit the unit of {@code delay}.
+     * @return a Timeout that can be used to cancel the task. Can be called from any thread.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long delayTicks = (unit.toMillis(Math.max(0, delay)) + tickMs - 1) / tickMs;
+        // Tasks are added to the wheel on the next tick, so the earliest they can expire is the tick after that.
+        Timeout timeout = new Timeout(task, currentTick + Math.max(1, delayTicks));
+        pendingCount.incrementAndGet();
+        scheduledCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            // Wait for the start of the next tick.
+            long tickStart = startTime + TimeUnit.MILLISECONDS.toNanos((tick + 1) * tickMs);
+            long sleepNanos = tickStart - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            currentTick = tick;
+            transferNewTimeouts(tick);
+            expireBucket(tick);
+        }
+    }
+
+    private void transferNewTimeouts(long tick) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long deadlineTick = Math.max(timeout.deadlineTick, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.size();
+            buckets.get((int) (deadlineTick % buckets.size())).add(timeout);
+        }
+    }
+
+    private void expireBucket(long tick) {
+        List<Timeout> bucket = buckets.get((int) (tick % buckets.size()));
+        if (bucket.isEmpty()) {
+            return;
+        }
+        List<Timeout> expired = new ArrayList<>();
+        int kept = 0;
+        for (Timeout timeout : bucket) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.remainingRounds <= 0) {
+                expired.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+        for (Timeout timeout : expired) {
+            timeout.expire();
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have been scheduled but have not run or been cancelled.
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the total number of tasks that have been scheduled.
+     */
+    public long getScheduledCount() {
+        return scheduledCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that have run.
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that were cancelled before they ran.
+     */
+    public long getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Returns the average time that tasks ran after their deadline, in milliseconds.
+     */
+    public double getAverageLatenessMs() {
+        long expired = expiredCount.get();
+        return expired == 0 ? 0 : (double) lateTicks.get() * tickMs / expired;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+}
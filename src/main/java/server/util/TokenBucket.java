@@ -0,0 +1,56 @@
+package server.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter.
+ *
+ * The bucket holds up to {@code capacity} tokens and is refilled continuously at {@code tokensPerSecond}. Each
+ * request takes one token, so a burst of up to {@code capacity} requests is allowed, after which requests are allowed
+ * at the refill rate. The bucket is refilled lazily when a token is requested, so an idle bucket costs nothing.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructs a new, full TokenBucket.
+     * @param capacity the maximum number of tokens (the largest allowed burst). Must be at least 1.
+     * @param tokensPerSecond the rate that tokens are added at. Must be positive.
+     */
+    public TokenBucket(double capacity, double tokensPerSecond) {
+        this(capacity, tokensPerSecond, System.nanoTime());
+    }
+
+    TokenBucket(double capacity, double tokensPerSecond, long now) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Takes a token if one is available. Can be called from any thread.
+     * @modifies this
+     * @effects removes one token from the bucket if it has at least one.
+     * @return true iff a token was taken, meaning the request is allowed.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    synchronized boolean tryAcquire(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,193 @@
+package server.util;
+
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+import io.javalin.websocket.WsContext;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one websocket connection: the lobby and username it connected with, how it is sent messages, and its
+ * seat in the current game.
+ *
+ * A session is created when the connection opens and is looked up once per message, instead of resolving the lobby
+ * and user from the message parameters each time. The username and lobby of a session never change.
+ *
+ * Fields that are only used by the lobby (the last state sent and the seat) are only accessed from the mailbox of
+ * the lobby. The other methods can be called from any thread.
+ */
+public class UserSession {
+
+    // The number of commands a connection may send in a burst, and the rate they are allowed at afterwards.
+    public static double COMMAND_BURST = 20;
+    public static double COMMANDS_PER_SECOND = 10;
+
+    private static final AtomicLong totalCommandsRejected = new AtomicLong();
+
+    private final WsContext context;
+    private final String lobbyCode;
+    private final Lobby lobby;
+    private final String username;
+    private final OutboundQueue queue;
+    private final TokenBucket commandLimit = new TokenBucket(COMMAND_BURST, COMMANDS_PER_SECOND);
+
+    private volatile boolean isBinary;
+    private volatile boolean isInLobby;
+
+    // The last state version sent to the user, the view it was encoded for, and the version it was patched from
+    // (-1 if the full state was sent). Only used if the user accepts state patches.
+    private boolean acceptsPatches;
+    GameView lastSentView;
+    long lastSentVersion = -1;
+    long lastSentBaseVersion = -1;
+
+    // The player of this user in seatGame, cached so the view of the user can be found without searching the game.
+    private SecretHitlerGame seatGame;
+    private Player player;
+
+    /**
+     * Constructs a new UserSession.
+     * @param context the websocket context of the connection.
+     * @param lobbyCode the code of the lobby the user connected to.
+     * @param lobby the lobby the user connected to.
+     * @param username the username the user connected with.
+     */
+    public UserSession(WsContext context, String lobbyCode, Lobby lobby, String username) {
+        this.context = context;
+        this.lobbyCode = lobbyCode;
+        this.lobby = lobby;
+        this.username = username;
+        this.queue = OutboundQueue.forConnection(context);
+    }
+
+    public WsContext getContext() {
+        return context;
+    }
+
+    public String getLobbyCode() {
+        return lobbyCode;
+    }
+
+    public Lobby getLobby() {
+        return lobby;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    OutboundQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns whether the user has been added to the lobby and has not been removed since.
+     */
+    public boolean isInLobby() {
+        return isInLobby;
+    }
+
+    void setInLobby(boolean isInLobby) {
+        this.isInLobby = isInLobby;
+    }
+
+    /**
+     * Switches the user to the binary protocol.
+     * @modifies this
+     * @effects State updates and other packets are sent to the user as binary frames ({@code BinaryProtocol}).
+     */
+    public void enableBinaryUpdates() {
+        isBinary = true;
+    }
+
+    /**
+     * Returns whether the user uses the binary protocol.
+     */
+    public boolean isBinary() {
+        return isBinary;
+    }
+
+    /**
+     * Enables state patches for the user.
+     * @modifies this
+     * @effects After the next full state packet is sent to the user, later updates are sent as
+     *          {@code PACKET_GAME_STATE_DELTA} packets that patch the last version sent to the user, whenever that
+     *          version is still available and the view of the user has not changed.
+     */
+    public void enableDeltaUpdates() {
+        acceptsPatches = true;
+    }
+
+    boolean acceptsPatches() {
+        return acceptsPatches;
+    }
+
+    /**
+     * Gets the player of this user in a game.
+     * @param game the current game of the lobby.
+     * @return the Player in {@code game} with the username of this user, or null if the user is not a player.
+     */
+    Player getPlayer(SecretHitlerGame game) {
+        if (seatGame != game) {
+            seatGame = game;
+            player = null;
+            for (Player p : game.getPlayerList()) {
+                if (p.getUsername().equals(username)) {
+                    player = p;
+                    break;
+                }
+            }
+        }
+        return player;
+    }
+
+    /**
+     * Checks the command rate limit of the connection. Can be called from any thread.
+     * @modifies this
+     * @effects uses up one command from the limit of the connection if the command is allowed.
+     * @return true iff the connection has not sent more than {@code COMMAND_BURST} commands recently, or more than
+     *         {@code COMMANDS_PER_SECOND} per second on average.
+     */
+    public boolean tryAcquireCommand() {
+        if (commandLimit.tryAcquire()) {
+            return true;
+        }
+        totalCommandsRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of commands rejected by the rate limits of connections, across all connections.
+     */
+    public static long getTotalCommandsRejected() {
+        return totalCommandsRejected.get();
+    }
+
+    /**
+     * Queues a message to be sent to the user.
+     * @param payload the message, either a String (sent as text) or a byte[] (sent as binary).
+     * @effects queues {@code payload} in the outbound queue of the connection.
+     */
+    public void send(Object payload) {
+        queue.send(payload);
+    }
+
+    /**
+     * Closes the connection of the user without blocking the calling thread, such as from a lobby mailbox.
+     * @param statusCode the websocket close code.
+     * @param reason the reason sent to the user.
+     * @effects discards any messages that have not been sent to the user, and closes the connection from an
+     *          outbound sender thread.
+     */
+    public void disconnect(int statusCode, String reason) {
+        queue.disconnect(statusCode, reason);
+    }
+
+    /**
+     * Discards any messages that have not been sent to the user.
+     * @effects no further messages are sent to the user.
+     */
+    void close() {
+        queue.close();
+    }
+}
@@ -0,0 +1,68 @@
+package game.datastructures;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static junit.framework.TestCase.*;
+
+public class testStateCodec {
+
+    @Test
+    public void testValuesRoundTrip() throws IOException {
+        StateCodec.Writer out = new StateCodec.Writer();
+        out.writeVarInt(0);
+        out.writeVarInt(300);
+        out.writeVarInt(Integer.MAX_VALUE);
+        out.writeLong(-42L);
+        out.writeString(null);
+        out.writeString("");
+        out.writeString("h\u00e9llo");
+        out.writeEnum(Identity.HITLER);
+        out.writeBoolean(true);
+
+        StateCodec.Reader in = new StateCodec.Reader(out.toByteArray());
+        assertEquals(StateCodec.VERSION, in.getVersion());
+        assertEquals(0, in.readVarInt());
+        assertEquals(300, in.readVarInt());
+        assertEquals(Integer.MAX_VALUE, in.readVarInt());
+        assertEquals(-42L, in.readLong());
+        assertNull(in.readString());
+        assertEquals("", in.readString());
+        assertEquals("h\u00e9llo", in.readString());
+        assertEquals(Identity.HITLER, in.readEnum(Identity.class));
+        assertTrue(in.readBoolean());
+    }
+
+    @Test
+    public void testReaderSkipsFieldsAddedToSection() throws IOException {
+        // A newer version that added a field to the end of the player section.
+        StateCodec.Writer out = new StateCodec.Writer();
+        int section = out.beginSection();
+        out.writeString("alice");
+        out.writeEnum(Identity.FASCIST);
+        out.writeBoolean(false);
+        out.writeBoolean(true);
+        out.writeString("a field this version does not know");
+        out.endSection(section);
+        out.writeString("after");
+
+        StateCodec.Reader in = new StateCodec.Reader(out.toByteArray());
+        Player player = Player.decode(in);
+        assertEquals("alice", player.getUsername());
+        assertTrue(player.isFascist());
+        assertFalse(player.isAlive());
+        assertTrue(player.hasBeenInvestigated());
+        assertEquals("after", in.readString());
+    }
+
+    @Test
+    public void testRejectsDataThatIsNotEncoded() {
+        try {
+            new StateCodec.Reader(new byte[] {(byte) 0xAC, (byte) 0xED, 0, 5});
+            fail("Java serialization data should be rejected.");
+        } catch (IOException expected) {
+        }
+        assertFalse(StateCodec.isEncoded(new byte[] {(byte) 0xAC, (byte) 0xED, 0, 5}));
+    }
+}
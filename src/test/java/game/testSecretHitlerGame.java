@@ -1,8 +1,10 @@
 package game;
 
 import game.datastructures.Player;
+import game.datastructures.StateCodec;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,6 +50,80 @@ public class testSecretHitlerGame {
         assertEquals(game.getState(), GameState.CHANCELLOR_VOTING);
     }
 
+    @Test
+    public void testSameSeedReplaysSameGame() {
+        SecretHitlerGame game = new SecretHitlerGame(makePlayers(7), 42);
+        SecretHitlerGame replay = new SecretHitlerGame(makePlayers(7), 42);
+        assertEquals(game.getSeed(), replay.getSeed());
+
+        for (int i = 0; i < game.getPlayerList().size(); i++) {
+            Player player = game.getPlayerList().get(i);
+            Player replayed = replay.getPlayerList().get(i);
+            assertEquals(player.isFascist(), replayed.isFascist());
+            assertEquals(player.isHitler(), replayed.isHitler());
+        }
+
+        for (SecretHitlerGame g : new SecretHitlerGame[] {game, replay}) {
+            g.nominateChancellor("3");
+            for (Player player : g.getPlayerList()) {
+                g.registerVote(player.getUsername(), true);
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(game.getPresidentLegislativeChoices().get(i).getType(),
+                    replay.getPresidentLegislativeChoices().get(i).getType());
+        }
+    }
+
+    @Test
+    public void testEncodedGameContinuesLikeOriginal() throws IOException {
+        SecretHitlerGame game = new SecretHitlerGame(makePlayers(5), 7);
+        game.nominateChancellor("1");
+        for (Player player : game.getPlayerList()) {
+            game.registerVote(player.getUsername(), true);
+        }
+
+        StateCodec.Writer out = new StateCodec.Writer();
+        game.encode(out);
+        SecretHitlerGame copy = SecretHitlerGame.decode(new StateCodec.Reader(out.toByteArray()));
+
+        assertEquals(game.getState(), copy.getState());
+        assertEquals(game.getSeed(), copy.getSeed());
+        assertEquals(game.getCurrentChancellor(), copy.getCurrentChancellor());
+        assertEquals(game.getDrawSize(), copy.getDrawSize());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(game.getPlayerList().get(i).getUsername(), copy.getPlayerList().get(i).getUsername());
+            assertEquals(game.getPlayerList().get(i).isHitler(), copy.getPlayerList().get(i).isHitler());
+        }
+
+        // Both games play on identically, including reshuffles of the discard pile.
+        for (int round = 0; round < 6 && game.getState() == GameState.LEGISLATIVE_PRESIDENT; round++) {
+            for (SecretHitlerGame g : new SecretHitlerGame[] {game, copy}) {
+                g.presidentDiscardPolicy(0);
+                g.chancellorEnactPolicy(0);
+                g.endPresidentialTerm();
+            }
+            assertEquals(game.getState(), copy.getState());
+            assertEquals(game.getNumFascistPolicies(), copy.getNumFascistPolicies());
+            assertEquals(game.getDrawSize(), copy.getDrawSize());
+            if (game.getState() != GameState.CHANCELLOR_NOMINATION) {
+                break; // a presidential power is active.
+            }
+            String chancellor = null;
+            for (Player player : game.getPlayerList()) {
+                if (game.checkNominateChancellor(player.getUsername()) == null) {
+                    chancellor = player.getUsername();
+                }
+            }
+            for (SecretHitlerGame g : new SecretHitlerGame[] {game, copy}) {
+                g.nominateChancellor(chancellor);
+                for (Player player : g.getPlayerList()) {
+                    g.registerVote(player.getUsername(), true);
+                }
+            }
+        }
+    }
+
     ///////////////// Test Nomination and Voting
     // <editor-fold desc="Test Nomination and Voting">
 
@@ -61,6 +137,21 @@ public class testSecretHitlerGame {
         }
     }
 
+    @Test
+    public void testRejectedActionsDoNotChangeGame() {
+        SecretHitlerGame game = new SecretHitlerGame(makePlayers(5));
+        assertEquals(RuleViolation.WRONG_STATE, game.checkRegisterVote("1"));
+        assertEquals(RuleViolation.NO_SUCH_PLAYER, game.checkNominateChancellor("9"));
+        assertEquals(0, game.getChangeCount());
+
+        assertNull(game.checkNominateChancellor("1"));
+        game.nominateChancellor("1");
+        assertEquals(1, game.getChangeCount());
+        game.registerVote("1", true);
+        assertEquals(RuleViolation.ALREADY_VOTED, game.checkRegisterVote("1"));
+        assertEquals(2, game.getChangeCount());
+    }
+
     @Test
     public void testVotingSplit(){
         SecretHitlerGame game = new SecretHitlerGame(makePlayers(5));
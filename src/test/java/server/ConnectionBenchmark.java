@@ -0,0 +1,165 @@
+package server;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many concurrent websocket connections a running server holds, and the ping latency under that load.
+ *
+ * Start the server, then run:
+ * java -cp {test classpath} server.ConnectionBenchmark [server address] [connections] [seconds]
+ *
+ * Users are placed into lobbies of {@code SecretHitlerGame.MAX_PLAYERS}. Each connected user sends a ping every
+ * {@code PING_INTERVAL_MS}; the report includes the number of connections that stayed open, ping latency
+ * percentiles, and the server metrics (including the number of platform threads).
+ */
+public class ConnectionBenchmark {
+
+    private static final String DEFAULT_ADDRESS = "localhost:" + SecretHitlerServer.DEFAULT_PORT_NUMBER;
+    private static final int DEFAULT_CONNECTIONS = 2000;
+    private static final int DEFAULT_SECONDS = 30;
+    private static final int USERS_PER_LOBBY = 10;
+    private static final long PING_INTERVAL_MS = 1000;
+
+    /**
+     * A simulated user that records the round-trip time of its pings.
+     */
+    private static class User extends WebSocketAdapter {
+        final String lobby;
+        final String name;
+        final List<Long> latenciesNs = Collections.synchronizedList(new ArrayList<>());
+        volatile long pingSentAt;
+        volatile boolean closed;
+
+        User(String lobby, String name) {
+            this.lobby = lobby;
+            this.name = name;
+        }
+
+        void ping() {
+            Session session = getSession();
+            if (session == null || closed || pingSentAt != 0) {
+                return; // wait for the previous pong.
+            }
+            JSONObject message = new JSONObject();
+            message.put(SecretHitlerServer.PARAM_LOBBY, lobby);
+            message.put(SecretHitlerServer.PARAM_NAME, name);
+            message.put(SecretHitlerServer.PARAM_COMMAND, SecretHitlerServer.COMMAND_PING);
+            pingSentAt = System.nanoTime();
+            session.getRemote().sendStringByFuture(message.toString());
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            if (pingSentAt != 0 && message.contains("\"" + SecretHitlerServer.PACKET_PONG + "\"")) {
+                latenciesNs.add(System.nanoTime() - pingSentAt);
+                pingSentAt = 0;
+            }
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            closed = true;
+            super.onWebSocketClose(statusCode, reason);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String address = args.length > 0 ? args[0] : DEFAULT_ADDRESS;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONNECTIONS;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+        WebSocketClient client = new WebSocketClient();
+        client.setMaxIdleTimeout(TimeUnit.SECONDS.toMillis(seconds + 60));
+        // Upgraded connections stay in the HTTP client's pool, which allows 64 connections to the server by default.
+        client.getHttpClient().setMaxConnectionsPerDestination(connections + 1);
+        client.start();
+
+        List<User> users = new ArrayList<>();
+        List<Future<Session>> pending = new ArrayList<>();
+        String lobby = null;
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            if (i % USERS_PER_LOBBY == 0) {
+                lobby = httpGet("http://" + address + "/new-lobby");
+            }
+            User user = new User(lobby, "user" + i);
+            users.add(user);
+            URI uri = URI.create("ws://" + address + "/game?lobby=" + lobby + "&name=" + user.name);
+            pending.add(client.connect(user, uri));
+        }
+        int failed = 0;
+        for (Future<Session> future : pending) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        System.out.println(String.format("Opened %d of %d connections in %.1f s (%d failed).",
+                connections - failed, connections, connectSeconds, failed));
+
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        while (System.currentTimeMillis() < end) {
+            for (User user : users) {
+                user.ping();
+            }
+            Thread.sleep(PING_INTERVAL_MS);
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        int open = 0;
+        for (User user : users) {
+            latencies.addAll(user.latenciesNs);
+            if (!user.closed && user.getSession() != null && user.getSession().isOpen()) {
+                open++;
+            }
+        }
+        Collections.sort(latencies);
+        System.out.println(String.format("Connections still open after %d s: %d", seconds, open));
+        System.out.println(String.format("Pongs: %d, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                latencies.size(), percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 1.0)));
+        System.out.println("Server metrics: " + httpGet("http://" + address + "/metrics"));
+
+        client.stop();
+    }
+
+    private static double percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(fraction * sorted.size()) - 1);
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static String httpGet(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder builder = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line);
+            }
+            return builder.toString();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
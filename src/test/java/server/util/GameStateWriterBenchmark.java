@@ -0,0 +1,81 @@
+package server.util;
+
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Measures the allocations and time per game state packet of GameStateWriter, for the full state and for the view of
+ * the president.
+ *
+ * Run with: java -cp {test classpath} server.util.GameStateWriterBenchmark [iterations]
+ */
+public class GameStateWriterBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 200_000;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        // A 10-player game during the legislative session, with a full set of votes.
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < SecretHitlerGame.MAX_PLAYERS; i++) {
+            names.add("player" + i);
+        }
+        SecretHitlerGame game = new SecretHitlerGame(names);
+        game.nominateChancellor("player1");
+        for (String name : names) {
+            game.registerVote(name, true);
+        }
+        Map<String, String> icons = new HashMap<>();
+        for (Player player : game.getPlayerList()) {
+            icons.put(player.getUsername(), "p" + icons.size());
+        }
+        GameView view = GameView.forUser(game, game.getCurrentPresident());
+
+        Supplier<String> full = () -> GameStateWriter.writeGamePacket(game, null, icons, 1L);
+        Supplier<String> president = () -> GameStateWriter.writeGamePacket(game, view, icons, 1L);
+
+        // Warm up both views before measuring.
+        measure(full, iterations);
+        measure(president, iterations);
+
+        report("Full state", full, iterations);
+        report("President view", president, iterations);
+    }
+
+    private static void report(String label, Supplier<String> encoder, int iterations) {
+        long[] result = measure(encoder, iterations);
+        System.out.println(String.format("%-18s %8.0f bytes allocated/packet %8.0f ns/packet (%d chars)",
+                label, (double) result[0] / iterations, (double) result[1] / iterations, encoder.get().length()));
+    }
+
+    /**
+     * Encodes a packet repeatedly on the current thread.
+     * @return {bytes allocated, nanoseconds elapsed} for all iterations.
+     */
+    private static long[] measure(Supplier<String> encoder, int iterations) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long checksum = 0;
+
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += encoder.get().length();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        if (checksum == 0) {
+            System.out.println("Encoder produced no output.");
+        }
+        return new long[] {allocated, elapsed};
+    }
+}
@@ -0,0 +1,114 @@
+package server.util;
+
+import game.SecretHitlerGame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the time to encode and decode a lobby, and the bytes stored per lobby, of Java serialization
+ * (ObjectOutputStream) and the state format (Lobby.encode, StateCodec).
+ *
+ * Run with: java -cp {test classpath} server.util.LobbyCodecBenchmark [iterations]
+ */
+public class LobbyCodecBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 50_000;
+
+    private interface Codec {
+        byte[] encode(Lobby lobby) throws Exception;
+        Lobby decode(byte[] data) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+
+        // A 10-player lobby during the legislative session, with a full set of votes.
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < SecretHitlerGame.MAX_PLAYERS; i++) {
+            names.add("player" + i);
+        }
+        Lobby lobby = new Lobby("BNCH");
+        for (String name : names) {
+            lobby.restoreIcon(name, "p" + name.substring("player".length()));
+        }
+        lobby.restoreGame(names, 42);
+        lobby.game().nominateChancellor("player1");
+        for (String name : names) {
+            lobby.game().registerVote(name, true);
+        }
+
+        Codec serialization = new Codec() {
+            @Override
+            public byte[] encode(Lobby lobby) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(lobby);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            public Lobby decode(byte[] data) throws Exception {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    return (Lobby) in.readObject();
+                }
+            }
+        };
+        Codec state = new Codec() {
+            @Override
+            public byte[] encode(Lobby lobby) {
+                return lobby.encode();
+            }
+
+            @Override
+            public Lobby decode(byte[] data) throws IOException {
+                return Lobby.decode(data);
+            }
+        };
+
+        // Warm up both codecs before measuring.
+        measure(serialization, lobby, iterations);
+        measure(state, lobby, iterations);
+
+        report("ObjectOutputStream", serialization, lobby, iterations);
+        report("StateCodec", state, lobby, iterations);
+        System.exit(0); // stops the event loops of the lobby.
+    }
+
+    private static void report(String label, Codec codec, Lobby lobby, int iterations) throws Exception {
+        long[] result = measure(codec, lobby, iterations);
+        System.out.println(String.format("%-18s %6d bytes/lobby %8.0f ns/encode %8.0f ns/decode",
+                label, codec.encode(lobby).length, (double) result[0] / iterations, (double) result[1] / iterations));
+    }
+
+    /**
+     * Encodes and then decodes the lobby repeatedly on the current thread.
+     * @return {nanoseconds encoding, nanoseconds decoding} for all iterations.
+     */
+    private static long[] measure(Codec codec, Lobby lobby, int iterations) throws Exception {
+        byte[] data = codec.encode(lobby);
+        long checksum = 0;
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += codec.encode(lobby).length;
+        }
+        long encodeTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += codec.decode(data).game().getDrawSize();
+        }
+        long decodeTime = System.nanoTime() - startTime;
+        if (checksum == 0) {
+            System.out.println("Codec produced no output.");
+        }
+        return new long[] {encodeTime, decodeTime};
+    }
+}
@@ -0,0 +1,62 @@
+package server.util;
+
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+import org.junit.Test;
+import server.SecretHitlerServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.*;
+
+public class testBinaryProtocol {
+
+    private SecretHitlerGame makeGame(int numPlayers) {
+        List<String> players = new ArrayList<>();
+        for (int i = 0; i < numPlayers; i++) {
+            players.add(Integer.toString(i));
+        }
+        return new SecretHitlerGame(players);
+    }
+
+    @Test
+    public void testDecodeCommand() {
+        SecretHitlerGame game = makeGame(5);
+        int nominate = BinaryProtocol.COMMANDS.indexOf(SecretHitlerServer.COMMAND_NOMINATE_CHANCELLOR);
+        Command command = BinaryProtocol.decodeCommand(ByteBuffer.wrap(new byte[] {(byte) nominate, 3}), game);
+        assertEquals(Command.Type.NOMINATE_CHANCELLOR, command.getType());
+        assertEquals(game.getPlayerList().get(3).getUsername(), ((Command.NominateChancellor) command).getTarget());
+
+        int icon = BinaryProtocol.COMMANDS.indexOf(SecretHitlerServer.COMMAND_SELECT_ICON);
+        command = BinaryProtocol.decodeCommand(ByteBuffer.wrap(new byte[] {(byte) icon, 2, 'p', '1'}), null);
+        assertEquals("p1", ((Command.SelectIcon) command).getIcon());
+
+        try {
+            BinaryProtocol.decodeCommand(ByteBuffer.wrap(new byte[] {(byte) nominate, 5}), game);
+            fail("Decoding a seat outside of the game should throw an exception.");
+        } catch (IllegalArgumentException e) {}
+        try {
+            BinaryProtocol.decodeCommand(ByteBuffer.wrap(new byte[] {(byte) icon, 5, 'p'}), game);
+            fail("Decoding a truncated frame should throw an exception.");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void testGamePacketIsSmallerThanJSON() {
+        SecretHitlerGame game = makeGame(10);
+        Map<String, String> icons = new HashMap<>();
+        for (Player player : game.getPlayerList()) {
+            icons.put(player.getUsername(), "p" + player.getUsername());
+        }
+        GameView view = GameView.forUser(game, game.getCurrentPresident());
+
+        byte[] binary = BinaryProtocol.encodeGame(game, view, icons, 300);
+        String json = GameStateWriter.writeGamePacket(game, view, icons, 300);
+        assertEquals(BinaryProtocol.TYPE_GAME, binary[0]);
+        assertTrue(binary.length * 4 < json.length());
+    }
+}
@@ -0,0 +1,54 @@
+package server.util;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.*;
+
+public class testCommandParser {
+
+    @Test
+    public void testParse() {
+        CommandParser.Envelope message = CommandParser.parse(
+                "{\"name\":\"a\",\"extra\":{\"x\":[1,2]},\"lobby\":\"ABCD\",\"command\":\"register-vote\",\"vote\":true}");
+        assertEquals("ABCD", message.getLobby());
+        assertEquals("a", message.getName());
+        assertEquals(Command.Type.REGISTER_VOTE, message.getCommand().getType());
+        assertTrue(((Command.RegisterVote) message.getCommand()).getVote());
+
+        message = CommandParser.parse("{\"name\":\"a\",\"lobby\":\"ABCD\",\"command\":\"end-term\"}");
+        assertSame(Command.of(Command.Type.END_TERM), message.getCommand());
+    }
+
+    @Test
+    public void testFormatRoundTrip() {
+        Command[] commands = {
+                new Command.NominateChancellor("b \"quoted\""),
+                new Command.RegisterChancellorChoice(1),
+                new Command.PresidentVeto(false),
+                new Command.SelectIcon("p3"),
+                Command.of(Command.Type.PING)
+        };
+        for (Command command : commands) {
+            CommandParser.Envelope message = CommandParser.parse(CommandParser.format("ABCD", "a", command));
+            assertEquals(command.toString(), message.getCommand().toString());
+        }
+    }
+
+    @Test
+    public void testInvalidMessages() {
+        String[] invalid = {
+                "[]",
+                "{\"name\":\"a\",\"command\":\"ping\"}", // missing lobby
+                "{\"name\":\"a\",\"lobby\":\"ABCD\",\"command\":\"fly\"}", // unknown command
+                "{\"name\":\"a\",\"lobby\":\"ABCD\",\"command\":\"register-vote\"}", // missing vote
+                "{\"name\":\"a\",\"lobby\":\"ABCD\",\"command\":\"register-president-choice\",\"choice\":\"x\"}",
+                "{\"name\":\"a\",\"lobby\":\"ABCD\""
+        };
+        for (String message : invalid) {
+            try {
+                CommandParser.parse(message);
+                fail("Parsing " + message + " should throw an exception.");
+            } catch (IllegalArgumentException e) {}
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static junit.framework.TestCase.*;
+
+public class testExpiryIndex {
+
+    @Test
+    public void testOnlyExpiredKeysArePolled() throws Exception {
+        ExpiryIndex<String> index = new ExpiryIndex<>(new TimerWheel(5, 8, "test-timer-wheel"));
+        long now = System.currentTimeMillis();
+        AtomicLong movedDeadline = new AtomicLong(now + 50);
+        index.add("expired", () -> now - 1);
+        index.add("soon", () -> now + 50);
+        index.add("moved", movedDeadline::get);
+        index.add("removed", () -> now + 50);
+        index.add("later", () -> now + 60_000);
+        index.remove("removed");
+        movedDeadline.set(now + 300); // moving the deadline does not update the index.
+
+        List<String> polled = new ArrayList<>();
+        index.pollExpired(polled::add);
+        assertEquals(List.of("expired"), polled);
+
+        Thread.sleep(150);
+        polled.clear();
+        index.pollExpired(polled::add);
+        assertEquals(List.of("soon"), polled);
+
+        Thread.sleep(300);
+        polled.clear();
+        assertEquals(1, index.pollExpired(polled::add));
+        assertEquals(List.of("moved"), polled);
+        assertEquals(1, index.size()); // only "later" is left.
+    }
+}
@@ -0,0 +1,126 @@
+package server.util;
+
+import game.SecretHitlerGame;
+import game.datastructures.Player;
+import org.json.JSONObject;
+import org.junit.Test;
+import server.SecretHitlerServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.TestCase.*;
+
+public class testGameStateWriter {
+
+    private SecretHitlerGame makeGame(int numPlayers) {
+        List<String> players = new ArrayList<>();
+        for (int i = 0; i < numPlayers; i++) {
+            players.add(Integer.toString(i));
+        }
+        return new SecretHitlerGame(players);
+    }
+
+    private Map<String, String> makeIcons(SecretHitlerGame game) {
+        Map<String, String> icons = new HashMap<>();
+        for (Player player : game.getPlayerList()) {
+            icons.put(player.getUsername(), "p" + player.getUsername());
+        }
+        return icons;
+    }
+
+    private JSONObject writeGamePacket(SecretHitlerGame game, GameView view) {
+        return new JSONObject(GameStateWriter.writeGamePacket(game, view, makeIcons(game), 3L));
+    }
+
+    /**
+     * Asserts that a packet contains the identities that the view can see, and only those.
+     */
+    private void assertIdentities(SecretHitlerGame game, GameView view, JSONObject packet) {
+        JSONObject players = packet.getJSONObject("players");
+        for (Player player : game.getPlayerList()) {
+            JSONObject playerObj = players.getJSONObject(player.getUsername());
+            assertEquals(player.isAlive(), playerObj.getBoolean("alive"));
+            assertEquals(player.hasBeenInvestigated(), playerObj.getBoolean("investigated"));
+            if (view == null || view.canSeeIdentity(player)) {
+                String id = player.isHitler() ? GameStateWriter.HITLER
+                        : player.isFascist() ? GameStateWriter.FASCIST : GameStateWriter.LIBERAL;
+                assertEquals(id, playerObj.getString("id"));
+            } else {
+                assertFalse(view + " can see " + player.getUsername(), playerObj.has("id"));
+            }
+        }
+    }
+
+    @Test
+    public void testGamePacket() {
+        SecretHitlerGame game = makeGame(7);
+        JSONObject packet = writeGamePacket(game, null);
+        assertEquals(SecretHitlerServer.PACKET_GAME_STATE, packet.getString(SecretHitlerServer.PARAM_PACKET_TYPE));
+        assertEquals(game.getState().toString(), packet.getString("state"));
+        assertEquals(game.getCurrentPresident(), packet.getString("president"));
+        assertFalse(packet.has("chancellor")); // no chancellor or target yet
+        assertFalse(packet.has("target-user"));
+        assertEquals(7, packet.getJSONArray("player-order").length());
+        assertEquals(game.getPlayerList().get(2).getUsername(), packet.getJSONArray("player-order").getString(2));
+        assertEquals(game.getDrawSize(), packet.getInt("draw-size"));
+        assertEquals(0, packet.getInt("fascist-policies"));
+        assertEquals("p0", packet.getJSONObject("icon").getString("0"));
+        assertEquals(3, packet.getLong(SecretHitlerServer.PARAM_VERSION));
+        assertIdentities(game, null, packet);
+
+        game.nominateChancellor("1");
+        game.registerVote("0", true);
+        packet = writeGamePacket(game, GameView.PUBLIC);
+        assertEquals("1", packet.getString("chancellor"));
+        assertEquals(1, packet.getJSONObject("user-votes").length()); // partial votes
+        assertTrue(packet.getJSONObject("user-votes").getBoolean("0"));
+    }
+
+    @Test
+    public void testGamePacketViews() {
+        SecretHitlerGame game = makeGame(7);
+        game.nominateChancellor("1");
+        for (int i = 0; i < 7; i++) {
+            game.registerVote(Integer.toString(i), true);
+        }
+        for (GameView.Role role : GameView.Role.values()) {
+            for (GameView.Office office : GameView.Office.values()) {
+                GameView view = GameView.of(role, office);
+                JSONObject packet = writeGamePacket(game, view);
+                assertIdentities(game, view, packet);
+                assertEquals(view.toString(), role == GameView.Role.LIBERAL, packet.has("role"));
+                assertEquals(view.toString(), office == GameView.Office.PRESIDENT, packet.has("president-choices"));
+                assertFalse(packet.has("chancellor-choices"));
+            }
+        }
+        assertEquals(3, writeGamePacket(game, null).getJSONArray("president-choices").length());
+
+        game.presidentDiscardPolicy(0);
+        JSONObject packet = writeGamePacket(game, GameView.of(GameView.Role.SPECTATOR, GameView.Office.CHANCELLOR));
+        assertEquals(2, packet.getJSONArray("chancellor-choices").length());
+        for (Object policy : packet.getJSONArray("chancellor-choices")) {
+            assertTrue(policy.equals(GameStateWriter.FASCIST) || policy.equals(GameStateWriter.LIBERAL));
+        }
+        packet = writeGamePacket(game, GameView.of(GameView.Role.SPECTATOR, GameView.Office.PRESIDENT));
+        assertFalse(packet.has("chancellor-choices"));
+    }
+
+    @Test
+    public void testLobbyPacket() {
+        List<String> usernames = new ArrayList<>();
+        usernames.add("a");
+        usernames.add("b \"quoted\"");
+        Map<String, String> icons = new HashMap<>();
+        icons.put("a", "p1");
+
+        JSONObject packet = new JSONObject(GameStateWriter.writeLobbyPacket(usernames, icons, 12));
+        assertEquals(SecretHitlerServer.PACKET_LOBBY, packet.getString(SecretHitlerServer.PARAM_PACKET_TYPE));
+        assertEquals(2, packet.getInt("user-count"));
+        assertEquals("b \"quoted\"", packet.getJSONArray("usernames").getString(1));
+        assertEquals("p1", packet.getJSONObject("icon").getString("a"));
+        assertEquals(12, packet.getLong(SecretHitlerServer.PARAM_VERSION));
+    }
+}
@@ -0,0 +1,81 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public class testJournal {
+
+    @Test
+    public void testEntriesAreWrittenInOrderAfterFailures() throws InterruptedException {
+        long retryDelay = Journal.RETRY_DELAY_MS;
+        Journal.RETRY_DELAY_MS = 1;
+        try {
+            List<Journal.Entry> written = new ArrayList<>();
+            int[] failures = {2};
+            Journal journal = new Journal(entries -> {
+                if (failures[0] > 0) {
+                    failures[0]--;
+                    throw new Exception("unavailable");
+                }
+                written.addAll(entries);
+            });
+            for (int i = 1; i <= 100; i++) {
+                journal.append("AAAA", i, "entry " + i);
+            }
+            assertTrue(journal.flush(5000));
+
+            assertEquals(100, written.size());
+            for (int i = 0; i < written.size(); i++) {
+                assertEquals(i + 1, written.get(i).getSequence());
+                assertEquals("entry " + (i + 1), written.get(i).getData());
+            }
+            assertEquals(100, journal.getWrittenCount());
+            assertEquals(0, journal.getDroppedCount());
+            assertTrue(journal.getBatchCount() <= 100);
+            assertEquals(0, journal.getPendingCount());
+        } finally {
+            Journal.RETRY_DELAY_MS = retryDelay;
+        }
+    }
+
+    @Test
+    public void testBatchesThatKeepFailingAreDropped() throws InterruptedException {
+        long retryDelay = Journal.RETRY_DELAY_MS;
+        Journal.RETRY_DELAY_MS = 1;
+        try {
+            List<Journal.Entry> written = new ArrayList<>();
+            int[] attempts = {0};
+            Journal journal = new Journal(entries -> {
+                attempts[0]++;
+                if (entries.get(0).getLobbyCode().equals("FAIL")) {
+                    throw new Exception("unavailable");
+                }
+                if (entries.get(0).getLobbyCode().equals("DUPE")) {
+                    throw new SQLException("duplicate key", "23505"); // not temporary, so not retried.
+                }
+                written.addAll(entries);
+            });
+            journal.append("FAIL", 1, "entry");
+            assertTrue(journal.flush(5000));
+            assertEquals(Journal.MAX_ATTEMPTS, attempts[0]);
+
+            attempts[0] = 0;
+            journal.append("DUPE", 1, "entry");
+            assertTrue(journal.flush(5000));
+            assertEquals(1, attempts[0]);
+
+            journal.append("AAAA", 1, "entry");
+            assertTrue(journal.flush(5000));
+            assertEquals(1, written.size());
+            assertEquals(2, journal.getDroppedCount());
+            assertEquals(1, journal.getWrittenCount());
+        } finally {
+            Journal.RETRY_DELAY_MS = retryDelay;
+        }
+    }
+}
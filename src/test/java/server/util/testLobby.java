@@ -0,0 +1,87 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static junit.framework.TestCase.*;
+
+public class testLobby {
+
+    // Written by the server before lobbies were stored with StateCodec, with the classes of that version.
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream in = testLobby.class.getResourceAsStream(name)) {
+            assertNotNull("missing fixture " + name, in);
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testDecodeSerializedBackup() throws Exception {
+        ConcurrentHashMap<String, Lobby> lobbies = Lobby.decodeSerializedBackup(readFixture("legacy-backup.ser"));
+
+        assertEquals(2, lobbies.size());
+        assertEquals("ABCD", lobbies.get("ABCD").getCode());
+        assertEquals("WXYZ", lobbies.get("WXYZ").getCode());
+        assertEquals(5, lobbies.get("ABCD").game().getPlayerList().size());
+        assertEquals(7, lobbies.get("WXYZ").game().getPlayerList().size());
+        assertEquals("p3", lobbies.get("ABCD").getIcon("player3"));
+
+        Lobby lobby = lobbies.get("WXYZ");
+        assertTrue(lobby.markSaved()); // stored again by the next backup.
+        assertEquals(Integer.valueOf(1), lobby.submit(() -> 1).get());
+        Lobby copy = Lobby.decode(lobby.encode());
+        assertEquals("WXYZ", copy.getCode());
+        assertEquals(lobby.game().getDrawSize(), copy.game().getDrawSize());
+    }
+
+    @Test
+    public void testDecodeSerializedLobby() throws Exception {
+        Lobby lobby = Lobby.decodeSerialized("LGCY", readFixture("legacy-lobby.ser"));
+
+        assertEquals("LGCY", lobby.getCode());
+        assertEquals(6, lobby.game().getPlayerList().size());
+        assertEquals("p0", lobby.getIcon("player0"));
+        assertTrue(lobby.markSaved());
+        assertEquals(Integer.valueOf(1), lobby.submit(() -> 1).get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeSerializedRejectsOtherObjects() throws Exception {
+        Lobby.decodeSerialized("LGCY", readFixture("legacy-backup.ser"));
+    }
+
+    @Test
+    public void testReplayStopsAtMissingEntry() throws Exception {
+        Lobby lobby = new Lobby("GAPS");
+        lobby.replayJournalEntry(1, () -> lobby.restoreIcon("a", "p1"));
+        lobby.replayJournalEntry(2, () -> lobby.restoreIcon("b", "p2"));
+        try {
+            lobby.replayJournalEntry(4, () -> lobby.restoreIcon("c", "p3")); // entry 3 was dropped.
+            fail("replayed an entry after a missing one");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, lobby.getJournalSequence());
+        assertNull(lobby.getIcon("c"));
+
+        Lobby copy = Lobby.decode(lobby.encode());
+        assertEquals(2, copy.getJournalSequence());
+        assertEquals("p2", copy.getIcon("b"));
+    }
+
+    @Test
+    public void testFailedReplayDoesNotAdvanceSequence() {
+        Lobby lobby = new Lobby("FAIL");
+        lobby.replayJournalEntry(1, () -> lobby.restoreIcon("a", "p1"));
+        try {
+            lobby.replayJournalEntry(2, () -> { throw new IllegalArgumentException("bad entry"); });
+            fail("the entry did not fail");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, lobby.getJournalSequence());
+        lobby.replayJournalEntry(2, () -> lobby.restoreIcon("b", "p2"));
+        assertEquals(2, lobby.getJournalSequence());
+    }
+}
@@ -0,0 +1,43 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class testMailbox {
+
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        Mailbox mailbox = new Mailbox(EventLoopGroup.shared().forKey("ORDR"));
+        List<Integer> order = new ArrayList<>(); // only accessed from the mailbox.
+        Thread[] submitters = new Thread[4];
+        for (int t = 0; t < submitters.length; t++) {
+            submitters[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    mailbox.execute(() -> order.add(order.size()));
+                }
+            });
+            submitters[t].start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+
+        List<Integer> result = mailbox.submit(() -> new ArrayList<>(order)).get(5, TimeUnit.SECONDS);
+        assertEquals(4000, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(i, (int) result.get(i)); // no two tasks ran at the same time.
+        }
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopMailbox() throws Exception {
+        Mailbox mailbox = new Mailbox(EventLoopGroup.shared().forKey("FAIL"));
+        mailbox.execute(() -> { throw new RuntimeException("expected"); });
+        assertEquals("done", mailbox.submit(() -> "done").get(5, TimeUnit.SECONDS));
+    }
+}
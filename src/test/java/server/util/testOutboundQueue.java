@@ -0,0 +1,86 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.*;
+
+public class testOutboundQueue {
+
+    /**
+     * Creates a queue whose sender blocks until {@code release} is counted down, recording each sent message.
+     */
+    private OutboundQueue makeBlockedQueue(List<Object> sent, CountDownLatch release, AtomicInteger disconnects) {
+        return new OutboundQueue(payload -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (sent) {
+                sent.add(payload);
+                sent.notifyAll();
+            }
+        }, (statusCode, reason) -> disconnects.incrementAndGet());
+    }
+
+    private void awaitSize(List<Object> sent, int size) throws InterruptedException {
+        synchronized (sent) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sent.size() < size && System.currentTimeMillis() < deadline) {
+                sent.wait(100);
+            }
+        }
+    }
+
+    @Test
+    public void testStaleStatesAreDropped() throws InterruptedException {
+        List<Object> sent = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger disconnects = new AtomicInteger();
+        OutboundQueue queue = makeBlockedQueue(sent, release, disconnects);
+
+        queue.sendState("state1"); // taken by the sender thread, which blocks.
+        Thread.sleep(100);
+        queue.sendState("state2");
+        queue.send("ok");
+        queue.sendState("state3"); // replaces state2, before the ok.
+        assertTrue(queue.hasPendingState());
+        release.countDown();
+
+        awaitSize(sent, 3);
+        synchronized (sent) {
+            assertEquals(3, sent.size());
+            assertEquals("state1", sent.get(0));
+            assertEquals("state3", sent.get(1));
+            assertEquals("ok", sent.get(2));
+        }
+        assertEquals(0, disconnects.get());
+    }
+
+    @Test
+    public void testSlowConnectionIsDisconnected() throws InterruptedException {
+        List<Object> sent = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger disconnects = new AtomicInteger();
+        OutboundQueue queue = makeBlockedQueue(sent, release, disconnects);
+
+        for (int i = 0; i <= OutboundQueue.MAX_PENDING_MESSAGES + 1; i++) {
+            queue.send("message" + i);
+        }
+        queue.send("ignored");
+        queue.disconnect(1000, "ignored");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (disconnects.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10); // the connection is closed from a sender thread.
+        }
+        Thread.sleep(100);
+        assertEquals(1, disconnects.get());
+        release.countDown();
+    }
+}
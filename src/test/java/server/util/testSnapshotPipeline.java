@@ -0,0 +1,53 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.*;
+
+public class testSnapshotPipeline {
+
+    @Test
+    public void testSnapshotsAreCompressedAndWritten() throws InterruptedException, IOException {
+        List<SnapshotPipeline.Snapshot> written = Collections.synchronizedList(new ArrayList<>());
+        SnapshotPipeline pipeline = new SnapshotPipeline(written::addAll);
+        List<Lobby> lobbies = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Lobby lobby = new Lobby("SNP" + i);
+            lobby.restoreIcon("user" + i, "p" + i);
+            lobbies.add(lobby);
+            pipeline.capture(lobby);
+        }
+        assertTrue(pipeline.flush(5000));
+
+        assertEquals(10, written.size());
+        assertEquals(10, pipeline.getWrittenCount());
+        assertEquals(0, pipeline.getPendingCount());
+        for (SnapshotPipeline.Snapshot snapshot : written) {
+            assertTrue(SnapshotPipeline.isCompressed(snapshot.getData()));
+            Lobby copy = Lobby.decode(SnapshotPipeline.decompress(snapshot.getData()));
+            assertEquals(snapshot.getLobby().getCode(), copy.getCode());
+            int index = lobbies.indexOf(snapshot.getLobby());
+            assertEquals("p" + index, copy.getIcon("user" + index));
+        }
+    }
+
+    @Test
+    public void testFailedWritesMarkLobbiesUnsaved() throws InterruptedException {
+        SnapshotPipeline pipeline = new SnapshotPipeline(batch -> {
+            throw new Exception("unavailable");
+        });
+        Lobby lobby = new Lobby("FAIL");
+        assertTrue(lobby.markSaved());
+        pipeline.capture(lobby);
+        assertTrue(pipeline.flush(5000));
+
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(0, pipeline.getWrittenCount());
+        assertTrue(lobby.markSaved()); // stored by the next backup.
+    }
+}
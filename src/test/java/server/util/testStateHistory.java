@@ -0,0 +1,41 @@
+package server.util;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static junit.framework.TestCase.*;
+
+public class testStateHistory {
+
+    @Test
+    public void testDiffOnlyContainsChangedKeys() {
+        JSONObject from = new JSONObject("{\"state\":\"CHANCELLOR_VOTING\",\"draw-size\":17,"
+                + "\"user-votes\":{\"a\":true},\"player-order\":[\"a\",\"b\"],\"chancellor\":\"b\"}");
+        JSONObject to = new JSONObject("{\"state\":\"CHANCELLOR_VOTING\",\"draw-size\":17,"
+                + "\"user-votes\":{\"a\":true,\"b\":false},\"player-order\":[\"a\",\"b\"]}");
+
+        JSONObject patch = StateHistory.diff(from, to);
+        assertEquals(2, patch.length());
+        assertEquals(1, patch.getJSONObject("user-votes").length());
+        assertFalse(patch.getJSONObject("user-votes").getBoolean("b"));
+        assertTrue(patch.isNull("chancellor"));
+    }
+
+    @Test
+    public void testPatchesAreOnlyCreatedForStoredVersions() {
+        StateHistory history = new StateHistory();
+        history.add(1, "{\"type\":\"lobby\",\"user-count\":1}", "lobby");
+        history.add(2, "{\"type\":\"lobby\",\"user-count\":2}", "lobby");
+        assertTrue(history.canPatchFrom(1));
+        assertEquals("{\"user-count\":2}", history.getPatchFrom(1));
+
+        history.add(3, "{\"type\":\"game\",\"state\":\"SETUP\"}", "game");
+        assertFalse(history.canPatchFrom(2)); // packet types differ
+
+        for (int i = 4; i < 4 + StateHistory.MAX_VERSIONS; i++) {
+            history.add(i, "{\"type\":\"game\",\"state\":\"SETUP\"}", "game");
+        }
+        assertFalse(history.canPatchFrom(3)); // version was dropped from the history
+        assertTrue(history.isCurrent(3 + StateHistory.MAX_VERSIONS));
+    }
+}
@@ -0,0 +1,46 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class testTimerWheel {
+
+    @Test
+    public void testTasksExpireInDeadlineOrder() throws Exception {
+        // A small wheel, so that some tasks wait for more than one turn.
+        TimerWheel wheel = new TimerWheel(5, 8, "test-timer-wheel");
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        wheel.schedule(() -> { order.add(3); done.countDown(); }, 150, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { order.add(1); done.countDown(); }, 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { order.add(2); done.countDown(); }, 60, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), order);
+        assertEquals(3, wheel.getExpiredCount());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void testCancelledTasksDoNotRun() throws Exception {
+        TimerWheel wheel = new TimerWheel(5, 8, "test-timer-wheel");
+        CountDownLatch cancelledRan = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(cancelledRan::countDown, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(done::countDown, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelledRan.getCount());
+        assertTrue(timeout.isCancelled());
+        assertEquals(1, wheel.getCancelledCount());
+        assertEquals(1, wheel.getExpiredCount());
+    }
+}
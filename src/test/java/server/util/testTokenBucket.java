@@ -0,0 +1,32 @@
+package server.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.*;
+
+public class testTokenBucket {
+
+    @Test
+    public void testBurstThenRefill() {
+        long now = 0;
+        TokenBucket bucket = new TokenBucket(3, 2, now);
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now)); // the burst is used up.
+
+        now += TimeUnit.MILLISECONDS.toNanos(250); // half a token.
+        assertFalse(bucket.tryAcquire(now));
+        now += TimeUnit.MILLISECONDS.toNanos(250);
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+
+        now += TimeUnit.SECONDS.toNanos(60); // refills up to the capacity only.
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryAcquire(now));
+        }
+        assertFalse(bucket.tryAcquire(now));
+    }
+}